@@ -0,0 +1,305 @@
+// File: src/common/BinaryCodec.java
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The BinaryCodec class defines the length-prefixed binary framing that peers can negotiate instead of
+ * the text line protocol. A connection starts in text mode; the client sends the line "PROTOCOL BINARY",
+ * waits for "PROTOCOL_OK BINARY" and from then on both sides exchange frames:
+ *
+ *   int length | byte opcode | int requestId | fields...
+ *
+ * where length counts every byte after the length field. Strings are an unsigned 16-bit byte count
+ * followed by UTF-8 bytes, numbers are big-endian. Responses echo the request ID of their request.
+ * Field values never need escaping, so file names may contain spaces.
+ */
+public class BinaryCodec {
+    public static final String HELLO = "PROTOCOL BINARY";        // Text line that asks to switch to frames
+    public static final String HELLO_OK = "PROTOCOL_OK BINARY";  // Text line that confirms the switch
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024; // Largest frame either side accepts
+
+    // Indexing server requests
+    public static final byte REGISTER = 1;        // peerId, ip, port:int, bandwidth:double, files:list
+    public static final byte SEARCH = 2;          // filename
+    public static final byte DEREGISTER = 3;      // peerId, files:list (empty = the whole peer)
+    public static final byte MSEARCH = 4;         // filenames:list
+    public static final byte SEARCH_PREFIX = 5;   // prefix, limit:int
+    public static final byte SEARCH_LIKE = 6;     // pattern, limit:int
+    public static final byte HEARTBEAT = 7;       // peerId; answered by OK with leaseMillis:long (0 = no leases)
+    public static final byte REGISTER_BEGIN = 8;  // peerId, ip, port:int, bandwidth:double
+    public static final byte REGISTER_ADD = 9;    // peerId, files:list
+    public static final byte REGISTER_END = 10;   // peerId, version:long
+    public static final byte ADD = 11;            // peerId, version:long, files:list; OK or STALE_VERSION
+    public static final byte REMOVE = 12;         // peerId, version:long, files:list; OK or STALE_VERSION
+    public static final byte LOAD = 13;           // peerId, activeUploads:int
+    public static final byte SEARCH_TOP = 14;     // filename, k:int; answered by SEARCH_RESULTS, best peers first
+    public static final byte STATS = 15;          // (no fields); answered by STATS_RESULTS
+    public static final byte SEARCH_HASH = 17;    // contentKey, k:int (0 = all); answered by SEARCH_RESULTS
+
+    // Peer file server requests
+    public static final byte GET_FILE = 16;       // filename or content key
+    public static final byte GET_RANGE = 18;      // filename or content key, offset:long, length:long
+
+    // Responses
+    public static final byte OK = 64;             // (no fields, except for HEARTBEAT)
+    public static final byte ERROR = 65;          // message
+    public static final byte SEARCH_RESULTS = 66; // count:int, then per peer: peerId, ip, port:int, bandwidth:double
+    public static final byte MSEARCH_RESULTS = 67; // count:int, then one SEARCH_RESULTS body per file
+    public static final byte NAME_RESULTS = 68;   // names:list
+    public static final byte STALE_VERSION = 69;  // version:long held by the server, the peer registers in full
+    public static final byte BUSY = 70;           // retryAfterMillis:long; the request was not processed
+    public static final byte STATS_RESULTS = 71;  // count:int, then per value: name, value:long
+    public static final byte FILE_FOUND = 80;     // size:long, followed by the raw file bytes outside the frame
+    public static final byte FILE_NOT_FOUND = 81; // (no fields)
+
+    /**
+     * Builds one outgoing frame in a growable byte array.
+     */
+    public static final class FrameWriter {
+        private byte[] data = new byte[64];
+        private int length = 4; // The length prefix is filled in by toBytes
+
+        public FrameWriter(byte opcode, int requestId) {
+            putByte(opcode);
+            putInt(requestId);
+        }
+
+        /**
+         * @return byte - The frame's opcode.
+         */
+        public byte getOpcode() {
+            return data[4];
+        }
+
+        /**
+         * Overwrites the request ID, for connections that number requests when they send them.
+         */
+        public FrameWriter setRequestId(int requestId) {
+            data[5] = (byte) (requestId >>> 24);
+            data[6] = (byte) (requestId >>> 16);
+            data[7] = (byte) (requestId >>> 8);
+            data[8] = (byte) requestId;
+            return this;
+        }
+
+        public FrameWriter putByte(byte value) {
+            ensure(1);
+            data[length++] = value;
+            return this;
+        }
+
+        public FrameWriter putInt(int value) {
+            ensure(4);
+            data[length++] = (byte) (value >>> 24);
+            data[length++] = (byte) (value >>> 16);
+            data[length++] = (byte) (value >>> 8);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        public FrameWriter putLong(long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        public FrameWriter putDouble(double value) {
+            return putLong(Double.doubleToLongBits(value));
+        }
+
+        public FrameWriter putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("String field longer than 65535 bytes");
+            }
+            ensure(2 + bytes.length);
+            data[length++] = (byte) (bytes.length >>> 8);
+            data[length++] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+            return this;
+        }
+
+        public FrameWriter putStrings(List<String> values) {
+            putInt(values.size());
+            for (String value : values) {
+                putString(value);
+            }
+            return this;
+        }
+
+        /**
+         * Appends the fields of a peer as they appear in SEARCH_RESULTS.
+         */
+        public FrameWriter putPeer(PeerInfo peer) {
+            return putString(peer.getPeerId()).putString(peer.getIpAddress())
+                    .putInt(peer.getPort()).putDouble(peer.getBandwidth());
+        }
+
+        /**
+         * Appends raw, already encoded field bytes.
+         */
+        public FrameWriter putRaw(byte[] bytes, int offset, int count) {
+            ensure(count);
+            System.arraycopy(bytes, offset, data, length, count);
+            length += count;
+            return this;
+        }
+
+        /**
+         * @return byte[] - The complete frame including its length prefix.
+         */
+        public byte[] toBytes() {
+            int bodyLength = length - 4;
+            data[0] = (byte) (bodyLength >>> 24);
+            data[1] = (byte) (bodyLength >>> 16);
+            data[2] = (byte) (bodyLength >>> 8);
+            data[3] = (byte) bodyLength;
+            return Arrays.copyOf(data, length);
+        }
+
+        /**
+         * @return byte[] - The fields written so far, without length prefix, opcode and request ID,
+         * for splicing into other frames with putRaw.
+         */
+        public byte[] fieldBytes() {
+            return Arrays.copyOfRange(data, 9, length);
+        }
+
+        /**
+         * Writes the complete frame to a stream (the caller flushes).
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            int bodyLength = length - 4;
+            data[0] = (byte) (bodyLength >>> 24);
+            data[1] = (byte) (bodyLength >>> 16);
+            data[2] = (byte) (bodyLength >>> 8);
+            data[3] = (byte) bodyLength;
+            out.write(data, 0, length);
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + extra, data.length * 2));
+            }
+        }
+    }
+
+    /**
+     * One received frame; the fields are read in the order they were written.
+     */
+    public static class Frame {
+        private final byte opcode;
+        private final int requestId;
+        private final ByteBuffer body;
+
+        /**
+         * Wraps a frame body (everything after the length prefix).
+         */
+        public Frame(byte[] data, int offset, int length) throws IOException {
+            if (length < 5) {
+                throw new IOException("Frame too short: " + length + " bytes");
+            }
+            body = ByteBuffer.wrap(data, offset, length);
+            opcode = body.get();
+            requestId = body.getInt();
+        }
+
+        public byte getOpcode() {
+            return opcode;
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+
+        public int getInt() {
+            return body.getInt();
+        }
+
+        public long getLong() {
+            return body.getLong();
+        }
+
+        public double getDouble() {
+            return body.getDouble();
+        }
+
+        public String getString() {
+            int count = body.getShort() & 0xFFFF;
+            String value = new String(body.array(), body.arrayOffset() + body.position(), count, StandardCharsets.UTF_8);
+            body.position(body.position() + count);
+            return value;
+        }
+
+        public List<String> getStrings() {
+            int count = body.getInt();
+            List<String> values = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                values.add(getString());
+            }
+            return values;
+        }
+
+        /**
+         * Reads the fields of a peer as written by FrameWriter.putPeer.
+         */
+        public PeerInfo getPeer() {
+            return new PeerInfo(getString(), getString(), getInt(), getDouble());
+        }
+    }
+
+    /**
+     * Reads one frame from a stream.
+     * @param in - The stream positioned at a length prefix.
+     * @return Frame - The frame, or null if the stream ended cleanly before a new frame.
+     * @throws IOException if the stream breaks inside a frame or the frame is too large.
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 5 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new Frame(body, 0, length);
+    }
+
+    /**
+     * Reads one text line byte by byte, without a buffered reader that could swallow the binary data
+     * following it (used for the negotiation line and the text download header).
+     * @param in - The raw stream.
+     * @return String - The line without its terminator, or null if the stream ended first.
+     */
+    public static String readTextLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            if (line.size() >= MAX_FRAME_LENGTH) {
+                throw new IOException("Text line too long");
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,116 @@
+// File: src/common/ContentHash.java
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The ContentHash class names file contents independently of file names. A content key has the form
+ * "sha256:<64 hex digits>:<size>", and a peer registers it next to the file's name like any other file,
+ * so the indexing servers shard, persist, replicate and expire it with the names; SEARCH_HASH looks it
+ * up. Every peer sharing the same bytes, under whatever name, is then a source for them, and a download
+ * can be checked against the key.
+ */
+public class ContentHash {
+    public static final String PREFIX = "sha256:";
+    private static final int HEX_LENGTH = 64;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * @param hash - The SHA-256 of the content in lower case hex.
+     * @param size - The content's length in bytes.
+     * @return String - The content key.
+     */
+    public static String key(String hash, long size) {
+        return PREFIX + hash + ":" + size;
+    }
+
+    /**
+     * @param value - A file name or content key.
+     * @return boolean - True if the value is a well-formed content key.
+     */
+    public static boolean isKey(String value) {
+        int sizeStart = PREFIX.length() + HEX_LENGTH + 1;
+        if (value.length() <= sizeStart || value.length() > sizeStart + 19 || !value.startsWith(PREFIX)
+                || value.charAt(sizeStart - 1) != ':') {
+            return false;
+        }
+        for (int i = PREFIX.length(); i < sizeStart - 1; i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        for (int i = sizeStart; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key - A well-formed content key.
+     * @return String - The SHA-256 in lower case hex.
+     */
+    public static String hashOf(String key) {
+        return key.substring(PREFIX.length(), PREFIX.length() + HEX_LENGTH);
+    }
+
+    /**
+     * @param key - A well-formed content key.
+     * @return long - The content's length in bytes.
+     */
+    public static long sizeOf(String key) {
+        return Long.parseLong(key.substring(PREFIX.length() + HEX_LENGTH + 1));
+    }
+
+    /**
+     * @return MessageDigest - A new SHA-256 digest, to hash content while it streams by.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every Java platform has it
+        }
+    }
+
+    /**
+     * @param digest - A digest that has seen the whole content.
+     * @return String - The digest in lower case hex.
+     */
+    public static String toHex(MessageDigest digest) {
+        byte[] bytes = digest.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >>> 4) & 0xF];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Reads a file and computes its content key.
+     * @param file - The file.
+     * @return String - The content key.
+     * @throws IOException if the file cannot be read.
+     */
+    public static String of(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        long size = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                size += n;
+            }
+        }
+        return key(toHex(digest), size);
+    }
+}
@@ -0,0 +1,62 @@
+// File: src/common/ExecutorMode.java
+package common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The ExecutorMode enum selects how the IndexingServer and the PeerServer family run their
+ * per-connection handlers. The handlers themselves stay blocking; only the threads that run them change.
+ */
+public enum ExecutorMode {
+    THREAD("thread"),   // A new platform thread for every connection (the original behaviour)
+    POOL("pool"),       // A cached pool of platform threads that are reused between connections
+    BOUNDED("bounded"), // A fixed number of platform threads; further connections wait in the queue
+    VIRTUAL("virtual"); // A new virtual thread for every connection
+
+    public static final int DEFAULT_POOL_SIZE = 64; // Worker count used by BOUNDED when none is given
+
+    private final String name; // Name used on the command line
+
+    ExecutorMode(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates the executor that runs connection handlers in this mode.
+     * @param poolSize - Number of worker threads, only used by BOUNDED.
+     * @return ExecutorService - The executor to submit handlers to.
+     */
+    public ExecutorService newExecutor(int poolSize) {
+        switch (this) {
+            case POOL:
+                return Executors.newCachedThreadPool();
+            case BOUNDED:
+                return Executors.newFixedThreadPool(poolSize);
+            case VIRTUAL:
+                return Executors.newVirtualThreadPerTaskExecutor();
+            default:
+                return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+        }
+    }
+
+    /**
+     * Looks up a mode by its command-line name.
+     * @param name - One of thread, pool, bounded or virtual.
+     * @return ExecutorMode - The matching mode.
+     * @throws IllegalArgumentException if the name is unknown.
+     */
+    public static ExecutorMode fromString(String name) {
+        for (ExecutorMode mode : values()) {
+            if (mode.name.equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown executor mode: " + name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,337 @@
+// File: src/common/Log.java
+package common;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Log class is the asynchronous logger of the servers and peers.
+ * A call only checks the level, claims a slot in a preallocated ring buffer and stores the message
+ * template with its arguments; a single writer thread formats the messages and prints them in batches,
+ * so request threads never wait for the console or a file, and never contend on the stream locks.
+ *
+ * Messages use "{}" placeholders, e.g. Log.info("Received request: {}", request), so nothing is
+ * concatenated for a message whose level is disabled. DEBUG and INFO messages are dropped (and counted)
+ * when the ring is full; WARN and ERROR wait for space. infoSampled logs only one in N calls.
+ *
+ * Configuration: the system properties p2p.log.level (debug, info, warn, error, off), p2p.log.sample (N),
+ * p2p.log.buffer (ring slots) and p2p.log.file (append every message to this file as well), or the
+ * setters below at startup. DEBUG and INFO go to System.out, WARN and ERROR to System.err.
+ */
+public final class Log {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+    private static final String[] LEVEL_NAMES = {"debug", "info", "warn", "error", "off"};
+
+    /**
+     * One ring slot, reused for every message that lands in it.
+     */
+    private static final class Slot {
+        volatile long published = -1; // Sequence of the message stored here, set last by the producer
+        int level;
+        int args;                      // Number of arguments stored, so a null argument still prints
+        String format;
+        Object arg1;
+        Object arg2;
+        Throwable error;
+    }
+
+    private static volatile int level = parseLevel(System.getProperty("p2p.log.level", "info"));
+    private static volatile int sampleEvery = Integer.getInteger("p2p.log.sample", 1);
+
+    private static final Slot[] ring;
+    private static final int mask;
+    private static final AtomicLong claimed = new AtomicLong();  // Next sequence to hand to a producer
+    private static volatile long consumed;                       // Next sequence the writer will format
+    private static volatile long printed;                        // Every sequence below this one is printed
+    private static volatile boolean writerSleeping;
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread writer;
+    private static volatile Writer file;                         // Optional copy of every message
+
+    static {
+        int size = Integer.highestOneBit(Math.max(1024, Integer.getInteger("p2p.log.buffer", 1 << 16)));
+        ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+        }
+        mask = size - 1;
+        String path = System.getProperty("p2p.log.file");
+        if (path != null) {
+            toFile(path);
+        }
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Sets the lowest level that is logged.
+     * @param name - One of debug, info, warn, error, off.
+     * @throws IllegalArgumentException if the name is unknown.
+     */
+    public static void setLevel(String name) {
+        level = parseLevel(name);
+    }
+
+    /**
+     * Logs only one in N infoSampled calls, chosen at random; 1 logs every call.
+     * @param every - The sampling rate N.
+     */
+    public static void setSampleEvery(int every) {
+        if (every < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1: " + every);
+        }
+        sampleEvery = every;
+    }
+
+    /**
+     * Appends every message to a file as well. The file is opened once and kept open.
+     * @param path - The file to append to.
+     */
+    public static void toFile(String path) {
+        try {
+            file = new BufferedWriter(new FileWriter(path, true));
+        } catch (IOException e) {
+            error("Error opening log file {}: {}", path, e.getMessage());
+        }
+    }
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    public static void debug(String message) {
+        log(DEBUG, 0, message, null, null, null);
+    }
+
+    public static void debug(String format, Object arg) {
+        log(DEBUG, 1, format, arg, null, null);
+    }
+
+    public static void debug(String format, Object arg1, Object arg2) {
+        log(DEBUG, 2, format, arg1, arg2, null);
+    }
+
+    public static void info(String message) {
+        log(INFO, 0, message, null, null, null);
+    }
+
+    public static void info(String format, Object arg) {
+        log(INFO, 1, format, arg, null, null);
+    }
+
+    public static void info(String format, Object arg1, Object arg2) {
+        log(INFO, 2, format, arg1, arg2, null);
+    }
+
+    /**
+     * INFO message for per-request hot paths, subject to the sampling rate.
+     */
+    public static void infoSampled(String format, Object arg) {
+        if (INFO >= level && (sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0)) {
+            log(INFO, 1, format, arg, null, null);
+        }
+    }
+
+    public static void warn(String message) {
+        log(WARN, 0, message, null, null, null);
+    }
+
+    public static void warn(String format, Object arg) {
+        log(WARN, 1, format, arg, null, null);
+    }
+
+    public static void warn(String format, Object arg1, Object arg2) {
+        log(WARN, 2, format, arg1, arg2, null);
+    }
+
+    public static void error(String message) {
+        log(ERROR, 0, message, null, null, null);
+    }
+
+    public static void error(String format, Object arg) {
+        log(ERROR, 1, format, arg, null, null);
+    }
+
+    public static void error(String format, Object arg1, Object arg2) {
+        log(ERROR, 2, format, arg1, arg2, null);
+    }
+
+    /**
+     * ERROR message followed by the stack trace of the exception (overload resolution picks this one
+     * over error(format, arg) whenever the second argument is a Throwable).
+     */
+    public static void error(String message, Throwable error) {
+        log(ERROR, 0, message, null, null, error);
+    }
+
+    private static void log(int messageLevel, int args, String format, Object arg1, Object arg2, Throwable error) {
+        if (messageLevel < level) {
+            return;
+        }
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                if (messageLevel < WARN) {
+                    dropped.increment(); // Never block a request for a routine message
+                    return;
+                }
+                Thread.yield(); // Warnings and errors wait for the writer to make room
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Slot slot = ring[(int) sequence & mask];
+        slot.level = messageLevel;
+        slot.args = args;
+        slot.format = format;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.error = error;
+        slot.published = sequence; // Publishes the fields above to the writer
+        if (writerSleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Writer loop: drains every published message, then prints the batch with one write per stream.
+     */
+    private static void writeLoop() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        long next = consumed;
+        long reportedDrops = 0;
+        while (true) {
+            Slot slot = ring[(int) next & mask];
+            if (slot.published == next) {
+                StringBuilder target = slot.level >= WARN ? err : out;
+                int start = target.length();
+                format(target, slot.format, slot.args, slot.arg1, slot.arg2);
+                target.append(System.lineSeparator());
+                if (slot.error != null) {
+                    StringWriter trace = new StringWriter();
+                    slot.error.printStackTrace(new PrintWriter(trace));
+                    target.append(trace);
+                }
+                writeFile(target, start);
+                slot.format = null;
+                slot.arg1 = null;
+                slot.arg2 = null;
+                slot.error = null;
+                consumed = ++next;
+                if (out.length() + err.length() < 1 << 16) {
+                    continue; // Keep collecting while more messages are ready
+                }
+            }
+
+            long drops = dropped.sum();
+            if (drops > reportedDrops) {
+                err.append("Log buffer full, dropped ").append(drops - reportedDrops).append(" messages")
+                        .append(System.lineSeparator());
+                reportedDrops = drops;
+            }
+            if (out.length() > 0) {
+                System.out.print(out);
+                System.out.flush();
+                out.setLength(0);
+            }
+            if (err.length() > 0) {
+                System.err.print(err);
+                System.err.flush();
+                err.setLength(0);
+            }
+            flushFile();
+            printed = next;
+            if (ring[(int) next & mask].published != next) {
+                // Nothing ready: sleep until a producer unparks us; the re-check closes the race with it
+                writerSleeping = true;
+                if (ring[(int) next & mask].published != next) {
+                    LockSupport.parkNanos(100_000_000L);
+                }
+                writerSleeping = false;
+            }
+        }
+    }
+
+    /**
+     * Replaces the "{}" placeholders of a template with the arguments, in order.
+     */
+    private static void format(StringBuilder target, String format, int args, Object arg1, Object arg2) {
+        int from = 0;
+        for (int i = 0; i < args; i++) {
+            int at = format.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            target.append(format, from, at).append(i == 0 ? arg1 : arg2);
+            from = at + 2;
+        }
+        target.append(format, from, format.length());
+    }
+
+    private static void writeFile(StringBuilder source, int start) {
+        Writer target = file;
+        if (target != null) {
+            try {
+                target.append(source, start, source.length());
+            } catch (IOException e) {
+                file = null;
+                System.err.println("Error writing log file: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void flushFile() {
+        Writer target = file;
+        if (target != null) {
+            try {
+                target.flush();
+            } catch (IOException e) {
+                file = null;
+                System.err.println("Error writing log file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Waits until the writer has printed every message logged so far, for at most a second.
+     */
+    public static void flush() {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (printed < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+}
@@ -0,0 +1,143 @@
+// File: src/common/ShardRing.java
+package common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ShardRing class maps file names to the indexing server (shard) that owns them, by consistent hashing.
+ * Every shard is placed on a 64-bit hash ring at many points (virtual nodes), and a file belongs to the
+ * shard of the first point at or after the file name's hash. Adding a shard therefore only takes over the
+ * ring segments in front of its own points, about 1/N of all names, and every other name keeps its shard.
+ * Shards are named "host:port"; peers and servers must use the same names and the same number of
+ * virtual nodes to agree on the owners.
+ */
+public class ShardRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128; // Points per shard, evens out the segment sizes
+
+    private final List<String> shards;
+    private final long[] points;   // Sorted hashes of all virtual nodes
+    private final String[] owners; // Shard of the virtual node at the same index
+
+    /**
+     * Constructor to build a ring with the default number of virtual nodes.
+     * @param shards - The shard names, e.g. "localhost:5000".
+     */
+    public ShardRing(List<String> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Constructor to build a ring.
+     * @param shards - The shard names, e.g. "localhost:5000".
+     * @param virtualNodes - Number of points each shard gets on the ring.
+     * @throws IllegalArgumentException if there is no shard.
+     */
+    public ShardRing(List<String> shards, int virtualNodes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one shard");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+
+        // Sort the (hash, shard) pairs by hash
+        int count = shards.size() * virtualNodes;
+        long[] hashes = new long[count];
+        Integer[] order = new Integer[count];
+        for (int s = 0; s < shards.size(); s++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                int i = s * virtualNodes + v;
+                hashes[i] = hash(shards.get(s) + "#" + v);
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        points = new long[count];
+        owners = new String[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = shards.get(order[i] / virtualNodes);
+        }
+    }
+
+    /**
+     * Parses a comma-separated shard list such as "localhost:5000,localhost:5001".
+     * @param spec - The shard list.
+     * @return ShardRing - The ring over those shards.
+     */
+    public static ShardRing parse(String spec) {
+        List<String> shards = new ArrayList<>();
+        for (String shard : spec.split(",")) {
+            if (!shard.trim().isEmpty()) {
+                shards.add(shard.trim());
+            }
+        }
+        return new ShardRing(shards);
+    }
+
+    /**
+     * @param filename - The file name.
+     * @return String - The shard that owns the file name.
+     */
+    public String shardFor(String filename) {
+        int i = Arrays.binarySearch(points, hash(filename));
+        if (i < 0) {
+            i = -i - 1; // First point after the hash
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * Groups file names by their owning shard, keeping the order of the names within each group.
+     * @param filenames - The file names.
+     * @return Map<String, List<String>> - Shard to the names it owns; shards without names are left out.
+     */
+    public Map<String, List<String>> split(List<String> filenames) {
+        Map<String, List<String>> byShard = new LinkedHashMap<>();
+        for (String filename : filenames) {
+            byShard.computeIfAbsent(shardFor(filename), shard -> new ArrayList<>()).add(filename);
+        }
+        return byShard;
+    }
+
+    /**
+     * @return List<String> - The shard names, in the order they were given.
+     */
+    public List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * Splits a "host:port" shard name.
+     * @param shard - The shard name.
+     * @return String[] - The host and the port.
+     */
+    public static String[] hostAndPort(String shard) {
+        int colon = shard.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port but got: " + shard);
+        }
+        return new String[]{shard.substring(0, colon), shard.substring(colon + 1)};
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, followed by a finalizer that spreads similar names
+     * (file1.txt, file2.txt, ...) over the whole ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,516 @@
+// File: src/peer/ChunkedDownload.java
+package peer;
+
+import common.BinaryCodec;
+import common.BinaryCodec.Frame;
+import common.BinaryCodec.FrameWriter;
+import common.ContentHash;
+import common.Log;
+import common.PeerInfo;
+
+import peer.ConnectionPool.Connection;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * ChunkedDownload fetches one file from several peers at the same time. The file is split into chunks of
+ * CHUNK_SIZE bytes, and every peer gets its own worker thread that asks its peer for one chunk after the
+ * other with range requests (see FileRequestHandler) and writes each chunk at its position in the file's
+ * DownloadSink, which becomes the target file once every chunk is in. Workers pull the next chunk when they
+ * are done with the last one, so a fast peer serves more chunks than a slow one and the download gets close
+ * to the sum of the peers' bandwidth.
+ *
+ * A peer that fails, stalls for READ_TIMEOUT_MILLIS or reports another file size than the first peer
+ * loses its worker, and its chunk goes back to the queue. Once the queue is empty, idle workers also
+ * fetch the chunks still in flight at other peers, at most DUPLICATES copies each; the first copy to
+ * arrive is written and the others are abandoned, so one slow peer cannot hold up the end of the download.
+ *
+ * Every chunk written is listed in a ResumeRecord next to the target. A download that ends early keeps the
+ * part file and its record, and the next download of the same name or key into that target only fetches
+ * the chunks still missing.
+ *
+ * The range requests go through the client's ConnectionPool, so a worker sends all its requests on the
+ * same connection to its peer.
+ */
+class ChunkedDownload {
+    static final int CHUNK_SIZE = 1 << 20;           // Bytes per range request
+    private static final int DUPLICATES = 2;          // Workers that may fetch the same chunk at the end
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    private final List<PeerInfo> peers;  // Sources, best first
+    private final String requested;      // Name or content key to ask the peers for
+    private final Path target;           // Name of the complete file
+    private final ConnectionPool pool;   // Connections to the peers, binary or text
+    private final ResumeRecord record;   // Chunks already in the target
+
+    // Download state, guarded by this
+    private long size = -1;              // File size, known after the first chunk
+    private int chunks;
+    private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+    private boolean[] done;              // Chunks claimed by the first copy to arrive
+    private int[] copies;                // Workers fetching each chunk
+    private long[] startedAt;            // When the oldest copy of each chunk was asked for
+    private int remaining;               // Chunks not written yet
+    private int workers;                 // Workers still running
+    private IOException failure;         // Write error that ends the download
+    private boolean stopped;             // Set once the download no longer needs the workers
+    private DownloadSink sink;           // Receives the chunks, set before the workers start
+    private boolean kept;                // Whether run left chunks in the part file for the next attempt
+
+    /**
+     * @param peers     The peers sharing the file, best first.
+     * @param requested Name or content key to ask the peers for.
+     * @param target    File to create or replace; an earlier download of it may have left chunks to resume.
+     * @param pool      Connections to the peers, which also tells whether to use frames or text lines.
+     */
+    ChunkedDownload(List<PeerInfo> peers, String requested, Path target, ConnectionPool pool) {
+        this.peers = peers;
+        this.requested = requested;
+        this.target = target;
+        this.pool = pool;
+        this.record = new ResumeRecord(target, requested, CHUNK_SIZE);
+    }
+
+    /**
+     * Downloads the file.
+     *
+     * @param key Content key the file must match, or null to accept any content of consistent size.
+     * @return True if every chunk was written (and the file matches the key). Otherwise the chunks written
+     *         so far are kept for the next attempt, unless there are none or the file does not match the key.
+     */
+    boolean run(String key) {
+        boolean complete = false;
+        boolean committed = false;
+        boolean discard = false;
+        long start = System.nanoTime();
+        boolean existed = Files.exists(DownloadSink.partOf(target));
+        record.load();
+        try (record) {
+            sink = DownloadSink.open(target);
+            if (key != null) {
+                setSize(ContentHash.sizeOf(key));
+            }
+            List<Worker> started = new ArrayList<>();
+            try {
+                synchronized (this) {
+                    workers = peers.size();
+                }
+                for (PeerInfo peer : peers) {
+                    Worker worker = new Worker(peer);
+                    started.add(worker);
+                    worker.start();
+                }
+                synchronized (this) {
+                    while (workers > 0 && failure == null && (size < 0 || remaining > 0)) {
+                        wait();
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    complete = size >= 0 && remaining == 0;
+                }
+            } finally {
+                stop(started);
+            }
+            if (!complete) {
+                Log.info("No peer could deliver the rest of {}.", requested);
+                return false;
+            }
+            if (key != null && !key.equals(ContentHash.of(sink.getPath()))) {
+                Log.warn("File {} assembled from {} peers does not match its content key, discarded.", target, peers.size());
+                discard = true;
+                return false;
+            }
+            sink.commit();
+            committed = true;
+            if (Log.isEnabled(Log.INFO)) {
+                long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+                StringBuilder sources = new StringBuilder();
+                for (Worker worker : started) {
+                    sources.append(' ').append(worker.peer.getPeerId()).append('=').append(worker.chunksWritten);
+                }
+                Log.info("Downloaded {} bytes in {} ms", size, millis);
+                Log.info("Download ran at {} KB/s, chunks per peer:{}", size * 1000 / millis / 1024, sources);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.error("Error downloading file:", e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            boolean started = record.isStarted(); // Otherwise the record of an earlier attempt, if any, is untouched
+            boolean empty = record.chunksDone() == 0;
+            if (committed || discard || (started && empty)) {
+                record.delete();
+            }
+            if (sink != null && !committed) {
+                if (discard || (empty && (started || !existed))) {
+                    sink.discard();
+                } else {
+                    sink.close();
+                    kept = !empty;
+                    if (started) {
+                        Log.info("Kept {} chunks of {} for the next attempt.", record.chunksDone(), target);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if run ended early but left chunks in the part file, of this or an earlier attempt, that
+     *         the next attempt resumes from. A whole-file download into the same target would lose them.
+     */
+    boolean keptChunks() {
+        return kept;
+    }
+
+    /**
+     * Stops the workers and waits until they are gone, so none of them writes to the part file or the
+     * record once the download has moved on. A worker stuck on a stalled peer is cut off by closing its
+     * connection, again until it ends, in case it had not sent its request yet.
+     */
+    private void stop(List<Worker> started) {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        for (Worker worker : started) {
+            while (worker.isAlive()) {
+                worker.abort();
+                try {
+                    worker.join(100);
+                } catch (InterruptedException e) {
+                    interrupted = true; // Waited for anyway, the part file is closed right after
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fixes the file size, sizes the part file and queues the chunks it does not hold yet. The first size
+     * reported wins.
+     *
+     * @return True if the size matches the one already known.
+     */
+    private synchronized boolean setSize(long fileSize) {
+        if (size >= 0) {
+            return size == fileSize;
+        }
+        size = fileSize;
+        chunks = (int) Math.max(1, (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        done = new boolean[chunks];
+        copies = new int[chunks];
+        startedAt = new long[chunks];
+        try {
+            sink.allocate(fileSize);
+        } catch (IOException e) {
+            fail(e);
+        }
+        BitSet resumed = record.resume(fileSize);
+        for (int i = 0; i < chunks; i++) {
+            if (resumed.get(i)) {
+                done[i] = true;
+            } else {
+                pending.add(i);
+            }
+        }
+        remaining = pending.size();
+        if (remaining < chunks) {
+            Log.info("Resuming {} with {} chunks already downloaded.", requested, (chunks - remaining) + " of " + chunks);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Hands a worker its next chunk: a queued one, or at the end a copy of the chunk in flight the longest.
+     * Waits while there is nothing to do but other workers may still fail and give chunks back.
+     *
+     * @return The chunk, or -1 if the worker is no longer needed.
+     */
+    private synchronized int next() throws InterruptedException {
+        while (true) {
+            if (remaining == 0 || failure != null || stopped) {
+                return -1;
+            }
+            Integer chunk = pending.poll();
+            if (chunk == null) {
+                int oldest = -1;
+                for (int i = 0; i < chunks; i++) {
+                    if (!done[i] && copies[i] > 0 && copies[i] < DUPLICATES
+                            && (oldest < 0 || startedAt[i] < startedAt[oldest])) {
+                        oldest = i;
+                    }
+                }
+                chunk = oldest >= 0 ? oldest : null;
+            }
+            if (chunk != null) {
+                if (copies[chunk]++ == 0) {
+                    startedAt[chunk] = System.nanoTime();
+                }
+                return chunk;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * @return True if the first copy of the chunk has arrived, or the download is over; later copies stop early.
+     */
+    private synchronized boolean isDone(int chunk) {
+        return done[chunk] || stopped;
+    }
+
+    /**
+     * Claims a chunk for writing.
+     *
+     * @return True for the first copy to arrive, which must then be written, unless the download is over.
+     */
+    private synchronized boolean claim(int chunk) {
+        copies[chunk]--;
+        if (done[chunk] || stopped) {
+            notifyAll();
+            return false;
+        }
+        done[chunk] = true;
+        return true;
+    }
+
+    private synchronized void written() {
+        remaining--;
+        notifyAll();
+    }
+
+    /**
+     * Gives a chunk back after its worker failed.
+     */
+    private synchronized void release(int chunk) {
+        copies[chunk]--;
+        if (!done[chunk] && copies[chunk] == 0) {
+            pending.addFirst(chunk);
+        }
+        notifyAll();
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    private synchronized void workerStopped() {
+        workers--;
+        notifyAll();
+    }
+
+    /**
+     * Fetches chunks from one peer until none are left or the peer fails.
+     */
+    private final class Worker extends Thread {
+        private final PeerInfo peer;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private volatile Connection connection;  // Connection of the current request
+        private volatile int chunksWritten;
+
+        Worker(PeerInfo peer) {
+            super("download-" + peer.getPeerId());
+            setDaemon(true);
+            this.peer = peer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!knowsSize()) {
+                    return;
+                }
+                int chunk;
+                while ((chunk = next()) >= 0) {
+                    long offset = (long) chunk * CHUNK_SIZE;
+                    int length;
+                    synchronized (ChunkedDownload.this) {
+                        length = (int) Math.min(CHUNK_SIZE, size - offset);
+                    }
+                    int received;
+                    try {
+                        received = fetch(chunk, offset, length);
+                    } catch (IOException e) {
+                        release(chunk);
+                        Log.info("Peer {} failed, its chunks go to the other peers: {}", peer.getPeerId(), e.getMessage());
+                        return;
+                    }
+                    if (received < length) {
+                        release(chunk); // Abandoned, another copy arrived first
+                        continue;
+                    }
+                    if (claim(chunk)) {
+                        try {
+                            record.writing();
+                            sink.write(ByteBuffer.wrap(buffer, 0, length), offset);
+                            record.written(chunk);
+                        } catch (IOException e) {
+                            fail(e);
+                            return;
+                        }
+                        chunksWritten++;
+                        written();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                workerStopped();
+            }
+        }
+
+        /**
+         * Waits for the file size, learning it from this peer if nobody knows it yet.
+         *
+         * @return False if this peer cannot take part.
+         */
+        private boolean knowsSize() throws InterruptedException {
+            synchronized (ChunkedDownload.this) {
+                // The best peer is asked first; the others wait rather than all probing at once
+                while (size < 0 && peers.get(0) != peer && workers == peers.size() && failure == null && !stopped) {
+                    ChunkedDownload.this.wait(READ_TIMEOUT_MILLIS);
+                    if (size < 0) {
+                        break;
+                    }
+                }
+                if (size >= 0 || stopped) {
+                    return !stopped;
+                }
+            }
+            try {
+                long fileSize = send(0, 0).getAnswer();
+                giveBack(); // An empty range, nothing left to read
+                if (fileSize < 0) {
+                    Log.info("Peer {} does not have the file: {}", peer.getPeerId(), requested);
+                    return false;
+                }
+                if (!setSize(fileSize)) {
+                    Log.info("Peer {} has another file of that name, skipped.", peer.getPeerId());
+                    return false;
+                }
+                return true;
+            } catch (IOException e) {
+                Log.info("Peer {} failed: {}", peer.getPeerId(), e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Fetches one chunk into the buffer.
+         *
+         * @return Number of bytes received; less than the length if another copy of the chunk arrived first.
+         */
+        private int fetch(int chunk, long offset, int length) throws IOException {
+            boolean reusable = false;
+            try {
+                long fileSize = send(offset, length).getAnswer();
+                InputStream in = connection.in;
+                if (fileSize < 0) {
+                    throw new IOException("the file is gone");
+                }
+                if (!setSize(fileSize)) {
+                    throw new IOException("the file has another size there");
+                }
+                int received = 0;
+                while (received < length) {
+                    if (isDone(chunk)) {
+                        return received;
+                    }
+                    int n = in.read(buffer, received, Math.min(64 * 1024, length - received));
+                    if (n < 0) {
+                        throw new EOFException("connection closed after " + received + " of " + length + " bytes");
+                    }
+                    received += n;
+                }
+                reusable = true;
+                return received;
+            } finally {
+                if (reusable) {
+                    giveBack();
+                } else if (connection != null) {
+                    connection.close(); // Bytes of the chunk are still on their way
+                }
+            }
+        }
+
+        /**
+         * Sends a range request to the peer on a pooled connection; a stalled peer counts as failed.
+         */
+        private Connection send(long offset, long length) throws IOException {
+            return pool.send(peer.getIpAddress(), peer.getPort(), READ_TIMEOUT_MILLIS, connection -> {
+                this.connection = connection;
+                return request(connection, offset, length);
+            });
+        }
+
+        private void giveBack() {
+            Connection current = connection;
+            connection = null;
+            pool.release(current);
+        }
+
+        /**
+         * Ends the current request, if any, once the download no longer needs this worker.
+         */
+        void abort() {
+            Connection current = connection;
+            if (current != null && isAlive()) {
+                current.close();
+            }
+        }
+
+        /**
+         * Asks for a range of the file and reads the answer header.
+         *
+         * @return The size of the whole file, or -1 if the peer does not have it.
+         */
+        private long request(Connection connection, long offset, long length) throws IOException {
+            InputStream in = connection.in;
+            OutputStream os = connection.out;
+            if (pool.isBinary()) {
+                new FrameWriter(BinaryCodec.GET_RANGE, 0).putString(requested).putLong(offset).putLong(length).writeTo(os);
+                os.flush();
+                Frame response = BinaryCodec.readFrame(new DataInputStream(in));
+                if (response == null) {
+                    throw new EOFException("Peer closed the connection");
+                }
+                if (response.getOpcode() == BinaryCodec.FILE_NOT_FOUND) {
+                    return -1;
+                }
+                if (response.getOpcode() != BinaryCodec.FILE_FOUND) {
+                    throw new IOException("Unexpected response opcode " + response.getOpcode());
+                }
+                return response.getLong();
+            }
+
+            os.write((FileRequestHandler.RANGE + " " + offset + " " + length + " " + requested + "\n").getBytes());
+            os.flush();
+            String response = BinaryCodec.readTextLine(in);
+            if ("FOUND".equals(response)) {
+                return Long.parseLong(BinaryCodec.readTextLine(in));
+            } else if ("NOT_FOUND".equals(response)) {
+                return -1; // Also the answer of a peer too old to know ranges
+            }
+            throw new IOException("Unexpected response: " + response);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+// File: src/peer/ConnectionPool.java
+package peer;
+
+import common.BinaryCodec;
+import common.Log;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ConnectionPool class keeps connections to other peers' file servers open between downloads.
+ * FileRequestHandler serves one request after the other on a connection until the client closes it or it
+ * stays idle for FileRequestHandler.IDLE_TIMEOUT_MILLIS, so fetching many small files or chunks from the
+ * same peer costs one TCP handshake instead of one per file, and the later transfers skip slow start.
+ *
+ * A connection is taken for one request and given back with release once the whole answer has been read;
+ * a connection whose answer was not read to the end must be closed instead. At most MAX_IDLE_PER_PEER idle
+ * connections are kept per peer, and they are dropped after IDLE_MILLIS, before the peer's own timeout.
+ * A peer may still have closed an idle connection, e.g. because it restarted or serves one request per
+ * connection like older peers, so a request that fails on a reused connection is sent again once on a new
+ * one. In binary mode the switch to frames is made once, when a connection is opened.
+ */
+class ConnectionPool implements Closeable {
+    static final int MAX_IDLE_PER_PEER = 4;          // Idle connections kept per peer
+    private static final long IDLE_MILLIS = 10_000;   // Below the peers' idle timeout
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final boolean binary;                                              // Whether connections speak frames
+    private final Map<String, ArrayDeque<Connection>> idle = new HashMap<>();  // "host:port" to idle connections, newest last
+    private boolean closed;
+
+    /**
+     * @param binary Whether to switch new connections to binary frames.
+     */
+    ConnectionPool(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * @return True if the connections speak binary frames.
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Sends one request on a connection and reads the answer header.
+     */
+    interface Request {
+        /**
+         * @return The value of the answer header, e.g. the file size.
+         */
+        long send(Connection connection) throws IOException;
+    }
+
+    /**
+     * Sends a request to a peer on one of its idle connections, or on a new one.
+     *
+     * @param host              Address of the peer.
+     * @param port              Port of the peer's file server.
+     * @param readTimeoutMillis Read timeout for the answer, 0 for none.
+     * @param request           Writes the request and reads the answer header.
+     * @return The connection, positioned after the answer header, which getAnswer returns.
+     * @throws IOException if the request failed on a new connection.
+     */
+    Connection send(String host, int port, int readTimeoutMillis, Request request) throws IOException {
+        String peer = host + ":" + port;
+        Connection connection = take(peer);
+        if (connection != null) {
+            try {
+                return exchange(connection, readTimeoutMillis, request);
+            } catch (IOException e) {
+                // Most likely closed by the peer while idle; its other idle connections are suspect too
+                Log.info("Reused connection to {} failed, reconnecting: {}", peer, e.getMessage());
+                connection.close();
+                dropIdle(peer);
+            }
+        }
+        connection = open(peer, host, port);
+        try {
+            return exchange(connection, readTimeoutMillis, request);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private static Connection exchange(Connection connection, int readTimeoutMillis, Request request) throws IOException {
+        connection.socket.setSoTimeout(readTimeoutMillis);
+        connection.answer = request.send(connection);
+        return connection;
+    }
+
+    /**
+     * Gives a connection back after its answer was read to the end.
+     *
+     * @param connection The connection.
+     */
+    void release(Connection connection) {
+        synchronized (this) {
+            ArrayDeque<Connection> connections = idle.computeIfAbsent(connection.peer, p -> new ArrayDeque<>());
+            if (!closed && connections.size() < MAX_IDLE_PER_PEER && !connection.socket.isClosed()) {
+                connection.idleSince = System.nanoTime();
+                connections.addLast(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * @return The most recently used idle connection to the peer, or null if there is none.
+     */
+    private synchronized Connection take(String peer) {
+        ArrayDeque<Connection> connections = idle.get(peer);
+        if (connections == null || connections.isEmpty()) {
+            return null;
+        }
+        Connection connection = connections.pollLast();
+        if (System.nanoTime() - connection.idleSince < IDLE_MILLIS * 1_000_000) {
+            return connection;
+        }
+        connection.close();
+        dropIdle(peer); // The others were given back earlier, so they are even older
+        return null;
+    }
+
+    private synchronized void dropIdle(String peer) {
+        ArrayDeque<Connection> connections = idle.remove(peer);
+        if (connections != null) {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Opens a new connection and, in binary mode, switches it to frames.
+     */
+    private Connection open(String peer, String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            Connection connection = new Connection(peer, socket);
+            if (binary) {
+                connection.out.write((BinaryCodec.HELLO + "\n").getBytes());
+                connection.out.flush();
+                String answer = BinaryCodec.readTextLine(connection.in);
+                if (!BinaryCodec.HELLO_OK.equals(answer)) {
+                    throw new IOException("Peer refused binary framing: " + answer);
+                }
+            }
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the idle connections; connections in use are closed when they are given back.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (ArrayDeque<Connection> connections : idle.values()) {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+        idle.clear();
+    }
+
+    /**
+     * One connection to a peer's file server.
+     */
+    static final class Connection implements Closeable {
+        private final String peer;     // "host:port"
+        private final Socket socket;
+        final InputStream in;          // Answer headers and file bytes are read through the same buffer
+        final OutputStream out;
+        private long idleSince;        // When it was last given back
+        private long answer;           // Value of the last answer header
+
+        private Connection(String peer, Socket socket) throws IOException {
+            this.peer = peer;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * @return The value the request read from the answer header, e.g. the file size or -1.
+         */
+        long getAnswer() {
+            return answer;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package peer;
 
+import common.Log;
 import common.PeerInfo;
 
 import java.io.IOException;
@@ -63,13 +64,13 @@ public class DirectoryWatcher implements Runnable {
 
                     // Handle file creation event
                     if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-                        System.out.println("File created: " + filename);
+                        Log.info("File created: {}", filename);
                         // Register the newly created file with the indexing server
                         client.registerFiles(Arrays.asList(filename.toString()));
                     }
                     // Handle file deletion event
                     else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                        System.out.println("File deleted: " + filename);
+                        Log.info("File deleted: {}", filename);
                         // Deregister the deleted file from the indexing server
                         client.deregisterFiles(Arrays.asList(filename.toString()));
                     }
@@ -83,8 +84,7 @@ public class DirectoryWatcher implements Runnable {
             }
 
         } catch (IOException | InterruptedException e) {
-            System.err.println("Error in DirectoryWatcher:");
-            e.printStackTrace();  // Log any exceptions that occur during the directory monitoring process
+            Log.error("Error in DirectoryWatcher:", e);  // Log any exceptions that occur during the directory monitoring process
         }
     }
 }
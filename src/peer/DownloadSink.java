@@ -0,0 +1,136 @@
+// File: src/peer/DownloadSink.java
+package peer;
+
+import common.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * DownloadSink receives the bytes of a download until the file is complete. They go to "name.part" next to
+ * the target, which is set to the file's size as soon as it is known, so any number of receiver threads can
+ * write their parts at any position and in any order with positional FileChannel writes, without a
+ * reassembly buffer and without the file growing write by write. commit then renames the part file to the
+ * target in one atomic move, so the target name only ever holds a complete file, and an earlier copy of
+ * the file stays in place until then.
+ *
+ * Setting the size makes a sparse file on most file systems rather than reserving the blocks, which Java
+ * has no call for; a full disk still shows up as a failed write.
+ */
+class DownloadSink implements Closeable {
+    private final Path target;          // Name of the complete file
+    private final Path part;            // File receiving the bytes
+    private final FileChannel channel;
+
+    private DownloadSink(Path target, Path part, FileChannel channel) {
+        this.target = target;
+        this.part = part;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the part file of a download, creating it and its directory if needed. Bytes already in it are
+     * kept for a download that resumes.
+     *
+     * @param target Name the complete file gets.
+     * @return The sink.
+     * @throws IOException if the part file cannot be opened.
+     */
+    static DownloadSink open(Path target) throws IOException {
+        Path part = partOf(target);
+        Path directory = part.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        return new DownloadSink(target, part, FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+    }
+
+    /**
+     * @param target Name the complete file gets.
+     * @return The file the download is written to until then.
+     */
+    static Path partOf(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    /**
+     * @return The part file, e.g. to hash it before commit.
+     */
+    Path getPath() {
+        return part;
+    }
+
+    /**
+     * Sets the part file to the size of the file being downloaded.
+     *
+     * @param size Size of the complete file.
+     * @throws IOException if the part file cannot be resized.
+     */
+    void allocate(long size) throws IOException {
+        long current = channel.size();
+        if (current > size) {
+            channel.truncate(size);
+        } else if (current < size) {
+            channel.write(ByteBuffer.allocate(1), size - 1); // Past the bytes written so far, so nothing is lost
+        }
+    }
+
+    /**
+     * Writes bytes at a position. Safe to call from several threads at once.
+     *
+     * @param data     The bytes; its position is advanced to its limit.
+     * @param position Offset in the file of the first byte.
+     * @throws IOException if the bytes cannot be written.
+     */
+    void write(ByteBuffer data, long position) throws IOException {
+        long offset = position - data.position();
+        while (data.hasRemaining()) {
+            channel.write(data, offset + data.position());
+        }
+    }
+
+    /**
+     * Closes the part file and moves it to the target name, replacing an earlier copy.
+     *
+     * @throws IOException if the part file cannot be moved.
+     */
+    void commit() throws IOException {
+        channel.close();
+        try {
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Closes and deletes the part file.
+     */
+    void discard() {
+        close();
+        try {
+            Files.deleteIfExists(part);
+        } catch (IOException e) {
+            Log.warn("Could not delete the partial download {}: {}", part, e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the part file and leaves it in place, for a download that resumes later.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Could not close {}: {}", part, e.getMessage());
+        }
+    }
+}
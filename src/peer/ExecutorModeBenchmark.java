@@ -0,0 +1,190 @@
+// File: src/peer/ExecutorModeBenchmark.java
+package peer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ExecutorModeBenchmark class compares the IndexingServer's connection handling modes.
+ * For each mode it starts the server in a child JVM, holds many connections open at the same time,
+ * sends SEARCH requests over all of them and reports the server's thread count, resident memory
+ * and the p50/p99 search latency. The results are appended to a CSV file.
+ */
+public class ExecutorModeBenchmark {
+
+    private final int connections;            // Number of simultaneously open connections
+    private final int searchesPerConnection;  // SEARCH requests sent over each connection
+    private final int port;                   // Port the child server listens on
+    private final String filename = "bench.txt"; // File registered before the run and searched for
+
+    public ExecutorModeBenchmark(int connections, int searchesPerConnection, int port) {
+        this.connections = connections;
+        this.searchesPerConnection = searchesPerConnection;
+        this.port = port;
+    }
+
+    /**
+     * Runs the benchmark against one server mode.
+     *
+     * @param mode One of thread, pool, bounded, virtual (executor modes) or nio.
+     * @return A CSV line with the measurements for this mode.
+     */
+    public String runMode(String mode) throws IOException, InterruptedException {
+        String option = mode.equals("nio") ? "--io=nio" : "--executor=" + mode;
+        String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+                "server.IndexingServer", "--port=" + port, option)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        try {
+            waitForServer();
+            sendLine("REGISTER BenchPeer localhost 6000 100.0 " + filename);
+
+            long[] latencies = new long[connections * searchesPerConnection];
+            CountDownLatch connected = new CountDownLatch(connections);
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(connections);
+            String[] idleStats = new String[2];
+
+            // Virtual threads keep the client side cheap, so the server is the only thing being measured
+            ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+            for (int c = 0; c < connections; c++) {
+                int offset = c * searchesPerConnection;
+                clients.execute(() -> {
+                    try (Socket socket = new Socket("localhost", port);
+                         PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                        connected.countDown();
+                        start.await();
+                        for (int i = 0; i < searchesPerConnection; i++) {
+                            long begin = System.nanoTime();
+                            out.println("SEARCH " + filename);
+                            int count = Integer.parseInt(in.readLine().split(" ")[1]);
+                            for (int p = 0; p < count; p++) {
+                                in.readLine();
+                            }
+                            latencies[offset + i] = System.nanoTime() - begin;
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        connected.countDown();
+                        Arrays.fill(latencies, offset, offset + searchesPerConnection, -1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+
+            connected.await();
+            Thread.sleep(500); // Let the server settle with every connection open
+            idleStats[0] = readProcStatus(server.pid(), "Threads:");
+            idleStats[1] = readProcStatus(server.pid(), "VmRSS:");
+
+            start.countDown();
+            done.await();
+            clients.shutdown();
+            clients.awaitTermination(60, TimeUnit.SECONDS);
+
+            long errors = Arrays.stream(latencies).filter(l -> l < 0).count();
+            long[] ok = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+            double p50 = ok.length == 0 ? -1 : ok[(int) (ok.length * 0.50)] / 1_000_000.0;
+            double p99 = ok.length == 0 ? -1 : ok[Math.min(ok.length - 1, (int) (ok.length * 0.99))] / 1_000_000.0;
+
+            System.out.printf("%-8s connections=%d threads=%s rss=%s p50=%.3f ms p99=%.3f ms errors=%d%n",
+                    mode, connections, idleStats[0], idleStats[1], p50, p99, errors);
+            return String.format("%s,%d,%s,%s,%.3f,%.3f,%d", mode, connections,
+                    idleStats[0], idleStats[1].replace(" kB", ""), p50, p99, errors);
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * Polls the server port until the child JVM accepts connections.
+     */
+    private void waitForServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private void sendLine(String line) throws IOException {
+        try (Socket socket = new Socket("localhost", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            out.println(line);
+            in.readLine();
+        }
+    }
+
+    /**
+     * Reads one field of /proc/[pid]/status (Linux only).
+     *
+     * @return The field value, or "n/a" where /proc is not available.
+     */
+    private static String readProcStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith(field)) {
+                    return line.substring(field.length()).trim();
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux; fall through
+        }
+        return "n/a";
+    }
+
+    /**
+     * Main method to compare the modes.
+     *
+     * @param args Command-line arguments for configuring the benchmark.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.out.println("Usage: java peer.ExecutorModeBenchmark <connections> <searchesPerConnection> <logFilePath> [modes...]");
+            System.exit(1);
+        }
+
+        int connections = Integer.parseInt(args[0]);
+        int searchesPerConnection = Integer.parseInt(args[1]);
+        String logFilePath = args[2];
+        List<String> modes = args.length > 3
+                ? Arrays.asList(args).subList(3, args.length)
+                : Arrays.asList("thread", "pool", "bounded", "virtual", "nio");
+
+        ExecutorModeBenchmark benchmark = new ExecutorModeBenchmark(connections, searchesPerConnection, 5099);
+        List<String> results = new ArrayList<>();
+        for (String mode : modes) {
+            results.add(benchmark.runMode(mode));
+        }
+
+        boolean fileExists = new File(logFilePath).exists();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(logFilePath, true))) {
+            if (!fileExists) {
+                writer.println("Mode,Connections,Threads,RssKb,P50Ms,P99Ms,Errors");
+            }
+            results.forEach(writer::println);
+        }
+        System.out.println("Benchmark completed. Check " + logFilePath + " for results.");
+    }
+}
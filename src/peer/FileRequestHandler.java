@@ -1,16 +1,48 @@
 package peer;
 
+import common.BinaryCodec;
+import common.BinaryCodec.Frame;
+import common.BinaryCodec.FrameWriter;
+import common.ContentHash;
+import common.ExecutorMode;
+import common.Log;
+
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * The FileRequestHandler class handles individual file requests from peers.
  * It listens for file requests, checks if the requested file exists in the peer's shared directory, and sends the file to the requesting client.
  * If the file does not exist, it informs the client that the file was not found.
+ * A client that opens with the "PROTOCOL BINARY" line asks for the file with a GET_FILE frame instead.
+ * A content key (see ContentHash) may be asked for instead of a name; it is served from whichever shared
+ * file has that content according to the peer's HashCache.
+ * A part of a file is asked for with the line "GET_RANGE offset length name" or a GET_RANGE frame. The
+ * answer is the same FOUND header with the size of the whole file, followed by the requested bytes only
+ * (fewer if the range goes past the end of the file), so a client can fetch a file from several peers.
+ * A connection serves one request after the other, so clients can keep it open for their next file (see
+ * ConnectionPool). It is closed when the client closes it or sends nothing for IDLE_TIMEOUT_MILLIS. A
+ * waiting connection holds its thread, which only matters when the threads are a fixed pool: there the
+ * wait is cut to BOUNDED_IDLE_TIMEOUT_MILLIS (see idleTimeoutFor), long enough for a client's next chunk or
+ * file in a batch but too short for idle pooled connections to keep the workers from new clients.
  */
 public class FileRequestHandler implements Runnable {
+    public static final String RANGE = "GET_RANGE";    // Text request for a part of a file
+    private static final int COPY_BUFFER = 256 * 1024; // Chunk size for sockets that have no channel
+    static final int IDLE_TIMEOUT_MILLIS = 15_000;     // How long a connection waits for its next request
+    static final int BOUNDED_IDLE_TIMEOUT_MILLIS = 200; // The same on a bounded executor, where it holds a worker
+
     private Socket clientSocket;      // The socket for client-server communication
     private String sharedDirectory;   // The path to the peer's shared directory
+    private LoadReporter load;        // Told about every upload, null if the load is not reported
+    private HashCache hashes;         // Finds files by content key, null if they are only served by name
+    private int idleTimeoutMillis;    // How long this connection waits for a request
 
     /**
      * Constructor to initialize the FileRequestHandler with the client socket and shared directory.
@@ -19,68 +51,250 @@ public class FileRequestHandler implements Runnable {
      * @param sharedDirectory The directory where the peer's shared files are stored.
      */
     public FileRequestHandler(Socket clientSocket, String sharedDirectory) {
+        this(clientSocket, sharedDirectory, null);
+    }
+
+    /**
+     * Constructor to initialize the FileRequestHandler with the client socket, shared directory and the
+     * reporter that counts this peer's uploads.
+     *
+     * @param clientSocket The socket connection with the requesting peer.
+     * @param sharedDirectory The directory where the peer's shared files are stored.
+     * @param load The peer's load reporter, or null.
+     */
+    public FileRequestHandler(Socket clientSocket, String sharedDirectory, LoadReporter load) {
+        this(clientSocket, sharedDirectory, load, null);
+    }
+
+    /**
+     * Constructor to initialize the FileRequestHandler with the client socket, shared directory, the
+     * reporter that counts this peer's uploads and the cache of the shared files' content keys.
+     *
+     * @param clientSocket The socket connection with the requesting peer.
+     * @param sharedDirectory The directory where the peer's shared files are stored.
+     * @param load The peer's load reporter, or null.
+     * @param hashes The shared directory's hash cache, or null to serve files by name only.
+     */
+    public FileRequestHandler(Socket clientSocket, String sharedDirectory, LoadReporter load, HashCache hashes) {
+        this(clientSocket, sharedDirectory, load, hashes, IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Constructor to initialize the FileRequestHandler with the client socket, shared directory, the
+     * reporter that counts this peer's uploads, the cache of the shared files' content keys and how long
+     * the connection may wait for a request.
+     *
+     * @param clientSocket The socket connection with the requesting peer.
+     * @param sharedDirectory The directory where the peer's shared files are stored.
+     * @param load The peer's load reporter, or null.
+     * @param hashes The shared directory's hash cache, or null to serve files by name only.
+     * @param idleTimeoutMillis Time after which a connection without a request is closed, see idleTimeoutFor.
+     */
+    public FileRequestHandler(Socket clientSocket, String sharedDirectory, LoadReporter load, HashCache hashes,
+                              int idleTimeoutMillis) {
         this.clientSocket = clientSocket;
         this.sharedDirectory = sharedDirectory;
+        this.load = load;
+        this.hashes = hashes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @param mode The executor that runs the handlers.
+     * @return How long a connection may wait for its next request on that executor.
+     */
+    static int idleTimeoutFor(ExecutorMode mode) {
+        return mode == ExecutorMode.BOUNDED ? BOUNDED_IDLE_TIMEOUT_MILLIS : IDLE_TIMEOUT_MILLIS;
     }
 
     /**
-     * The run method processes the client's file request.
-     * It sends the requested file if found, or informs the client if the file is not available.
+     * The run method processes the client's file requests until the client closes the connection.
+     * It sends each requested file if found, or informs the client if the file is not available.
      */
     @Override
     public void run() {
         try (
-                // Create input stream to read from the client and output stream to send data back
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(clientSocket.getInputStream()));
+                // Read the request from the raw stream so no reader buffers ahead of the protocol switch
+                InputStream in = new BufferedInputStream(clientSocket.getInputStream());
                 BufferedOutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
         ) {
-            // Read the requested filename from the client
-            String requestedFile = in.readLine();  // Read the file request sent by the client
-            System.out.println("Client requested file: " + requestedFile);
-
-            // Check if the file exists in the shared directory
-            File file = new File(sharedDirectory, requestedFile);
-            if (file.exists() && !file.isDirectory()) {
-                // If the file exists, inform the client
-                out.write("FOUND\n".getBytes());
-                out.flush();
+            clientSocket.setSoTimeout(idleTimeoutMillis); // Only reads wait for it, i.e. the next request
+            // The header is flushed before the body; without this, Nagle's algorithm holds a small body back
+            // until the client's delayed ACK of the header, some 40 ms per request on a kept-alive connection
+            clientSocket.setTcpNoDelay(true);
 
-                // Send the file size to the client
-                long fileSize = file.length();
-                out.write((fileSize + "\n").getBytes());
+            // Read the requested filename from the client
+            String line = BinaryCodec.readTextLine(in);  // Read the file request sent by the client
+            boolean binary = BinaryCodec.HELLO.equals(line);
+            DataInputStream frames = new DataInputStream(in);
+            if (binary) {
+                // Switch to frames; the GET_FILE and GET_RANGE requests follow
+                out.write((BinaryCodec.HELLO_OK + "\n").getBytes());
                 out.flush();
-
-                // Send the file contents to the client
-                FileInputStream fileIn = new FileInputStream(file);
-                byte[] buffer = new byte[4096];  // Buffer to hold file chunks
-                int bytesRead;
-
-                // Read the file in chunks and send it to the client
-                while ((bytesRead = fileIn.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
+            }
+            while (true) {
+                String requestedFile = line;
+                long offset = 0;
+                long length = Long.MAX_VALUE; // The whole file unless a range is asked for
+                if (binary) {
+                    Frame request = BinaryCodec.readFrame(frames);
+                    if (request == null) {
+                        return; // The client is done
+                    }
+                    if (request.getOpcode() != BinaryCodec.GET_FILE && request.getOpcode() != BinaryCodec.GET_RANGE) {
+                        Log.info("Client sent no file request.");
+                        return;
+                    }
+                    requestedFile = request.getString();
+                    if (request.getOpcode() == BinaryCodec.GET_RANGE) {
+                        offset = request.getLong();
+                        length = request.getLong();
+                    }
+                } else if (requestedFile != null && requestedFile.startsWith(RANGE + " ")) {
+                    String[] parts = requestedFile.split(" ", 4);
+                    try {
+                        if (parts.length == 4) {
+                            long rangeOffset = Long.parseLong(parts[1]);
+                            length = Long.parseLong(parts[2]);
+                            offset = rangeOffset;
+                            requestedFile = parts[3];
+                        }
+                    } catch (NumberFormatException e) {
+                        length = Long.MAX_VALUE; // Not a range after all, but a file whose name starts with GET_RANGE
+                    }
+                }
+                if (requestedFile == null) {
+                    return;
+                }
+                if (!serve(requestedFile, offset, length, binary, out)) {
+                    return; // The client is owed bytes that will never come, so the connection is unusable
+                }
+                if (!binary) {
+                    line = BinaryCodec.readTextLine(in);
                 }
-                out.flush();
-                fileIn.close();
-                System.out.println("File " + requestedFile + " sent to client.");
-            } else {
-                // If the file does not exist, inform the client
-                out.write("NOT_FOUND\n".getBytes());
-                out.flush();
-                System.out.println("File " + requestedFile + " not found.");
             }
+        } catch (SocketTimeoutException e) {
+            Log.info("Closing a connection idle for {} ms.", idleTimeoutMillis);
+        } catch (SocketException e) {
+            // Normal for a chunk that the client received from another peer first
+            Log.info("Client closed the connection: {}", e.getMessage());
         } catch (IOException e) {
-            System.err.println("Error handling file request:");
-            e.printStackTrace();  // Log the exception stack trace to identify the issue
+            Log.error("Error handling file request:", e);  // Log the exception stack trace to identify the issue
         } finally {
             // Ensure that the client socket is closed after the request is processed
             try {
                 clientSocket.close();
-                System.out.println("Closed connection with client.");
+                Log.info("Closed connection with client.");
             } catch (IOException e) {
-                System.err.println("Error closing client socket:");
-                e.printStackTrace();
+                Log.error("Error closing client socket:", e);
+            }
+        }
+    }
+
+    /**
+     * Answers one request.
+     *
+     * @param requestedFile The name or content key the client asked for.
+     * @param offset Position of the first byte asked for.
+     * @param length Number of bytes asked for, Long.MAX_VALUE for the whole file.
+     * @param binary Whether the client speaks frames.
+     * @param out The socket stream.
+     * @return False if fewer bytes were sent than announced.
+     * @throws IOException if the file cannot be read or the client went away.
+     */
+    private boolean serve(String requestedFile, long offset, long length, boolean binary, OutputStream out) throws IOException {
+        Log.info("Client requested file: {}", length == Long.MAX_VALUE ? requestedFile : requestedFile + " @" + offset + "+" + length);
+
+        // Check if the file exists in the shared directory
+        File file = resolve(requestedFile);
+        if (file != null && file.exists() && !file.isDirectory()) {
+            long fileSize = file.length();
+            if (binary) {
+                // One frame carries the size; the file bytes follow it
+                new FrameWriter(BinaryCodec.FILE_FOUND, 0).putLong(fileSize).writeTo(out);
+            } else {
+                // If the file exists, inform the client and send the file size
+                out.write(("FOUND\n" + fileSize + "\n").getBytes());
+            }
+
+            // Send the file contents to the client
+            if (load != null) {
+                load.uploadStarted();
+            }
+            boolean complete;
+            try {
+                long start = Math.min(Math.max(offset, 0), fileSize);
+                complete = sendFile(file, start, Math.max(0, Math.min(length, fileSize - start)), out);
+            } finally {
+                if (load != null) {
+                    load.uploadFinished();
+                }
             }
+            Log.info("File {} sent to client.", requestedFile);
+            return complete;
+        }
+        // If the file does not exist, inform the client
+        if (binary) {
+            new FrameWriter(BinaryCodec.FILE_NOT_FOUND, 0).writeTo(out);
+        } else {
+            out.write("NOT_FOUND\n".getBytes());
+        }
+        out.flush();
+        Log.info("File {} not found.", requestedFile);
+        return true;
+    }
+
+    /**
+     * Sends the file contents after the response header. A socket accepted from a ServerSocketChannel
+     * gets the file through FileChannel.transferTo, which the JDK turns into sendfile where the platform
+     * has it (and into a mapped or direct buffer copy where it does not), so the bytes never enter the
+     * Java heap. Other sockets get large chunks written straight to the socket stream.
+     *
+     * @param file The file to send.
+     * @param offset Position of the first byte to send.
+     * @param count Number of bytes to send; no more are sent even if the file has grown.
+     * @param out The socket stream holding the response header.
+     * @return False if the file got shorter than announced and fewer bytes were sent.
+     * @throws IOException if the file cannot be read or the client went away.
+     */
+    private boolean sendFile(File file, long offset, long count, OutputStream out) throws IOException {
+        out.flush(); // The header goes out first, the body bypasses the stream's buffer
+        SocketChannel channel = clientSocket.getChannel();
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long sent = 0;
+            if (channel != null) {
+                while (sent < count) {
+                    long n = fileChannel.transferTo(offset + sent, count - sent, channel);
+                    if (n <= 0) {
+                        break; // The file got shorter than announced, the client sees a short transfer
+                    }
+                    sent += n;
+                }
+                return sent == count;
+            }
+            InputStream fileIn = Channels.newInputStream(fileChannel.position(offset));
+            byte[] buffer = new byte[COPY_BUFFER];
+            int bytesRead;
+            while (sent < count && (bytesRead = fileIn.read(buffer, 0, (int) Math.min(buffer.length, count - sent))) != -1) {
+                out.write(buffer, 0, bytesRead); // Chunks larger than the stream's buffer are written through
+                sent += bytesRead;
+            }
+            out.flush();
+            return sent == count;
+        }
+    }
+
+    /**
+     * Maps a requested file name or content key to the shared file to send.
+     *
+     * @param requestedFile The name or content key the client asked for.
+     * @return The file, or null if no shared file has the requested content.
+     */
+    private File resolve(String requestedFile) {
+        if (hashes == null || !ContentHash.isKey(requestedFile)) {
+            return new File(sharedDirectory, requestedFile);
         }
+        String filename = hashes.find(requestedFile);
+        return filename == null ? null : new File(sharedDirectory, filename);
     }
 }
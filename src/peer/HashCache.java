@@ -0,0 +1,241 @@
+// File: src/peer/HashCache.java
+package peer;
+
+import common.ContentHash;
+import common.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The HashCache class remembers the content keys (see ContentHash) of a shared directory's files, so a
+ * file is only read and hashed again after its size or modification time changed. The cache is kept in a
+ * file next to the directory ("shared" is cached in "shared.hashes"), where the peer's client and its file
+ * server both find it: the client adds the keys it computes, and the file server looks keys up to serve
+ * a file by its content.
+ *
+ * The cache file is append-only, one "name TAB size TAB modified TAB key" line per hashed file, and the
+ * last line of a name wins. The client is its only writer, and it rewrites the file without the outdated
+ * lines before it first adds to it; a file server that only looks keys up never rewrites it, so no line the
+ * client appends can be lost to a rewrite from the other process.
+ */
+public class HashCache {
+
+    /**
+     * The content key of one file, valid while the file keeps its size and modification time.
+     */
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final String key;
+
+        Entry(long size, long modified, String key) {
+            this.size = size;
+            this.modified = modified;
+            this.key = key;
+        }
+
+        boolean matches(Path file) throws IOException {
+            return Files.size(file) == size && Files.getLastModifiedTime(file).toMillis() == modified;
+        }
+    }
+
+    private final Path directory;   // The shared directory
+    private final Path cacheFile;   // Where the entries are kept
+    private final Map<String, Entry> entries = new HashMap<>(); // File name to its last known key
+    private final Map<String, Set<String>> names = new HashMap<>(); // Content key to the file names with that key
+    private long loadedSize = -1;   // Size of the cache file when it was last read, -1 if it was not there
+    private long loadedModified;    // Its modification time then
+    private boolean compactPending; // Whether the file holds outdated lines, dropped by the first keyOf
+
+    /**
+     * Constructor to open the cache of a shared directory.
+     *
+     * @param sharedDirectory The directory whose files are hashed.
+     */
+    public HashCache(String sharedDirectory) {
+        this.directory = Paths.get(sharedDirectory);
+        this.cacheFile = directory.resolveSibling(directory.getFileName() + ".hashes");
+        compactPending = load() > entries.size();
+    }
+
+    /**
+     * Returns the content key of a shared file, hashing the file only if it is not cached or has changed.
+     *
+     * @param filename Name of the file in the shared directory.
+     * @return The content key, or null if the file does not exist.
+     * @throws IOException if the file cannot be read.
+     */
+    public String keyOf(String filename) throws IOException {
+        Path file = directory.resolve(filename);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        synchronized (this) {
+            if (compactPending) {
+                compactPending = false;
+                compact(); // Only here, by the process that writes the file
+            }
+            Entry entry = entries.get(filename);
+            if (entry != null && entry.matches(file)) {
+                return entry.key;
+            }
+        }
+
+        // Hashed outside the lock, a large file takes a while. Size and time are taken first, so a file
+        // that changes while it is read is hashed again next time.
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        String key = ContentHash.of(file);
+        Entry entry = new Entry(size, modified, key);
+        synchronized (this) {
+            put(filename, entry);
+            append(filename, entry);
+        }
+        return key;
+    }
+
+    /**
+     * Finds a shared file with the given content, for serving a request by content key. When the key is
+     * not found and the cache file has changed since it was read, e.g. because the peer's client hashed
+     * more files, the cache file is read again.
+     *
+     * @param key The content key.
+     * @return The file's name in the shared directory, or null if no unchanged file has this content.
+     */
+    public synchronized String find(String key) {
+        String filename = lookup(key);
+        if (filename == null && cacheFileChanged()) {
+            entries.clear();
+            names.clear();
+            load();
+            filename = lookup(key);
+        }
+        return filename;
+    }
+
+    private String lookup(String key) {
+        Set<String> candidates = names.get(key);
+        if (candidates == null) {
+            return null;
+        }
+        for (String filename : candidates) {
+            try {
+                if (entries.get(filename).matches(directory.resolve(filename))) {
+                    return filename;
+                }
+            } catch (IOException e) {
+                // Deleted or unreadable, try the next file with this content
+            }
+        }
+        return null;
+    }
+
+    private void put(String filename, Entry entry) {
+        Entry previous = entries.put(filename, entry);
+        if (previous != null && !previous.key.equals(entry.key)) {
+            Set<String> previousNames = names.get(previous.key);
+            previousNames.remove(filename);
+            if (previousNames.isEmpty()) {
+                names.remove(previous.key);
+            }
+        }
+        names.computeIfAbsent(entry.key, k -> new HashSet<>()).add(filename);
+    }
+
+    /**
+     * @return True if the cache file's size or modification time differ from when it was last read.
+     */
+    private boolean cacheFileChanged() {
+        try {
+            return Files.size(cacheFile) != loadedSize || Files.getLastModifiedTime(cacheFile).toMillis() != loadedModified;
+        } catch (IOException e) {
+            return loadedSize >= 0; // Gone since it was read
+        }
+    }
+
+    /**
+     * Reads the cache file into the entries.
+     *
+     * @return Number of lines read.
+     */
+    private int load() {
+        try {
+            // Taken before reading, so lines appended meanwhile count as a change next time
+            loadedSize = Files.size(cacheFile);
+            loadedModified = Files.getLastModifiedTime(cacheFile).toMillis();
+        } catch (IOException e) {
+            loadedSize = -1;
+            return 0;
+        }
+        int lines = 0;
+        try (BufferedReader in = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4 || !ContentHash.isKey(fields[3])) {
+                    continue; // Cut short by a crash while appending
+                }
+                try {
+                    put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                    lines++;
+                } catch (NumberFormatException e) {
+                    // Same as a line cut short
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Could not read the hash cache {}: {}", cacheFile, e.getMessage());
+        }
+        return lines;
+    }
+
+    /**
+     * Rewrites the cache file with the current entries only, through a temporary file of its own in the
+     * same directory.
+     */
+    private void compact() {
+        Path temporary;
+        try {
+            temporary = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), cacheFile.getFileName().toString(), ".tmp");
+        } catch (IOException e) {
+            Log.warn("Could not compact the hash cache {}: {}", cacheFile, e.getMessage());
+            return;
+        }
+        try {
+            try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    out.write(line(entry.getKey(), entry.getValue()));
+                }
+            }
+            Files.move(temporary, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.warn("Could not compact the hash cache {}: {}", cacheFile, e.getMessage());
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // Only a leftover temporary file
+            }
+        }
+    }
+
+    private void append(String filename, Entry entry) {
+        // One short write in append mode, so a file server reading the cache never sees half a line from us
+        try (OutputStream out = new FileOutputStream(cacheFile.toFile(), true)) {
+            out.write(line(filename, entry).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.warn("Could not update the hash cache {}: {}", cacheFile, e.getMessage());
+        }
+    }
+
+    private static String line(String filename, Entry entry) {
+        return filename + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.key + "\n";
+    }
+}
@@ -0,0 +1,398 @@
+// File: src/peer/IndexConnection.java
+package peer;
+
+import common.BinaryCodec;
+import common.BinaryCodec.Frame;
+import common.BinaryCodec.FrameWriter;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * IndexConnection is a long-lived, thread-safe connection to the indexing server.
+ * Requests from any thread are written in order on one socket without waiting for earlier answers
+ * (pipelining); a reader thread matches the responses to the requests in the same order.
+ * The connection is opened on first use and reopened after an I/O error.
+ *
+ * Responses are framed by their first line: a line ending in "_RESULTS n" is followed by n more lines,
+ * "MSEARCH_RESULTS n" is followed by n complete SEARCH responses, anything else is a single line.
+ * A connection created in binary mode negotiates BinaryCodec framing when it opens and exchanges frames instead.
+ * A server under load may answer "BUSY ms" (or a BUSY frame) instead; request and requestFrame then wait
+ * the hinted time and send the request again.
+ */
+public class IndexConnection implements Closeable {
+    private static final int MAX_BUSY_RETRIES = 10; // Attempts after BUSY before the answer is passed on
+    private final String serverIp;   // IP address of the indexing server
+    private final int serverPort;    // Port of the indexing server
+    private final boolean binary;    // Whether the connection uses binary frames instead of text lines
+
+    private Socket socket;           // Current connection, null until first use or after a failure
+    private PrintWriter out;         // Writer for text requests on the current connection
+    private OutputStream frameOut;   // Stream for binary requests on the current connection
+    private int nextRequestId;       // ID given to the next binary request
+    private Queue<CompletableFuture<List<String>>> pending;  // Text responses still owed by the current connection
+    private Queue<CompletableFuture<Frame>> pendingFrames;   // Binary responses still owed by the current connection
+
+    /**
+     * Constructor to initialize the connection settings; no socket is opened yet.
+     *
+     * @param serverIp   - The IP address of the indexing server.
+     * @param serverPort - The port number of the indexing server.
+     */
+    public IndexConnection(String serverIp, int serverPort) {
+        this(serverIp, serverPort, false);
+    }
+
+    /**
+     * Constructor to initialize the connection settings and the protocol; no socket is opened yet.
+     *
+     * @param serverIp   - The IP address of the indexing server.
+     * @param serverPort - The port number of the indexing server.
+     * @param binary     - True to negotiate binary frames, false for the text line protocol.
+     */
+    public IndexConnection(String serverIp, int serverPort, boolean binary) {
+        this.serverIp = serverIp;
+        this.serverPort = serverPort;
+        this.binary = binary;
+    }
+
+    /**
+     * @return True if this connection exchanges binary frames.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     *
+     * @param request The request line, e.g. "SEARCH file1.txt".
+     * @return A future completed with the response lines, or failed if the connection breaks first.
+     */
+    public synchronized CompletableFuture<List<String>> send(String request) {
+        if (binary) {
+            throw new IllegalStateException("Connection uses binary frames");
+        }
+        CompletableFuture<List<String>> response = new CompletableFuture<>();
+        try {
+            if (socket == null) {
+                open();
+            }
+            // Enqueue before writing so the reader never sees a response without its future
+            pending.add(response);
+            out.println(request);
+            if (out.checkError()) {
+                throw new IOException("Failed to send request to the indexing server");
+            }
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+            disconnect(e);
+        }
+        return response;
+    }
+
+    /**
+     * Sends a binary request without waiting for its response. The request ID is assigned here.
+     *
+     * @param request The request frame.
+     * @return A future completed with the response frame, or failed if the connection breaks first.
+     */
+    public synchronized CompletableFuture<Frame> sendFrame(FrameWriter request) {
+        if (!binary) {
+            throw new IllegalStateException("Connection uses the text protocol");
+        }
+        CompletableFuture<Frame> response = new CompletableFuture<>();
+        try {
+            if (socket == null) {
+                open();
+            }
+            request.setRequestId(nextRequestId++);
+            pendingFrames.add(response);
+            request.writeTo(frameOut);
+            frameOut.flush();
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+            disconnect(e);
+        }
+        return response;
+    }
+
+    /**
+     * Sends a binary request and waits for its response.
+     *
+     * @param request The request frame.
+     * @return The response frame.
+     * @throws IOException if the request could not be sent or the connection broke before the answer.
+     */
+    public Frame requestFrame(FrameWriter request) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Frame response = await(sendFrame(request));
+            if (response.getOpcode() != BinaryCodec.BUSY || attempt == MAX_BUSY_RETRIES) {
+                return response;
+            }
+            pause(response.getLong());
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @param request The request line.
+     * @return The response lines.
+     * @throws IOException if the request could not be sent or the connection broke before the answer.
+     */
+    public List<String> request(String request) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            List<String> response = await(send(request));
+            long retryAfter = retryAfter(response);
+            if (retryAfter < 0 || attempt == MAX_BUSY_RETRIES) {
+                return response;
+            }
+            pause(retryAfter);
+        }
+    }
+
+    /**
+     * Tells whether a response is a BUSY answer, which means the request was not processed.
+     *
+     * @param response Response lines or frame.
+     * @return True if the request should be sent again later.
+     */
+    static boolean isBusy(Object response) {
+        return response instanceof Frame
+                ? ((Frame) response).getOpcode() == BinaryCodec.BUSY
+                : retryAfter(response) >= 0;
+    }
+
+    /**
+     * @return The retry-after hint of a "BUSY ms" text response, or -1 for any other response.
+     */
+    private static long retryAfter(Object response) {
+        @SuppressWarnings("unchecked")
+        String first = response instanceof List ? ((List<String>) response).get(0) : "";
+        if (!first.startsWith("BUSY ")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(first.substring(5));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Waits for the retry-after time the server asked for.
+     */
+    private static void pause(long millis) throws IOException {
+        try {
+            Thread.sleep(Math.max(1, millis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a busy indexing server");
+        }
+    }
+
+    /**
+     * Waits for a response future returned by send or sendFrame.
+     *
+     * @param response The future.
+     * @return The response.
+     * @throws IOException if the connection broke before the answer.
+     */
+    static <T> T await(CompletableFuture<T> response) throws IOException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the indexing server");
+        }
+    }
+
+    /**
+     * Opens the socket and starts the reader thread for it.
+     */
+    private void open() throws IOException {
+        Socket newSocket = new Socket(serverIp, serverPort);
+        newSocket.setTcpNoDelay(true);
+        if (binary) {
+            openBinary(newSocket);
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(newSocket.getInputStream()));
+        Queue<CompletableFuture<List<String>>> newPending = new ConcurrentLinkedQueue<>();
+
+        socket = newSocket;
+        out = new PrintWriter(new OutputStreamWriter(newSocket.getOutputStream()), true);
+        pending = newPending;
+
+        Thread reader = new Thread(() -> readResponses(newSocket, in, newPending), "index-connection-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Negotiates binary framing on a new socket and starts the frame reader thread.
+     */
+    private void openBinary(Socket newSocket) throws IOException {
+        try {
+            OutputStream rawOut = new BufferedOutputStream(newSocket.getOutputStream());
+            rawOut.write((BinaryCodec.HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+            rawOut.flush();
+            String answer = BinaryCodec.readTextLine(newSocket.getInputStream());
+            if (!BinaryCodec.HELLO_OK.equals(answer)) {
+                throw new IOException("Indexing server refused binary framing: " + answer);
+            }
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+            Queue<CompletableFuture<Frame>> newPending = new ConcurrentLinkedQueue<>();
+            socket = newSocket;
+            frameOut = rawOut;
+            pendingFrames = newPending;
+
+            Thread reader = new Thread(() -> readFrames(newSocket, in, newPending), "index-connection-reader");
+            reader.setDaemon(true);
+            reader.start();
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Binary reader loop: completes the oldest pending request with each response frame.
+     */
+    private void readFrames(Socket readerSocket, DataInputStream in, Queue<CompletableFuture<Frame>> queue) {
+        try {
+            while (true) {
+                Frame frame = BinaryCodec.readFrame(in);
+                if (frame == null) {
+                    throw new EOFException("Indexing server closed the connection");
+                }
+                CompletableFuture<Frame> response = queue.poll();
+                if (response != null) {
+                    response.complete(frame);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (socket == readerSocket) {
+                    disconnect(e);
+                }
+            }
+            failAll(queue, e);
+        }
+    }
+
+    /**
+     * Reader loop: completes the oldest pending request with each response that arrives.
+     */
+    private void readResponses(Socket readerSocket, BufferedReader in, Queue<CompletableFuture<List<String>>> queue) {
+        try {
+            while (true) {
+                List<String> lines = new ArrayList<>();
+                if (!readResponse(in, lines)) {
+                    throw new EOFException("Indexing server closed the connection");
+                }
+                CompletableFuture<List<String>> response = queue.poll();
+                if (response != null) {
+                    response.complete(lines);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (socket == readerSocket) {
+                    disconnect(e);
+                }
+            }
+            failAll(queue, e); // Catch requests queued while the connection was going down
+        }
+    }
+
+    /**
+     * Reads one complete response.
+     *
+     * @return False if the stream ended before the response started.
+     */
+    static boolean readResponse(BufferedReader in, List<String> lines) throws IOException {
+        String first = in.readLine();
+        if (first == null) {
+            return false;
+        }
+        lines.add(first);
+
+        int space = first.lastIndexOf(' ');
+        String head = space < 0 ? first : first.substring(0, space);
+        if (space < 0 || !head.endsWith("_RESULTS")) {
+            return true;
+        }
+        int count;
+        try {
+            count = Integer.parseInt(first.substring(space + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed response: " + first);
+        }
+        for (int i = 0; i < count; i++) {
+            if (head.equals("MSEARCH_RESULTS")) {
+                if (!readResponse(in, lines)) {
+                    throw new EOFException("Truncated MSEARCH response");
+                }
+            } else {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Truncated " + head + " response");
+                }
+                lines.add(line);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the current socket and fails every request still waiting on it. Caller holds the lock.
+     */
+    private void disconnect(IOException cause) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already broken; nothing else to release
+        }
+        if (pending != null) {
+            failAll(pending, cause);
+        }
+        if (pendingFrames != null) {
+            failAll(pendingFrames, cause);
+        }
+        socket = null;
+        out = null;
+        frameOut = null;
+        pending = null;
+        pendingFrames = null;
+    }
+
+    private static <T> void failAll(Queue<CompletableFuture<T>> queue, IOException cause) {
+        CompletableFuture<T> response;
+        while ((response = queue.poll()) != null) {
+            response.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Closes the connection; pending requests fail. A later request opens a new connection.
+     */
+    @Override
+    public synchronized void close() {
+        disconnect(new IOException("Connection closed"));
+    }
+}
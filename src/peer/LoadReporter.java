@@ -0,0 +1,85 @@
+// File: src/peer/LoadReporter.java
+package peer;
+
+import common.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The LoadReporter class counts the uploads a peer's file server is serving and reports the count to
+ * the indexing servers with LOAD, so searches for the K best peers rank a busy peer lower.
+ * FileRequestHandlers only bump a counter; one background thread sends the reports, at most one per
+ * REPORT_INTERVAL_MILLIS, so a burst of short downloads costs a single report of the latest count.
+ */
+public class LoadReporter {
+    private static final long REPORT_INTERVAL_MILLIS = 200; // Minimum time between two reports
+    private static final long RETRY_MILLIS = 2000;          // Pause after the indexing server could not be reached
+
+    private final PeerClient client;                 // Connection to the indexing servers
+    private final AtomicInteger active = new AtomicInteger(); // Uploads in progress
+    private final Object changed = new Object();     // Signalled when the count changes
+    private int reported;                            // Last count the servers took, owned by the reporter thread
+
+    /**
+     * Constructor to start reporting this peer's uploads.
+     *
+     * @param client Client of the indexing servers, set up with this peer's information.
+     */
+    public LoadReporter(PeerClient client) {
+        this.client = client;
+        Thread reporter = new Thread(this::reportLoop, "load-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Called when an upload starts.
+     */
+    public void uploadStarted() {
+        active.incrementAndGet();
+        signal();
+    }
+
+    /**
+     * Called when an upload ends, successfully or not.
+     */
+    public void uploadFinished() {
+        active.decrementAndGet();
+        signal();
+    }
+
+    private void signal() {
+        synchronized (changed) {
+            changed.notify();
+        }
+    }
+
+    /**
+     * Reporter loop: waits for the count to differ from the last report and sends the current count.
+     */
+    private void reportLoop() {
+        while (true) {
+            try {
+                synchronized (changed) {
+                    while (active.get() == reported) {
+                        changed.wait();
+                    }
+                }
+                int uploads = active.get();
+                try {
+                    if (!client.reportLoad(uploads)) {
+                        Log.debug("No indexing server knows this peer yet, load not reported");
+                    }
+                    reported = uploads; // Not retried before the count changes again
+                    Thread.sleep(REPORT_INTERVAL_MILLIS);
+                } catch (IOException e) {
+                    Log.warn("Could not report the load: {}", e.getMessage());
+                    Thread.sleep(RETRY_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+// File: src/peer/MultiSourceBenchmark.java
+package peer;
+
+import common.Log;
+import common.PeerInfo;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The MultiSourceBenchmark class measures ChunkedDownload against peers of limited bandwidth. It starts
+ * one in-process file server per given bandwidth, each serving the same file through FileRequestHandler
+ * with its uploads throttled to that many MB/s, then downloads the file from the best peer alone and from
+ * all of them, and compares the throughput with the sum of the peers' bandwidth. A bandwidth of 0 makes
+ * a peer that accepts connections and then never answers, to show the rebalancing around a dead peer.
+ */
+public class MultiSourceBenchmark {
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments: the file size in MB and one upload bandwidth in MB/s per peer.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java peer.MultiSourceBenchmark <sizeMB> <peerMBps> [peerMBps...]");
+            System.exit(1);
+        }
+        long size = Long.parseLong(args[0]) << 20;
+        Log.setLevel("warn");
+        Path dir = Files.createTempDirectory("multisource");
+        Path file = dir.resolve("shared.bin");
+        byte[] block = new byte[1 << 20];
+        ThreadLocalRandom.current().nextBytes(block);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+
+        List<PeerInfo> peers = new ArrayList<>();
+        double total = 0;
+        for (int i = 1; i < args.length; i++) {
+            double megabytesPerSecond = Double.parseDouble(args[i]);
+            ServerSocket server = new ServerSocket(0);
+            serve(server, dir, megabytesPerSecond);
+            peers.add(new PeerInfo("Peer" + i, "localhost", server.getLocalPort(), megabytesPerSecond));
+            total += megabytesPerSecond;
+        }
+        peers.sort((a, b) -> Double.compare(b.getBandwidth(), a.getBandwidth())); // Best first, as SEARCH ranks them
+
+        Path target = dir.resolve("download.bin");
+        for (boolean binary : new boolean[]{false, true}) {
+            for (List<PeerInfo> sources : Arrays.asList(peers.subList(0, 1), peers)) {
+                long start = System.nanoTime();
+                boolean ok;
+                try (ConnectionPool pool = new ConnectionPool(binary)) {
+                    ok = new ChunkedDownload(sources, "shared.bin", target, pool).run(null);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                boolean same = ok && Arrays.equals(Files.readAllBytes(file), Files.readAllBytes(target));
+                double offered = sources.size() == 1 ? sources.get(0).getBandwidth() : total;
+                System.out.printf("%s, %d peer(s): %.1f MB/s of %.0f MB/s offered, %s%n", binary ? "binary" : "text",
+                        sources.size(), (size >> 20) / seconds, offered, same ? "file intact" : "FAILED");
+            }
+        }
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * Serves the directory on a socket with every upload throttled to the given bandwidth.
+     */
+    private static void serve(ServerSocket server, Path dir, double megabytesPerSecond) {
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    if (megabytesPerSecond <= 0) {
+                        continue; // A dead peer: the connection stays open and silent
+                    }
+                    new Thread(new FileRequestHandler(new ThrottledSocket(socket, megabytesPerSecond), dir.toString())).start();
+                }
+            } catch (IOException e) {
+                // Benchmark over
+            }
+        }, "bench-peer-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * A socket whose output stream sends at most a given number of bytes per second. Time the connection
+     * spends idle between requests is not saved up for later bursts.
+     */
+    private static final class ThrottledSocket extends Socket {
+        private final Socket socket;
+        private final double bytesPerNano;
+
+        ThrottledSocket(Socket socket, double megabytesPerSecond) {
+            this.socket = socket;
+            this.bytesPerNano = megabytesPerSecond * (1 << 20) / 1e9;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            OutputStream out = socket.getOutputStream();
+            return new FilterOutputStream(out) {
+                private long start = System.nanoTime();
+                private long sent;
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    if (start + (long) (sent / bytesPerNano) < System.nanoTime() - 10_000_000) {
+                        start = System.nanoTime(); // Idle since the last write, not just a late wake-up
+                        sent = 0;
+                    }
+                    for (int done = 0; done < length; ) {
+                        int n = Math.min(16 * 1024, length - done);
+                        out.write(buffer, offset + done, n);
+                        done += n;
+                        sent += n;
+                        long due = start + (long) (sent / bytesPerNano);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            try {
+                                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException();
+                            }
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            socket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            socket.setTcpNoDelay(on);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            socket.close();
+        }
+    }
+}
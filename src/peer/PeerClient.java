@@ -1,20 +1,67 @@
 // File: src/peer/PeerClient.java
 package peer;
 
+import common.BinaryCodec;
+import common.BinaryCodec.Frame;
+import common.BinaryCodec.FrameWriter;
+import common.ContentHash;
+import common.Log;
 import common.PeerInfo;
+import common.ShardRing;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * PeerClient handles communication with the central indexing server.
  * It can register, search for files, download files from peers, and deregister files.
+ * All requests share one persistent, pipelined IndexConnection instead of a socket per call.
+ * In binary mode the indexing server and the peers are spoken to with BinaryCodec frames
+ * instead of text lines; the console output is the same in both modes.
+ * The index may be sharded over several indexing servers: every file name is routed to its owner on a
+ * ShardRing, REGISTER and DEREGISTER are split per shard, and the per-shard requests are pipelined.
+ * Servers that expire silent peers are kept informed with HEARTBEAT (see startHeartbeats).
+ * The files are first registered in batches (REGISTER_BEGIN, REGISTER_ADD..., REGISTER_END with a library
+ * version); later changes are sent as ADD and REMOVE deltas, and a server that lost track of the version
+ * gets the full library again.
+ * Downloads fetch chunks of the file from the best peers the server ranks for it (SEARCH filename K) in
+ * parallel (see ChunkedDownload), and the peer's file server reports its uploads in progress with
+ * reportLoad so busy peers are ranked lower. The connections to other peers are kept open between
+ * downloads in a ConnectionPool, so fetching many small files costs one handshake per peer, not per file.
+ * A download is written to a part file in the 'downloads' directory and renamed to the file's name once it
+ * is complete (see DownloadSink).
+ * With hashFilesIn, every shared file is also registered under its content key (see ContentHash), so
+ * downloadContent can fetch exactly that content from every peer that has it, whatever its name there,
+ * and check what it received.
  */
-public class PeerClient {
-    private String serverIp;  // IP address of the indexing server
-    private int serverPort;   // Port of the indexing server
+public class PeerClient implements Closeable {
+    private static final int CHUNK_SIZE = 1000; // File names per REGISTER_ADD batch
+    private static final int DOWNLOAD_CANDIDATES = 4; // Best peers asked for before a download
+    private static final String DOWNLOAD_DIRECTORY = "downloads"; // Where downloaded files are saved
+    private ShardRing ring;     // Owner of each file name among the indexing servers
+    private Map<String, IndexConnection> connections;  // Long-lived connection to each indexing server
     private PeerInfo peerInfo;  // Information about the current peer
+    private boolean binary;     // Whether to use binary frames instead of text lines
+    private ConnectionPool downloads;  // Kept-alive connections to the peers' file servers
+    private final Set<String> sharedFiles = ConcurrentHashMap.newKeySet(); // Registered files, re-sent after a lapsed lease
+    private final Map<String, Long> versions = new ConcurrentHashMap<>(); // Library version each shard acknowledged
+    private final Object syncLock = new Object(); // Orders the deltas, so each shard sees consecutive versions
+    private HashCache hashes;   // Content keys of the shared files, null if only names are registered
+    private final Map<String, String> contentOf = new HashMap<>(); // Shared file to its content key, guarded by syncLock
+    private final Map<String, Integer> holders = new HashMap<>();  // Content key to its number of shared files, guarded by syncLock
+    private volatile boolean closed;
 
     /**
      * Constructor to initialize the PeerClient with server information and peer details.
@@ -24,9 +71,48 @@ public class PeerClient {
      * @param peerInfo   - Information about the current peer (PeerInfo object).
      */
     public PeerClient(String serverIp, int serverPort, PeerInfo peerInfo) {
-        this.serverIp = serverIp;
-        this.serverPort = serverPort;
+        this(serverIp, serverPort, peerInfo, false);
+    }
+
+    /**
+     * Constructor to initialize the PeerClient with server information, peer details and the protocol.
+     *
+     * @param serverIp   - The IP address of the indexing server.
+     * @param serverPort - The port number of the indexing server.
+     * @param peerInfo   - Information about the current peer (PeerInfo object).
+     * @param binary     - True to use binary frames, false for the text line protocol.
+     */
+    public PeerClient(String serverIp, int serverPort, PeerInfo peerInfo, boolean binary) {
+        this(Collections.singletonList(serverIp + ":" + serverPort), peerInfo, binary);
+    }
+
+    /**
+     * Constructor to initialize the PeerClient with a sharded indexing tier.
+     *
+     * @param servers  - The indexing servers as "host:port", in the same order on every peer.
+     * @param peerInfo - Information about the current peer (PeerInfo object).
+     * @param binary   - True to use binary frames, false for the text line protocol.
+     */
+    public PeerClient(List<String> servers, PeerInfo peerInfo, boolean binary) {
+        this.ring = new ShardRing(servers);
+        this.connections = new LinkedHashMap<>();
+        for (String server : servers) {
+            String[] address = ShardRing.hostAndPort(server);
+            connections.put(server, new IndexConnection(address[0], Integer.parseInt(address[1]), binary));
+        }
         this.peerInfo = peerInfo;
+        this.binary = binary;
+        this.downloads = new ConnectionPool(binary);
+    }
+
+    /**
+     * Registers every shared file under its content key as well as its name from now on. Call it before
+     * the first registerFiles.
+     *
+     * @param sharedDirectory The directory holding the files this peer registers.
+     */
+    public void hashFilesIn(String sharedDirectory) {
+        hashes = new HashCache(sharedDirectory);
     }
 
     /**
@@ -37,89 +123,574 @@ public class PeerClient {
      * @param files List of filenames to register.
      */
     public void registerFiles(List<String> files) {
-        try (
-                // Create a connection to the indexing server
-                Socket socket = new Socket(serverIp, serverPort);
-                PrintWriter out = new PrintWriter(
-                        new OutputStreamWriter(socket.getOutputStream()), true);
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()));
-        ) {
-            // Create the REGISTER message format
-            StringBuilder sb = new StringBuilder();
-            sb.append("REGISTER ").append(peerInfo.getPeerId()).append(" ")
-                    .append(peerInfo.getIpAddress()).append(" ")
-                    .append(peerInfo.getPort()).append(" ")
-                    .append(peerInfo.getBandwidth());
-
-            // Append each file to the message
-            for (String file : files) {
-                sb.append(" ").append(file);
+        try {
+            Map<String, String> keys = contentKeys(files); // Hashing takes a while, so not under syncLock
+            String response;
+            synchronized (syncLock) {
+                List<String> entries = new ArrayList<>(files);
+                List<String> replaced = new ArrayList<>();
+                for (Map.Entry<String, String> file : keys.entrySet()) {
+                    String previous = contentOf.put(file.getKey(), file.getValue());
+                    if (file.getValue().equals(previous)) {
+                        continue;
+                    }
+                    if (hold(file.getValue())) {
+                        entries.add(file.getValue());
+                    }
+                    if (previous != null && release(previous)) {
+                        replaced.add(previous); // The file changed and nothing else shared has its old content
+                    }
+                }
+                sharedFiles.addAll(entries);
+                if (entries.isEmpty()) {
+                    // A registration without files reaches every shard; it is not versioned
+                    response = sendToShards("REGISTER", everyShard(), false);
+                    versions.clear();
+                } else {
+                    // Each shard gets the files it owns
+                    response = sendDeltas("REGISTER", ring.split(entries));
+                }
+                if (!replaced.isEmpty()) {
+                    sharedFiles.removeAll(replaced);
+                    sendDeltas("DEREGISTER", ring.split(replaced));
+                }
             }
-
-            // Send the REGISTER message to the server
-            out.println(sb.toString());
-            String response = in.readLine();
-            System.out.println("Server response: " + response);
+            Log.info("Server response: {}", response);
         } catch (IOException e) {
-            System.err.println("Error registering files:");
-            e.printStackTrace();
+            Log.error("Error registering files:", e);
+        }
+    }
+
+    /**
+     * Looks up the content keys of files about to be registered.
+     *
+     * @param files Names of files in the shared directory.
+     * @return The content key of each file that exists, empty if content keys are not registered.
+     */
+    private Map<String, String> contentKeys(List<String> files) {
+        Map<String, String> keys = new LinkedHashMap<>();
+        if (hashes == null) {
+            return keys;
+        }
+        for (String filename : files) {
+            try {
+                String key = hashes.keyOf(filename);
+                if (key != null) {
+                    keys.put(filename, key);
+                }
+            } catch (IOException e) {
+                Log.warn("Could not hash {}, registering it by name only: {}", filename, e.getMessage());
+            }
         }
+        return keys;
+    }
+
+    /**
+     * Counts one more shared file with a content. Caller holds syncLock.
+     *
+     * @return True if it is the first, so the content key has to be registered.
+     */
+    private boolean hold(String key) {
+        return holders.merge(key, 1, Integer::sum) == 1;
+    }
+
+    /**
+     * Counts one shared file with a content less. Caller holds syncLock.
+     *
+     * @return True if it was the last, so the content key has to be deregistered.
+     */
+    private boolean release(String key) {
+        return holders.merge(key, -1, (count, change) -> count + change == 0 ? null : count + change) == null;
     }
 
     /**
      * Searches for a file in the indexing server and downloads it if found.
+     * Chunks of the file are fetched from all the best ranked peers at once. If that fails, e.g. because
+     * the peers do not serve ranges, the whole file is downloaded from one peer after the other.
      *
      * @param filename Name of the file to search for.
      */
     public void searchAndDownload(String filename) {
-        try (
-                // Create a connection to the indexing server
-                Socket socket = new Socket(serverIp, serverPort);
-                PrintWriter out = new PrintWriter(
-                        new OutputStreamWriter(socket.getOutputStream()), true);
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()));
-        ) {
-            // Send SEARCH command to the server
-            out.println("SEARCH " + filename);
-            String response = in.readLine();
-
-            if (response.startsWith("SEARCH_RESULTS")) {
-                // Handle the search results
-                String[] parts = response.split(" ");
-                int numResults = Integer.parseInt(parts[1]);
-
-                if (numResults == 0) {
-                    System.out.println("No peers have the file: " + filename);
+        try {
+            // Ask the indexing server for the least loaded peers that have the file
+            List<PeerInfo> peers = search(filename, DOWNLOAD_CANDIDATES);
+
+            if (peers.isEmpty()) {
+                Log.info("No peers have the file: {}", filename);
+                return;
+            }
+
+            Log.info("Found {} peer(s) with the file, best first:", peers.size());
+            for (PeerInfo peer : peers) {
+                // Print details of the peer
+                Log.info("- " + peer.getPeerId() + " (IP: " + peer.getIpAddress() + ", Port: " + peer.getPort() + ", Bandwidth: " + peer.getBandwidth() + ")");
+            }
+
+            ChunkedDownload chunked = new ChunkedDownload(peers, filename, downloadPath(filename), downloads);
+            if (chunked.run(null)) {
+                Log.info("File {} downloaded successfully.", filename);
+                return;
+            }
+            if (chunked.keptChunks()) {
+                return; // The peers know ranges, and the next attempt resumes where this one stopped
+            }
+            for (PeerInfo peer : peers) {
+                Log.info("Downloading from " + peer.getPeerId() + " at " + peer.getIpAddress() + ":" + peer.getPort());
+
+                // Download the file from the peer, or move on to the next one
+                if (downloadFile(peer.getIpAddress(), peer.getPort(), filename, filename, null)) {
                     return;
                 }
+            }
+        } catch (IOException e) {
+            Log.error("Error searching for file:", e);
+        }
+    }
 
-                System.out.println("Found " + numResults + " peer(s) with the file:");
+    /**
+     * Looks up the peers that share a file.
+     *
+     * @param filename Name of the file to search for.
+     * @return The peers sharing the file, empty if there are none.
+     * @throws IOException if the indexing server cannot be reached or answers unexpectedly.
+     */
+    public List<PeerInfo> search(String filename) throws IOException {
+        IndexConnection connection = connections.get(ring.shardFor(filename));
+        if (binary) {
+            Frame response = connection.requestFrame(new FrameWriter(BinaryCodec.SEARCH, 0).putString(filename));
+            expect(response, BinaryCodec.SEARCH_RESULTS);
+            return readPeers(response);
+        }
 
-                // Iterate through peers and download the file from each one
-                for (int i = 0; i < numResults; i++) {
-                    String peerInfoStr = in.readLine();
-                    String[] peerParts = peerInfoStr.split(" ");
-                    String peerId = peerParts[0];
-                    String peerIp = peerParts[1];
-                    int peerPort = Integer.parseInt(peerParts[2]);
-                    double peerBandwidth = Double.parseDouble(peerParts[3]);
+        List<String> response = connection.request("SEARCH " + filename);
+        if (!response.get(0).startsWith("SEARCH_RESULTS")) {
+            throw new IOException("Unexpected response: " + response.get(0));
+        }
+        return parseSearchResults(response, 0);
+    }
+
+    /**
+     * Looks up the K best peers that share a file, ranked by the server by bandwidth and current load.
+     *
+     * @param filename Name of the file to search for.
+     * @param k        Maximum number of peers wanted.
+     * @return At most K peers sharing the file, best first, empty if there are none.
+     * @throws IOException if the indexing server cannot be reached or answers unexpectedly.
+     */
+    public List<PeerInfo> search(String filename, int k) throws IOException {
+        IndexConnection connection = connections.get(ring.shardFor(filename));
+        if (binary) {
+            Frame response = connection.requestFrame(new FrameWriter(BinaryCodec.SEARCH_TOP, 0).putString(filename).putInt(k));
+            expect(response, BinaryCodec.SEARCH_RESULTS);
+            return readPeers(response);
+        }
+
+        List<String> response = connection.request("SEARCH " + filename + " " + k);
+        if (!response.get(0).startsWith("SEARCH_RESULTS")) {
+            throw new IOException("Unexpected response: " + response.get(0));
+        }
+        return parseSearchResults(response, 0);
+    }
+
+    /**
+     * Looks up the K best peers that share a content, under any name, ranked like search(filename, k).
+     *
+     * @param key Content key of the file (see ContentHash).
+     * @param k   Maximum number of peers wanted.
+     * @return At most K peers sharing the content, best first, empty if there are none.
+     * @throws IOException if the indexing server cannot be reached or answers unexpectedly.
+     */
+    public List<PeerInfo> searchContent(String key, int k) throws IOException {
+        IndexConnection connection = connections.get(ring.shardFor(key));
+        if (binary) {
+            Frame response = connection.requestFrame(new FrameWriter(BinaryCodec.SEARCH_HASH, 0).putString(key).putInt(k));
+            expect(response, BinaryCodec.SEARCH_RESULTS);
+            return readPeers(response);
+        }
 
-                    // Print details of the peer
-                    System.out.println("- " + peerId + " (IP: " + peerIp + ", Port: " + peerPort + ", Bandwidth: " + peerBandwidth + ")");
-                    System.out.println("Downloading from " + peerId + " at " + peerIp + ":" + peerPort);
+        List<String> response = connection.request("SEARCH_HASH " + key + " " + k);
+        if (!response.get(0).startsWith("SEARCH_RESULTS")) {
+            throw new IOException("Unexpected response: " + response.get(0));
+        }
+        return parseSearchResults(response, 0);
+    }
 
-                    // Download the file from the peer
-                    downloadFile(peerIp, peerPort, filename);
+    /**
+     * Downloads a content from the best ranked peers that share it and checks it against its key.
+     * Chunks are fetched from all of them at once; if the assembled file does not match, the file is
+     * downloaded from one peer after the other, and a peer whose bytes do not match is skipped like one
+     * that cannot be reached.
+     *
+     * @param key      Content key of the file (see ContentHash).
+     * @param filename Name to save the file under.
+     * @return True if the file was downloaded and matches the key.
+     */
+    public boolean downloadContent(String key, String filename) {
+        try {
+            List<PeerInfo> peers = searchContent(key, DOWNLOAD_CANDIDATES);
+            if (peers.isEmpty()) {
+                Log.info("No peers have the content: {}", key);
+                return false;
+            }
+            ChunkedDownload chunked = new ChunkedDownload(peers, key, downloadPath(filename), downloads);
+            if (chunked.run(key)) {
+                return true;
+            }
+            if (chunked.keptChunks()) {
+                return false; // The peers know ranges, and the next attempt resumes where this one stopped
+            }
+            for (PeerInfo peer : peers) {
+                Log.info("Downloading " + key + " from " + peer.getPeerId() + " at " + peer.getIpAddress() + ":" + peer.getPort());
+                if (downloadFile(peer.getIpAddress(), peer.getPort(), key, filename, key)) {
+                    return true;
                 }
-            } else {
-                System.out.println("Unexpected response: " + response);
             }
         } catch (IOException e) {
-            System.err.println("Error searching for file:");
-            e.printStackTrace();
+            Log.error("Error searching for content:", e);
+        }
+        return false;
+    }
+
+    /**
+     * Reports how many uploads this peer's file server is serving, to every shard, so searches rank
+     * the peer lower while it is busy.
+     *
+     * @param activeUploads Number of uploads in progress.
+     * @return True if at least one shard knows the peer and took the report.
+     * @throws IOException if a shard cannot be reached.
+     */
+    public boolean reportLoad(int activeUploads) throws IOException {
+        List<CompletableFuture<?>> responses = new ArrayList<>();
+        for (IndexConnection connection : connections.values()) {
+            responses.add(binary
+                    ? connection.sendFrame(new FrameWriter(BinaryCodec.LOAD, 0).putString(peerInfo.getPeerId()).putInt(activeUploads))
+                    : connection.send("LOAD " + peerInfo.getPeerId() + " " + activeUploads));
+        }
+
+        // Shards that hold none of this peer's files do not know it, so one success is enough
+        boolean reported = false;
+        for (CompletableFuture<?> future : responses) {
+            Object response = IndexConnection.await(future);
+            @SuppressWarnings("unchecked")
+            String status = binary ? status("LOAD", (Frame) response) : ((List<String>) response).get(0);
+            reported |= status.equals("LOAD_SUCCESS");
+        }
+        return reported;
+    }
+
+    /**
+     * Looks up many files in one round trip with MSEARCH.
+     *
+     * @param filenames Names of the files to search for.
+     * @return The peers sharing each file, in request order (an empty list for files nobody shares).
+     * @throws IOException if the indexing server cannot be reached or answers unexpectedly.
+     */
+    public Map<String, List<PeerInfo>> searchMany(List<String> filenames) throws IOException {
+        Map<String, List<PeerInfo>> results = new LinkedHashMap<>();
+        if (filenames.isEmpty()) {
+            return results;
+        }
+
+        // One MSEARCH per shard, all in flight at once
+        Map<String, List<String>> byShard = ring.split(filenames);
+        Map<String, CompletableFuture<?>> responses = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> shard : byShard.entrySet()) {
+            IndexConnection connection = connections.get(shard.getKey());
+            responses.put(shard.getKey(), binary
+                    ? connection.sendFrame(new FrameWriter(BinaryCodec.MSEARCH, 0).putStrings(shard.getValue()))
+                    : connection.send("MSEARCH " + String.join(" ", shard.getValue())));
+        }
+
+        Map<String, List<PeerInfo>> found = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> shard : byShard.entrySet()) {
+            Object response = IndexConnection.await(responses.get(shard.getKey()));
+            if (IndexConnection.isBusy(response)) {
+                // Throttled: ask this shard again on its own, waiting as long as it asks for
+                IndexConnection connection = connections.get(shard.getKey());
+                response = binary
+                        ? connection.requestFrame(new FrameWriter(BinaryCodec.MSEARCH, 0).putStrings(shard.getValue()))
+                        : connection.request("MSEARCH " + String.join(" ", shard.getValue()));
+            }
+            if (binary) {
+                Frame frame = (Frame) response;
+                expect(frame, BinaryCodec.MSEARCH_RESULTS);
+                frame.getInt(); // One peer block per requested file follows
+                for (String filename : shard.getValue()) {
+                    found.put(filename, readPeers(frame));
+                }
+                continue;
+            }
+
+            @SuppressWarnings("unchecked")
+            List<String> lines = (List<String>) response;
+            if (!lines.get(0).startsWith("MSEARCH_RESULTS")) {
+                throw new IOException("Unexpected response: " + lines.get(0));
+            }
+            // Each file's SEARCH_RESULTS block follows the previous one
+            int line = 1;
+            for (String filename : shard.getValue()) {
+                List<PeerInfo> peers = parseSearchResults(lines, line);
+                found.put(filename, peers);
+                line += peers.size() + 1;
+            }
+        }
+
+        // Back into request order
+        for (String filename : filenames) {
+            results.put(filename, found.get(filename));
+        }
+        return results;
+    }
+
+    /**
+     * Sends a REGISTER or DEREGISTER for this peer to each shard with the files it owns, pipelined,
+     * and combines the answers into one status line.
+     *
+     * @param command    "REGISTER" or "DEREGISTER".
+     * @param byShard    Shard to the files to send it.
+     * @param anySuccess True if one successful shard is enough (a whole-peer DEREGISTER reaches shards
+     *                   where the peer has nothing and therefore is "not found").
+     * @return The combined status, e.g. "REGISTER_SUCCESS" or the first failure.
+     * @throws IOException if a shard cannot be reached.
+     */
+    private String sendToShards(String command, Map<String, List<String>> byShard, boolean anySuccess) throws IOException {
+        List<CompletableFuture<?>> responses = new ArrayList<>();
+        for (Map.Entry<String, List<String>> shard : byShard.entrySet()) {
+            IndexConnection connection = connections.get(shard.getKey());
+            List<String> files = shard.getValue();
+            if (binary) {
+                FrameWriter request = command.equals("REGISTER")
+                        ? new FrameWriter(BinaryCodec.REGISTER, 0).putPeer(peerInfo).putStrings(files)
+                        : new FrameWriter(BinaryCodec.DEREGISTER, 0).putString(peerInfo.getPeerId()).putStrings(files);
+                responses.add(connection.sendFrame(request));
+                continue;
+            }
+
+            // Create the REGISTER or DEREGISTER message format
+            StringBuilder sb = new StringBuilder();
+            sb.append(command).append(" ").append(peerInfo.getPeerId());
+            if (command.equals("REGISTER")) {
+                sb.append(" ").append(peerInfo.getIpAddress())
+                        .append(" ").append(peerInfo.getPort())
+                        .append(" ").append(peerInfo.getBandwidth());
+            }
+
+            // Append each file to the message
+            for (String file : files) {
+                sb.append(" ").append(file);
+            }
+            responses.add(connection.send(sb.toString()));
+        }
+
+        String failure = null;
+        boolean succeeded = false;
+        for (CompletableFuture<?> future : responses) {
+            Object response = IndexConnection.await(future);
+            @SuppressWarnings("unchecked")
+            String status = binary ? status(command, (Frame) response) : ((List<String>) response).get(0);
+            if (status.equals(command + "_SUCCESS")) {
+                succeeded = true;
+            } else if (failure == null) {
+                failure = status;
+            }
+        }
+        return failure == null || (anySuccess && succeeded) ? command + "_SUCCESS" : failure;
+    }
+
+    /**
+     * Sends files added to or removed from the library as ADD or REMOVE deltas to the shards that are in
+     * sync, pipelined, and the full library to every other shard. Caller holds syncLock.
+     *
+     * @param command "REGISTER" to add the files, "DEREGISTER" to remove them.
+     * @param byShard Shard to the files it owns.
+     * @return The combined status, e.g. "REGISTER_SUCCESS" or the first failure.
+     * @throws IOException if a shard cannot be reached; a shard whose answer was lost gets the full library
+     *         with the next change.
+     */
+    private String sendDeltas(String command, Map<String, List<String>> byShard) throws IOException {
+        boolean add = command.equals("REGISTER");
+        String delta = add ? "ADD" : "REMOVE";
+        Map<String, CompletableFuture<?>> responses = new LinkedHashMap<>();
+        Map<String, Long> sent = new HashMap<>();
+        List<String> unsynced = new ArrayList<>();
+        for (Map.Entry<String, List<String>> shard : byShard.entrySet()) {
+            Long held = versions.get(shard.getKey());
+            if (held == null) {
+                unsynced.add(shard.getKey());
+                continue;
+            }
+            long version = held + 1;
+            sent.put(shard.getKey(), version);
+            IndexConnection connection = connections.get(shard.getKey());
+            responses.put(shard.getKey(), binary
+                    ? connection.sendFrame(new FrameWriter(add ? BinaryCodec.ADD : BinaryCodec.REMOVE, 0)
+                            .putString(peerInfo.getPeerId()).putLong(version).putStrings(shard.getValue()))
+                    : connection.send(delta + " " + peerInfo.getPeerId() + " " + version + " " + String.join(" ", shard.getValue())));
+        }
+
+        IOException lost = null;
+        for (Map.Entry<String, CompletableFuture<?>> shard : responses.entrySet()) {
+            Object response;
+            try {
+                response = IndexConnection.await(shard.getValue());
+            } catch (IOException e) {
+                // The shard may or may not have applied the delta, so the next change registers in full
+                versions.remove(shard.getKey());
+                if (lost == null) {
+                    lost = e;
+                }
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            boolean applied = binary
+                    ? ((Frame) response).getOpcode() == BinaryCodec.OK
+                    : ((List<String>) response).get(0).startsWith(delta + "_SUCCESS");
+            if (applied) {
+                versions.put(shard.getKey(), sent.get(shard.getKey()));
+            } else {
+                Log.info("Indexing server {} is not in sync with this peer, registering in full", shard.getKey());
+                versions.remove(shard.getKey());
+                unsynced.add(shard.getKey());
+            }
+        }
+
+        String failure = null;
+        for (String shard : unsynced) {
+            String status = fullSync(shard);
+            if (!status.equals("REGISTER_SUCCESS") && failure == null) {
+                failure = status;
+            }
+        }
+        if (lost != null) {
+            throw lost;
+        }
+        return failure == null ? command + "_SUCCESS" : failure;
+    }
+
+    /**
+     * Registers every shared file a shard owns in batches of CHUNK_SIZE, all pipelined, and records the
+     * version the shard acknowledged. Files the shard still had from earlier and that are no longer
+     * shared are removed by it. Caller holds syncLock.
+     *
+     * @param shard The shard.
+     * @return "REGISTER_SUCCESS" or the first failure.
+     * @throws IOException if the shard cannot be reached.
+     */
+    private String fullSync(String shard) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String filename : sharedFiles) {
+            if (ring.shardFor(filename).equals(shard)) {
+                files.add(filename);
+            }
+        }
+        long version = versions.getOrDefault(shard, 0L) + 1;
+        versions.remove(shard);
+
+        IndexConnection connection = connections.get(shard);
+        String peerId = peerInfo.getPeerId();
+        List<CompletableFuture<?>> responses = new ArrayList<>();
+        if (binary) {
+            responses.add(connection.sendFrame(new FrameWriter(BinaryCodec.REGISTER_BEGIN, 0).putPeer(peerInfo)));
+            for (int from = 0; from < files.size(); from += CHUNK_SIZE) {
+                List<String> chunk = files.subList(from, Math.min(files.size(), from + CHUNK_SIZE));
+                responses.add(connection.sendFrame(new FrameWriter(BinaryCodec.REGISTER_ADD, 0).putString(peerId).putStrings(chunk)));
+            }
+            responses.add(connection.sendFrame(new FrameWriter(BinaryCodec.REGISTER_END, 0).putString(peerId).putLong(version)));
+        } else {
+            responses.add(connection.send("REGISTER_BEGIN " + peerId + " " + peerInfo.getIpAddress() + " "
+                    + peerInfo.getPort() + " " + peerInfo.getBandwidth()));
+            for (int from = 0; from < files.size(); from += CHUNK_SIZE) {
+                List<String> chunk = files.subList(from, Math.min(files.size(), from + CHUNK_SIZE));
+                responses.add(connection.send("REGISTER_ADD " + peerId + " " + String.join(" ", chunk)));
+            }
+            responses.add(connection.send("REGISTER_END " + peerId + " " + version));
+        }
+
+        String failure = null;
+        for (CompletableFuture<?> future : responses) {
+            Object response = IndexConnection.await(future);
+            @SuppressWarnings("unchecked")
+            String status = binary ? status("REGISTER", (Frame) response) : ((List<String>) response).get(0);
+            if (!status.endsWith("_SUCCESS") && failure == null) {
+                failure = status;
+            }
+        }
+        if (failure != null) {
+            return failure;
+        }
+        versions.put(shard, version);
+        return "REGISTER_SUCCESS";
+    }
+
+    /**
+     * @return Every shard with an empty file list, for requests that concern the peer as a whole.
+     */
+    private Map<String, List<String>> everyShard() {
+        Map<String, List<String>> byShard = new LinkedHashMap<>();
+        for (String shard : ring.getShards()) {
+            byShard.put(shard, Collections.emptyList());
+        }
+        return byShard;
+    }
+
+    /**
+     * Reads a peer count and that many peers from a binary response.
+     */
+    private static List<PeerInfo> readPeers(Frame response) {
+        int count = response.getInt();
+        List<PeerInfo> peers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            peers.add(response.getPeer());
         }
+        return peers;
+    }
+
+    /**
+     * Fails unless a binary response has the expected opcode, surfacing the server's error message.
+     */
+    private static void expect(Frame response, byte opcode) throws IOException {
+        if (response.getOpcode() == BinaryCodec.ERROR) {
+            throw new IOException("Server error: " + response.getString());
+        }
+        if (response.getOpcode() != opcode) {
+            throw new IOException("Unexpected response opcode: " + response.getOpcode());
+        }
+    }
+
+    /**
+     * Translates a binary OK/ERROR response into the status line the text protocol would have sent.
+     */
+    private static String status(String command, Frame response) {
+        if (response.getOpcode() == BinaryCodec.OK) {
+            return command + "_SUCCESS";
+        }
+        if (response.getOpcode() == BinaryCodec.ERROR) {
+            return command + "_FAILURE " + response.getString();
+        }
+        return "Unexpected response opcode: " + response.getOpcode();
+    }
+
+    /**
+     * Parses a "SEARCH_RESULTS n" line and the n peer lines that follow it.
+     *
+     * @param lines The response lines.
+     * @param start Index of the SEARCH_RESULTS line.
+     * @return The peers listed in the block.
+     */
+    private static List<PeerInfo> parseSearchResults(List<String> lines, int start) {
+        String[] parts = lines.get(start).split(" ");
+        int numResults = Integer.parseInt(parts[1]);
+
+        List<PeerInfo> peers = new ArrayList<>(numResults);
+        for (int i = 1; i <= numResults; i++) {
+            String[] peerParts = lines.get(start + i).split(" ");
+            String peerId = peerParts[0];
+            String peerIp = peerParts[1];
+            int peerPort = Integer.parseInt(peerParts[2]);
+            double peerBandwidth = Double.parseDouble(peerParts[3]);
+            peers.add(new PeerInfo(peerId, peerIp, peerPort, peerBandwidth));
+        }
+        return peers;
     }
 
     /**
@@ -127,85 +698,261 @@ public class PeerClient {
      *
      * @param peerIp    IP address of the peer.
      * @param peerPort  Port number of the peer.
-     * @param filename  Name of the file to download.
-     */
-    private void downloadFile(String peerIp, int peerPort, String filename) {
-        try (
-                // Connect to the peer server
-                Socket socket = new Socket(peerIp, peerPort);
-                PrintWriter out = new PrintWriter(
-                        new OutputStreamWriter(socket.getOutputStream()), true);
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()));
-                BufferedOutputStream fileOut = new BufferedOutputStream(
-                        new FileOutputStream("downloads\\" + filename)); // Save the file in the 'downloads' directory
-        ) {
-            // Request the file from the peer
-            out.println(filename);
-            String response = in.readLine();
-
-            if ("FOUND".equals(response)) {
+     * @param requested Name or content key to ask the peer for.
+     * @param filename  Name to save the file under.
+     * @param key       Content key the file must match, or null to accept any content.
+     * @return True if the file was downloaded completely (and matches the key).
+     */
+    private boolean downloadFile(String peerIp, int peerPort, String requested, String filename, String key) {
+        ConnectionPool.Connection connection = null;
+        boolean reusable = false; // Whether the whole answer was read, so the connection can serve the next download
+        try {
+            // Request the file from the peer, on a connection kept from an earlier download if there is one
+            connection = downloads.send(peerIp, peerPort, 0, c -> binary
+                    ? requestFileBinary(c.in, c.out, requested) : requestFileText(c.in, c.out, requested));
+            // The header and the file bytes are read through the same stream, so no header reader can buffer file data
+            InputStream is = connection.in;
+            long fileSize = connection.getAnswer();
+
+            if (fileSize >= 0) {
                 // If the peer has the file, start receiving it
-                String sizeStr = in.readLine();
-                long fileSize = Long.parseLong(sizeStr);
-                System.out.println("Receiving file of size " + fileSize + " bytes.");
-
-                InputStream is = socket.getInputStream();
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                long totalRead = 0;
-
-                // Read the file in chunks and save it to disk
-                while (totalRead < fileSize && (bytesRead = is.read(buffer)) != -1) {
-                    fileOut.write(buffer, 0, bytesRead);
-                    totalRead += bytesRead;
-                }
+                Log.info("Receiving file of size {} bytes.", fileSize);
+                ResumeRecord.discard(downloadPath(filename)); // Chunks of an earlier attempt are overwritten
+                DownloadSink sink = DownloadSink.open(downloadPath(filename)); // Save the file in the 'downloads' directory
+                boolean saved = false;
+                try {
+                    sink.allocate(fileSize);
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    long totalRead = 0;
+                    MessageDigest digest = key != null ? ContentHash.newDigest() : null; // Hashes the bytes as they arrive
 
-                fileOut.flush(); // Ensure all bytes are written
-                System.out.println("File " + filename + " downloaded successfully.");
+                    // Read the file in chunks and save it to disk
+                    while (totalRead < fileSize && (bytesRead = is.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead))) != -1) {
+                        sink.write(ByteBuffer.wrap(buffer, 0, bytesRead), totalRead);
+                        if (digest != null) {
+                            digest.update(buffer, 0, bytesRead);
+                        }
+                        totalRead += bytesRead;
+                    }
 
-                // Simulate displaying the file after download
-                System.out.println("Display file '" + filename + "'");
-            } else if ("NOT_FOUND".equals(response)) {
-                System.out.println("Peer does not have the file: " + filename);
+                    if (totalRead < fileSize) {
+                        Log.info("Peer closed the connection after {} of {} bytes.", totalRead, fileSize);
+                        return false;
+                    }
+                    reusable = true;
+                    if (digest != null && !key.equals(ContentHash.key(ContentHash.toHex(digest), totalRead))) {
+                        Log.warn("File {} from {} does not match its content key, discarded.", filename, peerIp + ":" + peerPort);
+                        return false;
+                    }
+                    sink.commit(); // The file appears under its name only now, complete
+                    saved = true;
+                    Log.info("File {} downloaded successfully.", filename);
+
+                    // Simulate displaying the file after download
+                    Log.info("Display file '{}'", filename);
+                    return true;
+                } finally {
+                    if (!saved) {
+                        sink.discard(); // Incomplete, or not the content asked for
+                    }
+                }
             } else {
-                System.out.println("Unexpected response: " + response);
+                reusable = true;
+                Log.info("Peer does not have the file: {}", filename);
             }
         } catch (IOException e) {
-            System.err.println("Error downloading file:");
-            e.printStackTrace();
+            Log.error("Error downloading file:", e);
+        } finally {
+            if (connection != null && reusable) {
+                downloads.release(connection);
+            } else if (connection != null) {
+                connection.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param filename Name of a downloaded file.
+     * @return Where it is saved, in the 'downloads' directory.
+     */
+    private static Path downloadPath(String filename) {
+        return Paths.get(DOWNLOAD_DIRECTORY, filename);
+    }
+
+    /**
+     * Sends a text file request and reads the FOUND/NOT_FOUND header.
+     *
+     * @return The file size, or -1 if the peer does not have the file.
+     */
+    private static long requestFileText(InputStream is, OutputStream os, String filename) throws IOException {
+        os.write((filename + "\n").getBytes());
+        os.flush();
+        String response = BinaryCodec.readTextLine(is);
+
+        if ("FOUND".equals(response)) {
+            return Long.parseLong(BinaryCodec.readTextLine(is));
+        } else if ("NOT_FOUND".equals(response)) {
+            return -1;
+        }
+        throw new IOException("Unexpected response: " + response);
+    }
+
+    /**
+     * Sends a GET_FILE frame on a connection already switched to binary framing and reads the answer frame.
+     *
+     * @return The file size, or -1 if the peer does not have the file.
+     */
+    private static long requestFileBinary(InputStream is, OutputStream os, String filename) throws IOException {
+        new FrameWriter(BinaryCodec.GET_FILE, 0).putString(filename).writeTo(os);
+        os.flush();
+        Frame response = BinaryCodec.readFrame(new DataInputStream(is));
+        if (response == null) {
+            throw new EOFException("Peer closed the connection");
         }
+        if (response.getOpcode() == BinaryCodec.FILE_NOT_FOUND) {
+            return -1;
+        }
+        expect(response, BinaryCodec.FILE_FOUND);
+        return response.getLong();
+    }
+
+    /**
+     * Deregisters the peer and every file it shares from the indexing server.
+     */
+    public void deregisterPeer() {
+        deregisterFiles(Collections.emptyList()); // A DEREGISTER without filenames removes the whole peer
     }
 
     /**
      * Deregisters a list of files from the indexing server.
+     * The peer itself stays registered as long as it still shares other files.
      *
      * @param files List of filenames to deregister.
      */
     public void deregisterFiles(List<String> files) {
-        try (
-                // Create a connection to the indexing server
-                Socket socket = new Socket(serverIp, serverPort);
-                PrintWriter out = new PrintWriter(
-                        new OutputStreamWriter(socket.getOutputStream()), true);
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()));
-        ) {
-            // Create the DEREGISTER message format
-            StringBuilder sb = new StringBuilder();
-            sb.append("DEREGISTER ").append(peerInfo.getPeerId());
+        try {
+            String response;
+            synchronized (syncLock) {
+                if (files.isEmpty()) {
+                    // Without file names every shard drops the whole peer
+                    sharedFiles.clear();
+                    versions.clear();
+                    contentOf.clear();
+                    holders.clear();
+                    response = sendToShards("DEREGISTER", everyShard(), true);
+                } else {
+                    // Each shard drops the files it owns, and the contents no other shared file has
+                    List<String> entries = new ArrayList<>(files);
+                    for (String filename : files) {
+                        String key = contentOf.remove(filename);
+                        if (key != null && release(key)) {
+                            entries.add(key);
+                        }
+                    }
+                    sharedFiles.removeAll(entries);
+                    response = sendDeltas("DEREGISTER", ring.split(entries));
+                }
+            }
+            Log.info("Server response: {}", response);
+        } catch (IOException e) {
+            Log.error("Error deregistering files:", e);
+        }
+    }
 
-            for (String file : files) {
-                sb.append(" ").append(file);
+    /**
+     * Sends a HEARTBEAT to every indexing server holding files of this peer, and registers the files
+     * again with a server that no longer knows the peer (its lease lapsed, or it lost its index).
+     *
+     * @return The shortest lease period reported in milliseconds, 0 if no server expires peers,
+     *         or -1 if it is not known yet (nothing registered, or registered again just now).
+     * @throws IOException if a server cannot be reached.
+     */
+    public long heartbeat() throws IOException {
+        Map<String, List<String>> byShard = ring.split(new ArrayList<>(sharedFiles));
+        Map<String, CompletableFuture<?>> responses = new LinkedHashMap<>();
+        for (String shard : byShard.keySet()) {
+            IndexConnection connection = connections.get(shard);
+            responses.put(shard, binary
+                    ? connection.sendFrame(new FrameWriter(BinaryCodec.HEARTBEAT, 0).putString(peerInfo.getPeerId()))
+                    : connection.send("HEARTBEAT " + peerInfo.getPeerId()));
+        }
+
+        long lease = byShard.isEmpty() ? -1 : 0;
+        boolean registeredAgain = false;
+        for (Map.Entry<String, CompletableFuture<?>> shard : responses.entrySet()) {
+            Object response = IndexConnection.await(shard.getValue());
+            String status;
+            long leaseMillis = 0;
+            if (binary) {
+                Frame frame = (Frame) response;
+                status = status("HEARTBEAT", frame);
+                if (frame.getOpcode() == BinaryCodec.OK) {
+                    leaseMillis = frame.getLong();
+                }
+            } else {
+                @SuppressWarnings("unchecked")
+                String line = ((List<String>) response).get(0);
+                status = line.startsWith("HEARTBEAT_SUCCESS ") ? "HEARTBEAT_SUCCESS" : line;
+                if (status.equals("HEARTBEAT_SUCCESS")) {
+                    leaseMillis = Long.parseLong(line.substring(18));
+                }
             }
 
-            // Send the DEREGISTER message to the server
-            out.println(sb.toString());
-            String response = in.readLine();
-            System.out.println("Server response: " + response);
-        } catch (IOException e) {
-            System.err.println("Error deregistering files:");
-            e.printStackTrace();
+            if (!status.equals("HEARTBEAT_SUCCESS")) {
+                Log.warn("Indexing server {} answered {}, registering again", shard.getKey(), status);
+                synchronized (syncLock) {
+                    Log.info("Server response: {}", fullSync(shard.getKey()));
+                }
+                registeredAgain = true;
+            } else if (leaseMillis > 0) {
+                lease = lease == 0 ? leaseMillis : Math.min(lease, leaseMillis);
+            }
+        }
+        return lease == 0 && registeredAgain ? -1 : lease; // The lease period is learnt with the next heartbeat
+    }
+
+    /**
+     * Starts a daemon thread that sends heartbeats three times per lease period until the client is closed.
+     * It stops by itself if the indexing servers do not expire peers.
+     */
+    public void startHeartbeats() {
+        Thread heartbeats = new Thread(() -> {
+            while (!closed) {
+                long pause = 250; // Until the lease period is known, or after an error
+                try {
+                    long lease = heartbeat();
+                    if (lease == 0) {
+                        Log.info("Indexing servers do not expire peers, no heartbeats needed");
+                        return;
+                    }
+                    if (lease > 0) {
+                        pause = lease / 3;
+                    }
+                } catch (IOException e) {
+                    Log.warn("Heartbeat failed: {}", e.getMessage());
+                }
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "peer-heartbeat");
+        heartbeats.setDaemon(true);
+        heartbeats.start();
+    }
+
+    /**
+     * Closes the connections to the indexing servers and the idle connections to other peers.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (IndexConnection connection : connections.values()) {
+            connection.close();
         }
+        downloads.close();
     }
 }
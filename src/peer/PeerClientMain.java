@@ -1,14 +1,12 @@
 // File: src/peer/PeerClientMain.java
 package peer;
 
+import common.Log;
 import common.PeerInfo;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
 
 /**
  * Main class to run Peer1's client operations.
@@ -18,24 +16,16 @@ import java.io.PrintWriter;
 public class PeerClientMain {
 
     // Method to log output to both the console and a file.
-    // This method prints messages to the console and also writes them to the output.txt file.
+    // The logger prints messages to the console and also appends them to the output.txt file,
+    // which it opens once in main instead of for every message.
     private static void logToFile(String message) {
-        // Specify the absolute path for the output file
-        String filePath = "C:\\Users\\dattu\\P2PFileSharing\\output.txt";
-
-        // Print the message to the console
-        System.out.println(message);
-
-        // Append the message to the output.txt file
-        try (FileWriter fw = new FileWriter(filePath, true);
-             PrintWriter pw = new PrintWriter(fw)) {
-            pw.println(message);  // Write the message to the file
-        } catch (IOException e) {
-            System.err.println("Error writing to output file: " + e.getMessage());
-        }
+        Log.info(message);
     }
 
     public static void main(String[] args) {
+        // Specify the absolute path for the output file
+        Log.toFile("C:\\Users\\dattu\\P2PFileSharing\\output.txt");
+
         // Set up the server IP and port where the indexing server is running
         String serverIp = "localhost";
         int serverPort = 5000;
@@ -48,8 +38,11 @@ public class PeerClientMain {
 
         // Create a PeerInfo object for Peer1
         PeerInfo peerInfo = new PeerInfo(peerId, ipAddress, peerPort, bandwidth);
+        // Directory holding the files this peer shares
+        String sharedDirectory = "C:\\Users\\dattu\\P2PFileSharing\\shared";
         // Instantiate PeerClient to handle communication with the central server
         PeerClient client = new PeerClient(serverIp, serverPort, peerInfo);
+        client.hashFilesIn(sharedDirectory); // Also registers each file under its content key
 
         // List of files to be registered by Peer1
         List<String> filesToRegister = Arrays.asList(
@@ -60,10 +53,10 @@ public class PeerClientMain {
 
         // Register the files with the central indexing server and log the output
         client.registerFiles(filesToRegister);
+        client.startHeartbeats(); // Keeps the registration alive on servers that expire silent peers
         logToFile("Server response: REGISTER_SUCCESS");
 
         // Start DirectoryWatcher to monitor file changes in the shared directory
-        String sharedDirectory = "C:\\Users\\dattu\\P2PFileSharing\\shared";
         DirectoryWatcher watcher = new DirectoryWatcher(sharedDirectory, client, peerInfo);
         // Run the directory watcher in a separate thread
         Thread watcherThread = new Thread(watcher);
@@ -101,8 +94,8 @@ public class PeerClientMain {
                 }
             } else if (choice == 2) {
                 // User chooses to exit the program
-                // Deregister all files before exiting
-                client.deregisterFiles(filesToRegister);
+                // Deregister the peer and all of its files before exiting
+                client.deregisterPeer();
                 logToFile("Server response: DEREGISTER_SUCCESS");
                 logToFile("Exiting...");
                 System.exit(0);  // Exit the program
@@ -1,6 +1,7 @@
 // File: src/peer/PeerClientMain3.java
 package peer;
 
+import common.Log;
 import common.PeerInfo;
 
 import java.util.Arrays;
@@ -25,8 +26,11 @@ public class PeerClientMain3 {
 
         // Create a PeerInfo object for Peer3
         PeerInfo peerInfo = new PeerInfo(peerId, ipAddress, peerPort, bandwidth);
+        // Directory holding the files this peer shares
+        String sharedDirectory = "C:\\Users\\dattu\\P2PFileSharing\\shared_peer3";
         // Instantiate PeerClient to handle communication with the central server
         PeerClient client = new PeerClient(serverIp, serverPort, peerInfo);
+        client.hashFilesIn(sharedDirectory); // Also registers each file under its content key
 
         // List of files to be registered by Peer3
         List<String> filesToRegister = Arrays.asList(
@@ -36,9 +40,9 @@ public class PeerClientMain3 {
         );
         // Register the files with the central indexing server
         client.registerFiles(filesToRegister);
+        client.startHeartbeats(); // Keeps the registration alive on servers that expire silent peers
 
         // Start DirectoryWatcher to monitor file changes in Peer3's shared directory
-        String sharedDirectory = "C:\\Users\\dattu\\P2PFileSharing\\shared_peer3";
         DirectoryWatcher watcher = new DirectoryWatcher(sharedDirectory, client, peerInfo);
         // Run the directory watcher in a separate thread
         Thread watcherThread = new Thread(watcher);
@@ -47,7 +51,8 @@ public class PeerClientMain3 {
         // Interactive Command Loop
         Scanner scanner = new Scanner(System.in);
         while (true) {
-            // Display menu options to the user
+            // Display menu options to the user, after any pending log output of the last action
+            Log.flush();
             System.out.println("\nChoose an action:");
             System.out.println("1. Search and Download a File");
             System.out.println("2. Exit");
@@ -75,8 +80,8 @@ public class PeerClientMain3 {
                 }
             } else if (choice == 2) {
                 // User chooses to exit the program
-                // Deregister all files before exiting
-                client.deregisterFiles(filesToRegister);
+                // Deregister the peer and all of its files before exiting
+                client.deregisterPeer();
                 System.out.println("Exiting...");
                 System.exit(0);  // Exit the program
             } else {
@@ -1,39 +1,55 @@
 // File: src/peer/PeerServer3.java
 package peer;
 
+import common.ExecutorMode;
+import common.Log;
+import common.PeerInfo;
+
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
 
 /**
  * PeerServer3 handles incoming file requests from other peers.
  * This class represents Peer3's server, which listens for file requests on a specified port.
  * When a request is received, it delegates the request to a handler in a separate thread.
+ * Optional arguments: [thread|pool|bounded|virtual] [poolSize] select how the handlers are executed.
  */
 public class PeerServer3 {
     public static void main(String[] args) {
         int port = 6002; // Unique port for Peer3 to listen on
         String sharedDirectory = "C:\\Users\\dattu\\P2PFileSharing\\shared_peer3"; // Directory containing files shared by Peer3
+        ExecutorMode mode = args.length > 0 ? ExecutorMode.fromString(args[0]) : ExecutorMode.THREAD;
+        int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : ExecutorMode.DEFAULT_POOL_SIZE;
+        ExecutorService executor = mode.newExecutor(poolSize); // Runs the FileRequestHandlers
+        HashCache hashes = new HashCache(sharedDirectory); // Content keys of the shared files, to serve them by content
+        // Reports the uploads in progress to the indexing server, which ranks busy peers lower
+        LoadReporter load = new LoadReporter(new PeerClient("localhost", 5000, new PeerInfo("Peer3", "localhost", port, 100.0)));
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // Sockets accepted from a channel let FileRequestHandler send files with zero-copy transferTo
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
             // Log the start of Peer3's server
-            System.out.println("PeerServer3 started on port " + port);
+            Log.info("PeerServer3 started on port " + port + " (" + mode + " executor)");
 
             // Continuously listen for incoming file requests
             while (true) {
                 // Accept incoming connections from other peers
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Accepted connection from " + clientSocket.getInetAddress());
+                Socket clientSocket = serverChannel.accept().socket();
+                Log.info("Accepted connection from {}", clientSocket.getInetAddress());
 
-                // Create a new thread to handle each file request using the FileRequestHandler
-                FileRequestHandler handler = new FileRequestHandler(clientSocket, sharedDirectory);
-                Thread handlerThread = new Thread(handler);
-                handlerThread.start(); // Start the thread to process the file request
+                // Handle each file request with a FileRequestHandler on the selected executor
+                FileRequestHandler handler = new FileRequestHandler(clientSocket, sharedDirectory, load, hashes,
+                        FileRequestHandler.idleTimeoutFor(mode));
+                executor.execute(handler);
             }
         } catch (IOException e) {
             // Log any errors that occur during Peer3's server operation
-            System.err.println("Error in PeerServer3:");
-            e.printStackTrace();
+            Log.error("Error in PeerServer3:", e);
+        } finally {
+            executor.shutdown();
         }
     }
 }
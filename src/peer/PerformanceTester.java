@@ -1,6 +1,10 @@
 // File: src/peer/PerformanceTester.java
 package peer;
 
+import common.BinaryCodec;
+import common.BinaryCodec.Frame;
+import common.BinaryCodec.FrameWriter;
+
 import java.io.*;
 import java.net.Socket;
 import java.time.LocalDateTime;
@@ -12,6 +16,7 @@ import java.util.concurrent.*;
 /**
  * The PerformanceTester class is responsible for testing the performance of the P2P file-sharing system.
  * It performs both sequential and concurrent search requests, logs response times, and writes the results to a CSV file.
+ * With the optional "binary" argument the searches use BinaryCodec frames instead of text lines.
  */
 public class PerformanceTester {
 
@@ -21,9 +26,16 @@ public class PerformanceTester {
     private int numberOfRequests;     // Number of search requests to perform
     private int numberOfThreads;      // Number of threads for concurrent testing
     private String logFilePath;       // Path to the log file where results are saved
+    private boolean binary;           // Whether to search with binary frames
 
     // Constructor
     public PerformanceTester(String serverIp, int serverPort, String filename, int numberOfRequests, int numberOfThreads, String logFilePath) {
+        this(serverIp, serverPort, filename, numberOfRequests, numberOfThreads, logFilePath, false);
+    }
+
+    // Constructor with the protocol choice
+    public PerformanceTester(String serverIp, int serverPort, String filename, int numberOfRequests, int numberOfThreads, String logFilePath, boolean binary) {
+        this.binary = binary;
         this.serverIp = serverIp;
         this.serverPort = serverPort;
         this.filename = filename;
@@ -39,25 +51,43 @@ public class PerformanceTester {
      */
     public double performSearch() {
         double responseTime = 0.0;
-        try (Socket socket = new Socket(serverIp, serverPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        try (Socket socket = new Socket(serverIp, serverPort)) {
+            InputStream is = new BufferedInputStream(socket.getInputStream());
+            OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+            if (binary) {
+                // Negotiate framing before the timer starts so only the search itself is measured
+                os.write((BinaryCodec.HELLO + "\n").getBytes());
+                os.flush();
+                if (!BinaryCodec.HELLO_OK.equals(BinaryCodec.readTextLine(is))) {
+                    throw new IOException("Server refused binary framing");
+                }
+            }
 
             // Start the timer
             long startTime = System.nanoTime();
 
-            // Send search request to server
-            out.println("SEARCH " + filename);
-
-            // Read server response
-            String response = in.readLine(); // "FOUND" or "NOT_FOUND"
-            if ("FOUND".equalsIgnoreCase(response)) {
-                String countStr = in.readLine(); // Number of peers found with the file
-                int count = Integer.parseInt(countStr);
-
-                // Optionally read peer details
-                for (int i = 0; i < count; i++) {
-                    in.readLine(); // Read peer info
+            if (binary) {
+                // Send search request to server and read the SEARCH_RESULTS frame
+                new FrameWriter(BinaryCodec.SEARCH, 0).putString(filename).writeTo(os);
+                os.flush();
+                Frame response = BinaryCodec.readFrame(new DataInputStream(is));
+                if (response == null || response.getOpcode() != BinaryCodec.SEARCH_RESULTS) {
+                    throw new IOException("Unexpected search response");
+                }
+            } else {
+                // Send search request to server
+                os.write(("SEARCH " + filename + "\n").getBytes());
+                os.flush();
+
+                // Read server response: "SEARCH_RESULTS n" followed by n peer lines, or a failure line
+                String response = BinaryCodec.readTextLine(is);
+                if (response != null && response.startsWith("SEARCH_RESULTS ")) {
+                    int count = Integer.parseInt(response.substring("SEARCH_RESULTS ".length()).trim());
+
+                    // Optionally read peer details
+                    for (int i = 0; i < count; i++) {
+                        BinaryCodec.readTextLine(is); // Read peer info
+                    }
                 }
             }
 
@@ -172,7 +202,7 @@ public class PerformanceTester {
      */
     public static void main(String[] args) {
         if (args.length < 6) {
-            System.out.println("Usage: java peer.PerformanceTester <serverIp> <serverPort> <filename> <sequentialRequests> <concurrentRequestsPerThread> <logFilePath>");
+            System.out.println("Usage: java peer.PerformanceTester <serverIp> <serverPort> <filename> <sequentialRequests> <concurrentRequestsPerThread> <logFilePath> [binary]");
             System.exit(1);
         }
 
@@ -183,19 +213,20 @@ public class PerformanceTester {
         int sequentialRequests = Integer.parseInt(args[3]);
         int concurrentRequestsPerThread = Integer.parseInt(args[4]);
         String logFilePath = args[5];
+        boolean binary = args.length > 6 && args[6].equals("binary");
 
         // Define thread pool sizes for concurrent testing
         int[] concurrentThreadPools = {5, 10, 20, 50};
 
         // Perform Sequential Tests
-        PerformanceTester tester = new PerformanceTester(serverIp, serverPort, filename, sequentialRequests, 1, logFilePath);
+        PerformanceTester tester = new PerformanceTester(serverIp, serverPort, filename, sequentialRequests, 1, logFilePath, binary);
         List<Double> seqResponseTimes = tester.performSequentialTests();
         tester.logResponseTimes(seqResponseTimes, "Sequential", 1);
 
         // Perform Concurrent Tests for different thread pool sizes
         for (int threads : concurrentThreadPools) {
             int totalConcurrentRequests = threads * concurrentRequestsPerThread;
-            PerformanceTester concurrentTester = new PerformanceTester(serverIp, serverPort, filename, totalConcurrentRequests, threads, logFilePath);
+            PerformanceTester concurrentTester = new PerformanceTester(serverIp, serverPort, filename, totalConcurrentRequests, threads, logFilePath, binary);
             try {
                 List<Double> concResponseTimes = concurrentTester.performConcurrentTests();
                 concurrentTester.logResponseTimes(concResponseTimes, "Concurrent", threads);
@@ -0,0 +1,198 @@
+// File: src/peer/ResumeRecord.java
+package peer;
+
+import common.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+/**
+ * ResumeRecord is the sidecar file of a chunked download: "name.resume" next to the target file. It holds
+ * the name or content key that was asked for, the file size and the chunk size, followed by the number of
+ * every chunk written to the part file (see DownloadSink) so far, appended and flushed as each chunk lands.
+ * A download that finds a record for the same request and size keeps the part file and skips the chunks
+ * listed, so a transfer cut short by a peer restart or by the client itself resumes where it stopped
+ * instead of starting over.
+ *
+ * A record is only appended after its chunk has been written, so a crash leaves at worst a chunk that is
+ * in the part file but not in the record, which is fetched again. A torn last entry is ignored.
+ */
+class ResumeRecord implements Closeable {
+    private static final int MAGIC = 0x50325052; // "P2PR"
+    private static final int VERSION = 1;
+
+    private final Path target;
+    private final Path path;
+    private final Path part;
+    private final String requested;
+    private final int chunkSize;
+    private long size = -1;                      // File size of the record, -1 if there is none
+    private final BitSet done = new BitSet();    // Chunks the record lists
+    private DataOutputStream out;
+    private boolean started;                     // Whether this download has rewritten the record
+
+    /**
+     * @param target    The file being downloaded.
+     * @param requested Name or content key the peers are asked for.
+     * @param chunkSize Bytes per chunk.
+     */
+    ResumeRecord(Path target, String requested, int chunkSize) {
+        this.target = target;
+        this.path = pathOf(target);
+        this.part = DownloadSink.partOf(target);
+        this.requested = requested;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param target The file being downloaded.
+     * @return The path of its sidecar file.
+     */
+    static Path pathOf(Path target) {
+        return target.resolveSibling(target.getFileName() + ".resume");
+    }
+
+    /**
+     * Deletes the sidecar file of a download whose part file is about to be written from the start.
+     *
+     * @param target The file being downloaded.
+     */
+    static void discard(Path target) {
+        try {
+            Files.deleteIfExists(pathOf(target));
+        } catch (IOException e) {
+            Log.warn("Could not delete {}: {}", pathOf(target), e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the record an earlier attempt left behind. A missing record, one written for another request
+     * or chunk size, or one whose part file is gone, reads as empty; chunks past the end of the part file
+     * are left out.
+     */
+    void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != chunkSize
+                    || !requested.equals(in.readUTF())) {
+                return;
+            }
+            long recordSize = in.readLong();
+            long partLength = Files.size(part);
+            while (true) {
+                int chunk;
+                try {
+                    chunk = in.readInt();
+                } catch (EOFException e) {
+                    break; // End of the record, or a torn last entry
+                }
+                long end = Math.min(recordSize, ((long) chunk + 1) * chunkSize);
+                if (chunk >= 0 && (long) chunk * chunkSize < recordSize && end <= partLength) {
+                    done.set(chunk);
+                }
+            }
+            size = recordSize;
+        } catch (NoSuchFileException e) {
+            // Nothing to resume
+        } catch (IOException e) {
+            Log.warn("Ignoring the unreadable download record {}: {}", path, e.getMessage());
+            done.clear();
+        }
+    }
+
+    /**
+     * Fixes the size of the download. The chunks already listed are kept if the size is the one recorded,
+     * otherwise the record starts over once the first chunk is written.
+     *
+     * @param fileSize Size of the file the peers report.
+     * @return The chunks already in the part file.
+     */
+    synchronized BitSet resume(long fileSize) {
+        if (fileSize != size) {
+            done.clear();
+            size = fileSize;
+        }
+        return (BitSet) done.clone();
+    }
+
+    /**
+     * Rewrites the record for this download, before the first chunk goes into the part file. Until then, the
+     * record of an earlier attempt stays as it was, in case this download gets nothing from its peers.
+     */
+    private void start() throws IOException {
+        started = true;
+        // Rewritten as a whole, which also drops a torn last entry
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(chunkSize);
+        out.writeUTF(requested);
+        out.writeLong(size);
+        for (int chunk = done.nextSetBit(0); chunk >= 0; chunk = done.nextSetBit(chunk + 1)) {
+            out.writeInt(chunk);
+        }
+        out.flush();
+    }
+
+    /**
+     * Called before a chunk is written to the part file.
+     *
+     * @throws IOException if the record cannot be written.
+     */
+    synchronized void writing() throws IOException {
+        if (!started) {
+            start();
+        }
+    }
+
+    /**
+     * Records a chunk that has been written to the part file.
+     *
+     * @param chunk Number of the chunk.
+     * @throws IOException if the record cannot be written.
+     */
+    synchronized void written(int chunk) throws IOException {
+        if (out == null) {
+            throw new IOException("The download record " + path + " is closed");
+        }
+        done.set(chunk);
+        out.writeInt(chunk);
+        out.flush(); // In the page cache by now, so it survives the process
+    }
+
+    /**
+     * @return Number of chunks in the part file, as far as the record knows.
+     */
+    synchronized int chunksDone() {
+        return done.cardinality();
+    }
+
+    /**
+     * @return True once this download has rewritten the record.
+     */
+    synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Closes the record and deletes it, once the download is complete or discarded.
+     */
+    void delete() {
+        close();
+        discard(target);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.warn("Could not close {}: {}", path, e.getMessage());
+            }
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+// File: src/peer/ShardBenchmark.java
+package peer;
+
+import common.Log;
+import common.PeerInfo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ShardBenchmark class measures SEARCH throughput against a sharded indexing tier. It registers
+ * a set of synthetic files through a PeerClient (which splits them over the shards), then runs client
+ * threads that search random registered files for a fixed time, each thread with its own PeerClient,
+ * and reports the searches per second. Run it with one shard and then with more shards (each indexing
+ * server in its own process, ideally on its own cores or hosts) to see how search throughput scales.
+ */
+public class ShardBenchmark {
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments for configuring the benchmark.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 4) {
+            System.out.println("Usage: java peer.ShardBenchmark <host:port,host:port,...> <files> <threads> <seconds> [binary]");
+            System.exit(1);
+        }
+
+        List<String> servers = Arrays.asList(args[0].split(","));
+        int files = Integer.parseInt(args[1]);
+        int threads = Integer.parseInt(args[2]);
+        int seconds = Integer.parseInt(args[3]);
+        boolean binary = args.length > 4 && args[4].equals("binary");
+        Log.setLevel("warn"); // Keep the per-request client output out of the measurement
+
+        // Register the files, 1000 names per request
+        PeerInfo peer = new PeerInfo("BenchPeer", "127.0.0.1", 6000, 100.0);
+        long start = System.nanoTime();
+        try (PeerClient client = new PeerClient(servers, peer, binary)) {
+            List<String> batch = new ArrayList<>();
+            for (int i = 0; i < files; i++) {
+                batch.add("file" + i + ".txt");
+                if (batch.size() == 1000 || i == files - 1) {
+                    client.registerFiles(batch);
+                    batch.clear();
+                }
+            }
+        }
+        System.out.printf("Registered %d files on %d shards in %.1f s%n",
+                files, servers.size(), (System.nanoTime() - start) / 1e9);
+
+        // Search random files from every thread until the time is up
+        LongAdder searches = new LongAdder();
+        LongAdder failures = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try (PeerClient client = new PeerClient(servers, peer, binary)) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        try {
+                            if (client.search("file" + random.nextInt(files) + ".txt").isEmpty()) {
+                                failures.increment();
+                            }
+                            searches.increment();
+                        } catch (IOException e) {
+                            failures.increment();
+                        }
+                    }
+                }
+            }, "bench-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        System.out.printf("%d shards, %d threads: %.0f searches/s, %d failures%n",
+                servers.size(), threads, searches.sum() / (double) seconds, failures.sum());
+        Log.flush();
+    }
+}
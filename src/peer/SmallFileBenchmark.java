@@ -0,0 +1,119 @@
+// File: src/peer/SmallFileBenchmark.java
+package peer;
+
+import common.BinaryCodec;
+import common.Log;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The SmallFileBenchmark class measures batch downloads of many small files from one peer, over the
+ * loopback interface. It serves a directory of small files the way PeerServer does (a channel-accepted
+ * socket and a new FileRequestHandler thread per connection) and downloads every file in turn, either on
+ * a new connection per file ("fresh", as before connections were kept alive) or through a ConnectionPool
+ * ("pooled"). Loopback has no round-trip time to speak of, so on a real network the difference is larger
+ * by about one round trip per file.
+ */
+public class SmallFileBenchmark {
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments: the number of files, their size in KB and the runs per mode.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java peer.SmallFileBenchmark <files> <sizeKB> [runs]");
+            System.exit(1);
+        }
+        int files = Integer.parseInt(args[0]);
+        int size = Integer.parseInt(args[1]) << 10;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Log.setLevel("warn");
+
+        Path dir = Files.createTempDirectory("smallfiles");
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        for (int i = 0; i < files; i++) {
+            Files.write(dir.resolve("file" + i + ".bin"), data);
+        }
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    new Thread(new FileRequestHandler(server.accept().socket(), dir.toString())).start();
+                }
+            } catch (IOException e) {
+                // Benchmark over
+            }
+        }, "bench-peer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        System.out.println("mode,files_per_s,mb_per_s");
+        try {
+            for (String mode : new String[]{"fresh", "pooled"}) {
+                download(mode, port, files, size); // Warm-up
+                long nanos = 0;
+                for (int r = 0; r < runs; r++) {
+                    nanos += download(mode, port, files, size);
+                }
+                double seconds = nanos / 1e9 / runs;
+                System.out.printf("%s,%.0f,%.1f%n", mode, files / seconds, (double) files * size / (1 << 20) / seconds);
+            }
+        } finally {
+            server.close();
+            for (int i = 0; i < files; i++) {
+                Files.deleteIfExists(dir.resolve("file" + i + ".bin"));
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * Downloads every file once, discarding the bytes.
+     *
+     * @return The elapsed nanoseconds.
+     */
+    private static long download(String mode, int port, int files, int size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long start = System.nanoTime();
+        try (ConnectionPool pool = new ConnectionPool(false)) {
+            for (int i = 0; i < files; i++) {
+                String filename = "file" + i + ".bin";
+                ConnectionPool.Connection connection = pool.send("localhost", port, 10_000, c -> {
+                    c.out.write((filename + "\n").getBytes());
+                    c.out.flush();
+                    String response = BinaryCodec.readTextLine(c.in);
+                    if (!"FOUND".equals(response)) {
+                        throw new IOException("Unexpected response: " + response);
+                    }
+                    return Long.parseLong(BinaryCodec.readTextLine(c.in));
+                });
+                long remaining = connection.getAnswer();
+                if (remaining != size) {
+                    throw new IOException(filename + " has " + remaining + " bytes, expected " + size);
+                }
+                while (remaining > 0) {
+                    int n = connection.in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0) {
+                        throw new EOFException(filename + " ended " + remaining + " bytes early");
+                    }
+                    remaining -= n;
+                }
+                if (mode.equals("pooled")) {
+                    pool.release(connection);
+                } else {
+                    connection.close();
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,174 @@
+// File: src/peer/TransferBenchmark.java
+package peer;
+
+import common.Log;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The TransferBenchmark class measures how fast a peer's file server uploads files of different sizes,
+ * over the loopback interface. For every size it serves the same file three ways: "copy4k" is the former
+ * upload loop (4 KB reads into a BufferedOutputStream), "stream" is FileRequestHandler on a plain socket
+ * (large chunks) and "zerocopy" is FileRequestHandler on a socket accepted from a channel (transferTo).
+ * It reports the throughput and the CPU time the serving thread spent per GB sent; the receiving side
+ * reads into a direct buffer and is not counted.
+ */
+public class TransferBenchmark {
+    private static final String[] MODES = {"copy4k", "stream", "zerocopy"};
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments: file sizes in MB, comma separated, and the runs per size.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java peer.TransferBenchmark <sizeMB,sizeMB,...> [runs] [dir]");
+            System.exit(1);
+        }
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Path dir = args.length > 2 ? Files.createDirectories(Path.of(args[2])) : Files.createTempDirectory("transfer");
+        Log.setLevel("warn");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.println("size_mb,mode,mb_per_s,cpu_ms_per_gb");
+        for (String sizeArg : args[0].split(",")) {
+            long size = Long.parseLong(sizeArg) << 20;
+            Path file = dir.resolve("transfer-" + sizeArg + "mb.bin");
+            createFile(file, size);
+            try {
+                for (String mode : MODES) {
+                    transfer(mode, dir, file, size, threads); // Warm-up, also brings the file into the page cache
+                    long nanos = 0;
+                    long cpu = 0;
+                    for (int r = 0; r < runs; r++) {
+                        long[] result = transfer(mode, dir, file, size, threads);
+                        nanos += result[0];
+                        cpu += result[1];
+                    }
+                    double seconds = nanos / 1e9 / runs;
+                    double gigabytes = size / (double) (1L << 30);
+                    System.out.printf("%s,%s,%.0f,%.0f%n", sizeArg, mode, (size >> 20) / seconds,
+                            cpu / 1e6 / runs / gigabytes);
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Serves the file once and reads it on this thread.
+     *
+     * @return The elapsed nanoseconds and the serving thread's CPU nanoseconds.
+     */
+    private static long[] transfer(String mode, Path dir, Path file, long size, ThreadMXBean threads) throws Exception {
+        long[] cpu = new long[1];
+        Thread server;
+        int port;
+        Closeable listener;
+        if (mode.equals("zerocopy")) {
+            ServerSocketChannel channel = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+            port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            listener = channel;
+            server = new Thread(() -> serve(() -> channel.accept().socket(), mode, dir, threads, cpu));
+        } else {
+            ServerSocket socket = new ServerSocket(0);
+            port = socket.getLocalPort();
+            listener = socket;
+            server = new Thread(() -> serve(socket::accept, mode, dir, threads, cpu));
+        }
+        server.start();
+
+        long start = System.nanoTime();
+        try (listener; SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            client.write(ByteBuffer.wrap((file.getFileName() + "\n").getBytes(StandardCharsets.UTF_8)));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            long received = -1;  // Body bytes, counted once the header has been skipped
+            int newlines = 0;
+            while (received < size) {
+                buffer.clear();
+                if (client.read(buffer) < 0) {
+                    throw new IOException("Transfer ended after " + received + " of " + size + " bytes");
+                }
+                buffer.flip();
+                while (newlines < 2 && buffer.hasRemaining()) {
+                    if (buffer.get() == '\n') {
+                        newlines++; // "FOUND" and the size line
+                    }
+                }
+                if (newlines == 2) {
+                    received = Math.max(received, 0) + buffer.remaining();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            client.shutdownOutput(); // No further request, so the handler closes the connection
+            server.join();
+            return new long[]{elapsed, cpu[0]};
+        }
+    }
+
+    private interface Acceptor {
+        Socket accept() throws IOException;
+    }
+
+    /**
+     * Accepts one connection and serves it, measuring the thread's CPU time.
+     */
+    private static void serve(Acceptor acceptor, String mode, Path dir, ThreadMXBean threads, long[] cpu) {
+        try {
+            Socket socket = acceptor.accept();
+            long start = threads.getCurrentThreadCpuTime();
+            if (mode.equals("copy4k")) {
+                copy4k(socket, dir);
+            } else {
+                new FileRequestHandler(socket, dir.toString()).run();
+            }
+            cpu[0] = threads.getCurrentThreadCpuTime() - start;
+        } catch (IOException e) {
+            Log.error("Error serving the benchmark file:", e);
+        }
+    }
+
+    /**
+     * The upload loop FileRequestHandler used before it sent files with transferTo.
+     */
+    private static void copy4k(Socket socket, Path dir) throws IOException {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            File file = dir.resolve(in.readLine()).toFile();
+            out.write(("FOUND\n" + file.length() + "\n").getBytes());
+            try (FileInputStream fileIn = new FileInputStream(file)) {
+                byte[] buffer = new byte[4096];
+                int bytesRead;
+                while ((bytesRead = fileIn.read(buffer)) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                }
+                out.flush();
+            }
+        }
+    }
+
+    private static void createFile(Path file, long size) throws IOException {
+        byte[] block = new byte[1 << 20];
+        ThreadLocalRandom.current().nextBytes(block);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20)) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+// File: src/server/AdmissionBenchmark.java
+package server;
+
+import common.ShardRing;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The AdmissionBenchmark class measures how well-behaved clients fare next to misbehaving ones on an
+ * IndexingServer started as a separate process. Well-behaved clients send paced SEARCH requests and
+ * record their latency, waiting out any BUSY answer like a PeerClient does; abusive clients loop SEARCH
+ * as fast as they can and ignore BUSY. Every client connects from its own loopback address
+ * (127.0.1.x for the well-behaved ones, 127.0.2.x for the abusers), so each has its own token bucket.
+ * Run it against a server with and without --rate-limit to compare the well-behaved clients' p99.
+ */
+public class AdmissionBenchmark {
+
+    /**
+     * A blocking text protocol connection from a given local address.
+     */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Connection(String server, String localAddress) throws IOException {
+            String[] address = ShardRing.hostAndPort(server);
+            socket = new Socket(address[0], Integer.parseInt(address[1]), InetAddress.getByName(localAddress), 0);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        }
+
+        /**
+         * @return long - The retry-after hint if the server answered BUSY, otherwise -1.
+         */
+        long search(String filename) throws IOException {
+            out.println("SEARCH " + filename);
+            String first = in.readLine();
+            if (first != null && first.startsWith("BUSY ")) {
+                return Long.parseLong(first.substring(5));
+            }
+            if (first == null || !first.startsWith("SEARCH_RESULTS ")) {
+                throw new IOException("Unexpected response: " + first);
+            }
+            int count = Integer.parseInt(first.substring(15));
+            for (int i = 0; i < count; i++) {
+                in.readLine();
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments for configuring the benchmark.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Usage: java server.AdmissionBenchmark <host:port> <clients> <requestsPerSecond> <abusers> <seconds>");
+            System.exit(1);
+        }
+
+        String server = args[0];
+        int clients = Integer.parseInt(args[1]);
+        int rate = Integer.parseInt(args[2]);
+        int abusers = Integer.parseInt(args[3]);
+        int seconds = Integer.parseInt(args[4]);
+        int files = 1000;
+
+        // Every file is shared by a few peers, so a search has some work to do
+        try (Connection setup = new Connection(server, "127.0.0.1")) {
+            for (int peer = 0; peer < 5; peer++) {
+                StringBuilder sb = new StringBuilder("REGISTER BenchPeer" + peer + " 127.0.0.1 " + (6000 + peer) + " 100.0");
+                for (int i = 0; i < files; i++) {
+                    sb.append(" file").append(i).append(".txt");
+                }
+                setup.out.println(sb);
+                String answer = setup.in.readLine();
+                if (!"REGISTER_SUCCESS".equals(answer)) {
+                    throw new IOException("Server answered: " + answer);
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        LongAdder abuserServed = new LongAdder();
+        LongAdder abuserBusy = new LongAdder();
+        LongAdder clientBusy = new LongAdder();
+        List<long[]> latencies = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int a = 0; a < abusers; a++) {
+            String local = "127.0.2." + (a + 1);
+            Thread abuser = new Thread(() -> {
+                try (Connection connection = new Connection(server, local)) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        if (connection.search("file" + random.nextInt(files) + ".txt") < 0) {
+                            abuserServed.increment();
+                        } else {
+                            abuserBusy.increment(); // Ignored: asks again right away
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println(local + ": " + e.getMessage());
+                }
+            }, "abuser-" + a);
+            threads.add(abuser);
+        }
+
+        for (int c = 0; c < clients; c++) {
+            String local = "127.0.1." + (c + 1);
+            long[] samples = new long[seconds * rate + 1];
+            latencies.add(samples);
+            Thread client = new Thread(() -> {
+                try (Connection connection = new Connection(server, local)) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long interval = 1_000_000_000L / rate;
+                    long next = System.nanoTime();
+                    for (int i = 0; i < samples.length - 1 && next < deadline; i++) {
+                        while (System.nanoTime() < next) {
+                            Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+                        }
+                        long sent = System.nanoTime();
+                        String filename = "file" + random.nextInt(files) + ".txt";
+                        long retryAfter;
+                        while ((retryAfter = connection.search(filename)) >= 0) {
+                            clientBusy.increment();
+                            Thread.sleep(retryAfter);
+                        }
+                        samples[i] = System.nanoTime() - sent;
+                        samples[samples.length - 1] = i + 1; // Number of samples taken
+                        next += interval;
+                    }
+                } catch (IOException | InterruptedException e) {
+                    System.out.println(local + ": " + e.getMessage());
+                }
+            }, "client-" + c);
+            threads.add(client);
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Latency of every well-behaved request, from first send to the answer
+        int count = 0;
+        for (long[] samples : latencies) {
+            count += (int) samples[samples.length - 1];
+        }
+        long[] all = new long[count];
+        int position = 0;
+        for (long[] samples : latencies) {
+            int taken = (int) samples[samples.length - 1];
+            System.arraycopy(samples, 0, all, position, taken);
+            position += taken;
+        }
+        Arrays.sort(all);
+        if (count > 0) {
+            System.out.printf("%d clients at %d req/s: %d requests, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d BUSY%n",
+                    clients, rate, count, all[count / 2] / 1e6, all[count * 99 / 100] / 1e6, all[count - 1] / 1e6, clientBusy.sum());
+        }
+        System.out.printf("%d abusers: %.0f searches/s served, %.0f BUSY/s%n",
+                abusers, abuserServed.sum() / (double) seconds, abuserBusy.sum() / (double) seconds);
+    }
+}
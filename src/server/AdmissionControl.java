@@ -0,0 +1,139 @@
+// File: src/server/AdmissionControl.java
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The AdmissionControl class protects the IndexingServer from overload. It bounds the number of open
+ * connections, and it gives every client address a token bucket for lookups (SEARCH, MSEARCH,
+ * SEARCH_PREFIX, SEARCH_LIKE and their binary forms), so one peer looping SEARCH only slows itself down.
+ * Rejected work is answered with BUSY and the number of milliseconds after which a retry will be admitted.
+ *
+ * A bucket is a single AtomicLong holding the time at which it will be full again (the "theoretical
+ * arrival time" form of a token bucket): a lookup is admitted if that time, advanced by one token, is
+ * at most burst tokens ahead of now. Admitting is one compare-and-set, without locks. Buckets that are
+ * full again carry no information and are swept away from time to time.
+ */
+class AdmissionControl {
+    static final long CONNECTION_RETRY_MILLIS = 1000; // Retry hint for connections over the limit
+    private static final long SWEEP_NANOS = 10_000_000_000L; // Interval between two sweeps of full buckets
+
+    private final int maxConnections;      // 0 = unlimited
+    private final long intervalNanos;      // Time in which one token is refilled, 0 = no rate limit
+    private final long burstNanos;         // Bucket size expressed as time
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructor to set the limits.
+     * @param maxConnections - Most connections open at once, 0 for no limit.
+     * @param ratePerSecond - Lookups per second and client address, 0 for no limit.
+     * @param burst - Lookups a client may send at once after a pause, at least 1.
+     */
+    AdmissionControl(int maxConnections, int ratePerSecond, int burst) {
+        this.maxConnections = maxConnections;
+        this.intervalNanos = ratePerSecond > 0 ? 1_000_000_000L / ratePerSecond : 0;
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    /**
+     * Counts a new connection if the limit allows it.
+     * @return boolean - False if the connection has to be turned away; it must then not be counted as closed.
+     */
+    boolean connectionOpened() {
+        if (maxConnections <= 0) {
+            connections.incrementAndGet();
+            accepted.increment();
+            return true;
+        }
+        while (true) {
+            int open = connections.get();
+            if (open >= maxConnections) {
+                rejected.increment();
+                return false;
+            }
+            if (connections.compareAndSet(open, open + 1)) {
+                accepted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Counts a connection admitted by connectionOpened as closed.
+     */
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * @return int - Number of open connections.
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return long - Number of connections admitted since startup.
+     */
+    long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * @return long - Number of connections turned away since startup.
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return boolean - True if lookups are rate limited.
+     */
+    boolean isRateLimited() {
+        return intervalNanos > 0;
+    }
+
+    /**
+     * Takes one token from a client's bucket.
+     * @param client - The client address.
+     * @return long - 0 if the lookup is admitted, otherwise the milliseconds until a token is available.
+     */
+    long acquire(String client) {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        sweep(now);
+        AtomicLong full = buckets.computeIfAbsent(client, key -> new AtomicLong(now));
+        while (true) {
+            long fullAt = full.get();
+            long next = Math.max(fullAt, now) + intervalNanos;
+            long excess = next - now - burstNanos;
+            if (excess > 0) {
+                return Math.max(1, (excess + 999_999) / 1_000_000); // Bucket empty
+            }
+            if (full.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Drops the buckets that are full again, at most once per SWEEP_NANOS and by one thread at a time.
+     */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        buckets.values().removeIf(full -> full.get() <= now);
+    }
+}
@@ -1,24 +1,53 @@
 // File: src/server/ClientHandler.java
 package server;
 
+import common.BinaryCodec;
+import common.BinaryCodec.Frame;
+import common.BinaryCodec.FrameWriter;
+import common.ContentHash;
+import common.Log;
 import common.PeerInfo;
+import common.ShardRing;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles communication with a connected peer.
  * Manages registration, search, and deregistration of files.
  * Implements the Runnable interface to allow handling each peer in a separate thread.
+ * A connection speaks the text line protocol until the peer negotiates binary framing (see BinaryCodec).
  */
 public class ClientHandler implements Runnable {
     private Socket clientSocket;
 
-    // Maps to store peer information and the files they share
-    private static Map<String, PeerInfo> peerMap = new ConcurrentHashMap<>(); // Maps peer ID to PeerInfo
-    private static Map<String, Set<PeerInfo>> fileMap = new ConcurrentHashMap<>(); // Maps file name to a set of peers sharing that file
+    // Index of the registered peers and the files they share (file to peers, and peer to files)
+    private static FileIndex index = new ConcurrentFileIndex();
+    // Sorted and trigram name index behind SEARCH_PREFIX / SEARCH_LIKE, null when disabled
+    private static NameIndex nameIndex;
+    // Pre-encoded SEARCH responses of hot files, null when disabled
+    private static SearchCache searchCache;
+    // Replication from a leader while this server is a follower, null on a leader
+    private static volatile ReplicaFollower replica;
+    // Peer leases renewed by REGISTER and HEARTBEAT, null when peers never expire
+    private static LeasedFileIndex leases;
+    // Chunked registrations in progress and the acknowledged library versions of the peers
+    private static final PeerSync sync = new PeerSync();
+    // Active uploads reported by the peers, used to rank the results of "SEARCH filename K"
+    private static final PeerLoad load = new PeerLoad();
+    // Connection limit and per-client token buckets for lookups, null when not set up by a server
+    private static AdmissionControl admission;
+    // Request counts, failures and latencies per command, reported by STATS
+    private static final ServerStats stats = new ServerStats();
+    // Secret the operator commands REBALANCE, PROMOTE and FOLLOW must carry, null when they are disabled
+    private static byte[] adminToken;
+
+    private static final int DEFAULT_NAME_RESULTS = 100; // Names returned by a partial search without a limit
+    private static final int MAX_NAME_RESULTS = 1000;    // Upper bound for the limit a peer may ask for
+    private static final String READ_ONLY = "Read-only replica, register with the leader.";
 
     /**
      * Constructor that initializes the ClientHandler with a connected client socket.
@@ -28,64 +57,482 @@ public class ClientHandler implements Runnable {
         this.clientSocket = clientSocket;
     }
 
+    /**
+     * Replaces the index used by all handlers. Called once at startup, before any connection is accepted.
+     * @param fileIndex - The index implementation selected in the server configuration.
+     */
+    static void useIndex(FileIndex fileIndex) {
+        index = fileIndex;
+    }
+
+    /**
+     * Enables partial name searches. Called once at startup; the name index must already listen to the file index.
+     * @param names - The name index kept up to date by the file index.
+     */
+    static void useNameIndex(NameIndex names) {
+        nameIndex = names;
+    }
+
+    /**
+     * Enables the SEARCH response cache. Called once at startup; the cache must already listen to the file index.
+     * @param cache - The cache kept up to date by the file index.
+     */
+    static void useSearchCache(SearchCache cache) {
+        searchCache = cache;
+    }
+
+    /**
+     * Makes this server a read-only follower. Called at startup or by a FOLLOW command.
+     * @param follower - The follower keeping the index in step with the leader.
+     */
+    static void useReplica(ReplicaFollower follower) {
+        replica = follower;
+    }
+
+    /**
+     * Enables HEARTBEAT. Called once at startup; the leased index must be part of the index passed to useIndex.
+     * @param leasedIndex - The index that expires peers without heartbeats.
+     */
+    static void useLeases(LeasedFileIndex leasedIndex) {
+        leases = leasedIndex;
+    }
+
+    /**
+     * Enables the operator commands for requests that carry the given token. Called once at startup.
+     * @param token - The shared secret from the server configuration.
+     */
+    static void useAdminToken(String token) {
+        adminToken = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sets the connection limit and the lookup rate limits per client address, which STATS also reports on.
+     * Called once at startup, before any connection is accepted.
+     * @param control - The admission control holding the connection count and the token buckets.
+     */
+    static void useAdmission(AdmissionControl control) {
+        admission = control;
+    }
+
+    /**
+     * Checks a text request against the client's token bucket. Only lookups are limited: throttling
+     * registrations, deltas or heartbeats would make peers resynchronize or lose their lease.
+     * @param client - The client address.
+     * @param request - One request line.
+     * @return long - 0 if the request may run, otherwise the retry-after hint for a "BUSY ms" answer.
+     */
+    static long throttle(String client, String request) {
+        if (admission == null || !admission.isRateLimited()) {
+            return 0;
+        }
+        boolean lookup = request.regionMatches(true, 0, "SEARCH", 0, 6) || request.regionMatches(true, 0, "MSEARCH", 0, 7);
+        return lookup ? busy(admission.acquire(client)) : 0;
+    }
+
+    /**
+     * Checks a binary request against the client's token bucket, like throttle for text lines.
+     * @param client - The client address.
+     * @param request - The request frame.
+     * @return long - 0 if the request may run, otherwise the retry-after hint for a BUSY frame.
+     */
+    static long throttle(String client, Frame request) {
+        if (admission == null || !admission.isRateLimited()) {
+            return 0;
+        }
+        switch (request.getOpcode()) {
+            case BinaryCodec.SEARCH:
+            case BinaryCodec.SEARCH_TOP:
+            case BinaryCodec.MSEARCH:
+            case BinaryCodec.SEARCH_PREFIX:
+            case BinaryCodec.SEARCH_LIKE:
+            case BinaryCodec.SEARCH_HASH:
+                return busy(admission.acquire(client));
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Counts a lookup turned away by throttle.
+     */
+    private static long busy(long retryAfter) {
+        if (retryAfter > 0) {
+            stats.busy();
+        }
+        return retryAfter;
+    }
+
+    /**
+     * @return ServerStats - The counters of all handlers, for the NIO event loops to add their bytes to.
+     */
+    static ServerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return boolean - True while this server follows a leader and must refuse registrations.
+     */
+    static boolean readOnly() {
+        ReplicaFollower follower = replica;
+        return follower != null && !follower.isPromoted();
+    }
+
     /**
      * The main run method that listens for requests from the peer and processes them.
      * Handles registration, search, and deregistration commands.
      */
     @Override
     public void run() {
+        String client = clientSocket.getInetAddress().getHostAddress(); // Key of the client's token bucket
         try (
                 // Input and Output streams for communication with the peer
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(
-                        new OutputStreamWriter(clientSocket.getOutputStream()), true);
+                // Counted below the buffers, so bytes_in and bytes_out are what went over the socket
+                InputStream socketIn = stats.countIn(clientSocket.getInputStream());
+                OutputStream socketOut = stats.countOut(clientSocket.getOutputStream());
+                BufferedReader in = new BufferedReader(new InputStreamReader(socketIn));
+                // Not auto-flushing: responses to pipelined requests are flushed together
+                PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socketOut)), false);
         ) {
             String request;
             // Continuously listen for incoming requests from the peer
             while ((request = in.readLine()) != null) {
-                System.out.println("Received request: " + request);
-                String[] parts = request.split(" "); // Split the request into parts
-                String command = parts[0]; // The first part is the command
-
-                // Handle different commands (REGISTER, SEARCH, DEREGISTER)
-                switch (command.toUpperCase()) {
-                    case "REGISTER":
-                        handleRegister(parts, out); // Handle peer registration
-                        break;
-                    case "SEARCH":
-                        handleSearch(parts, out); // Handle file search requests
-                        break;
-                    case "DEREGISTER":
-                        handleDeregister(parts, out); // Handle peer deregistration
-                        break;
-                    default:
-                        out.println("INVALID_COMMAND"); // Send error if the command is not recognized
+                if (BinaryCodec.HELLO.equals(request)) {
+                    // The peer switches to binary frames; it must wait for the answer before sending any
+                    out.println(BinaryCodec.HELLO_OK);
+                    out.flush();
+                    serveBinary(client, socketIn, socketOut);
+                    break;
+                }
+                long retryAfter = throttle(client, request);
+                if (retryAfter > 0) {
+                    out.println("BUSY " + retryAfter);
+                    out.flush();
+                    pause(retryAfter); // Not read meanwhile, so ignoring BUSY does not help
+                } else {
+                    processRequest(request, out);
+                }
+                if (!in.ready()) {
+                    out.flush(); // No further request is buffered, so the peer is waiting for these answers
                 }
             }
         } catch (IOException e) {
-            System.err.println("Error handling client:");
-            e.printStackTrace();
+            Log.error("Error handling client:", e);
         } finally {
             // Close the client connection once the session is over
             try {
                 clientSocket.close();
-                System.out.println("Closed connection with client.");
+                Log.info("Closed connection with client.");
             } catch (IOException e) {
-                System.err.println("Error closing client socket:");
-                e.printStackTrace();
+                Log.error("Error closing client socket:", e);
             }
         }
     }
 
+    /**
+     * Serves binary frames on this connection until the peer closes it.
+     * @param client - The client address, which rate limits apply to.
+     * @param socketIn - The socket's input stream.
+     * @param socketOut - The socket's output stream.
+     */
+    private void serveBinary(String client, InputStream socketIn, OutputStream socketOut) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socketIn));
+        BufferedOutputStream out = new BufferedOutputStream(socketOut);
+        Frame request;
+        while ((request = BinaryCodec.readFrame(in)) != null) {
+            long retryAfter = throttle(client, request);
+            if (retryAfter > 0) {
+                new FrameWriter(BinaryCodec.BUSY, request.getRequestId()).putLong(retryAfter).writeTo(out);
+                out.flush();
+                pause(retryAfter);
+                continue;
+            }
+            processFrame(request).writeTo(out);
+            if (in.available() == 0) {
+                out.flush(); // Same batching as the text loop: flush once no further request is buffered
+            }
+        }
+    }
+
+    /**
+     * Holds a throttled connection for its retry-after time; only this connection's handler waits.
+     */
+    private static void pause(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pausing a throttled connection");
+        }
+    }
+
+    /**
+     * Dispatches one binary request frame and builds the response frame.
+     * Shared by the blocking handler and the NIO event loops, like processRequest for text lines.
+     * @param request - The decoded request frame.
+     * @return FrameWriter - The response, carrying the request's ID.
+     */
+    static FrameWriter processFrame(Frame request) {
+        long start = System.nanoTime();
+        int command = ServerStats.command(request.getOpcode());
+        FrameWriter response = dispatchFrame(request);
+        if (response.getOpcode() == BinaryCodec.ERROR || response.getOpcode() == BinaryCodec.STALE_VERSION) {
+            stats.error(command);
+        }
+        stats.record(command, start);
+        return response;
+    }
+
+    /**
+     * Builds the response frame for processFrame.
+     */
+    private static FrameWriter dispatchFrame(Frame request) {
+        Log.infoSampled("Received binary request: opcode {}", request.getOpcode());
+        int requestId = request.getRequestId();
+        try {
+            switch (request.getOpcode()) {
+                case BinaryCodec.REGISTER: {
+                    if (readOnly()) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString(READ_ONLY);
+                    }
+                    PeerInfo peerInfo = request.getPeer();
+                    register(peerInfo, request.getStrings());
+                    return new FrameWriter(BinaryCodec.OK, requestId);
+                }
+                case BinaryCodec.REGISTER_BEGIN:
+                case BinaryCodec.REGISTER_ADD:
+                case BinaryCodec.REGISTER_END: {
+                    if (readOnly()) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString(READ_ONLY);
+                    }
+                    String error;
+                    if (request.getOpcode() == BinaryCodec.REGISTER_BEGIN) {
+                        error = registerBegin(request.getPeer());
+                    } else if (request.getOpcode() == BinaryCodec.REGISTER_ADD) {
+                        error = registerAdd(request.getString(), request.getStrings());
+                    } else {
+                        error = registerEnd(request.getString(), request.getLong());
+                    }
+                    return error == null
+                            ? new FrameWriter(BinaryCodec.OK, requestId)
+                            : new FrameWriter(BinaryCodec.ERROR, requestId).putString(error);
+                }
+                case BinaryCodec.ADD:
+                case BinaryCodec.REMOVE: {
+                    if (readOnly()) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString(READ_ONLY);
+                    }
+                    String peerId = request.getString();
+                    long version = request.getLong();
+                    long held = delta(peerId, version, request.getStrings(), request.getOpcode() == BinaryCodec.ADD);
+                    return held == version
+                            ? new FrameWriter(BinaryCodec.OK, requestId)
+                            : new FrameWriter(BinaryCodec.STALE_VERSION, requestId).putLong(held);
+                }
+                case BinaryCodec.SEARCH:
+                    return appendSearchResults(new FrameWriter(BinaryCodec.SEARCH_RESULTS, requestId), request.getString());
+                case BinaryCodec.SEARCH_TOP: {
+                    String filename = request.getString();
+                    int k = request.getInt();
+                    if (k < 1) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString("Invalid number of peers.");
+                    }
+                    byte[] body = SearchCache.encodeBinary(load.top(index.search(filename), k));
+                    return new FrameWriter(BinaryCodec.SEARCH_RESULTS, requestId).putRaw(body, 0, body.length);
+                }
+                case BinaryCodec.SEARCH_HASH: {
+                    String key = request.getString();
+                    int k = request.getInt();
+                    if (!ContentHash.isKey(key)) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString("Invalid content key.");
+                    }
+                    if (k <= 0) {
+                        return appendSearchResults(new FrameWriter(BinaryCodec.SEARCH_RESULTS, requestId), key);
+                    }
+                    byte[] body = SearchCache.encodeBinary(load.top(index.search(key), k));
+                    return new FrameWriter(BinaryCodec.SEARCH_RESULTS, requestId).putRaw(body, 0, body.length);
+                }
+                case BinaryCodec.LOAD: {
+                    String error = reportLoad(request.getString(), request.getInt());
+                    return error == null
+                            ? new FrameWriter(BinaryCodec.OK, requestId)
+                            : new FrameWriter(BinaryCodec.ERROR, requestId).putString(error);
+                }
+                case BinaryCodec.MSEARCH: {
+                    List<String> filenames = request.getStrings();
+                    FrameWriter response = new FrameWriter(BinaryCodec.MSEARCH_RESULTS, requestId).putInt(filenames.size());
+                    for (String filename : filenames) {
+                        appendSearchResults(response, filename);
+                    }
+                    return response;
+                }
+                case BinaryCodec.SEARCH_PREFIX:
+                case BinaryCodec.SEARCH_LIKE: {
+                    if (nameIndex == null) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString("Name index disabled.");
+                    }
+                    String text = request.getString();
+                    int limit = request.getInt();
+                    if (limit < 1) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString("Invalid limit.");
+                    }
+                    limit = Math.min(limit, MAX_NAME_RESULTS);
+                    List<String> names = request.getOpcode() == BinaryCodec.SEARCH_PREFIX
+                            ? nameIndex.searchPrefix(text, limit) : nameIndex.searchLike(text, limit);
+                    return new FrameWriter(BinaryCodec.NAME_RESULTS, requestId).putStrings(names);
+                }
+                case BinaryCodec.HEARTBEAT: {
+                    String error = heartbeat(request.getString());
+                    if (error != null) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString(error);
+                    }
+                    return new FrameWriter(BinaryCodec.OK, requestId).putLong(leases == null ? 0 : leases.getLeaseMillis());
+                }
+                case BinaryCodec.DEREGISTER: {
+                    if (readOnly()) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString(READ_ONLY);
+                    }
+                    String peerId = request.getString();
+                    if (deregister(peerId, request.getStrings()) == null) {
+                        return new FrameWriter(BinaryCodec.ERROR, requestId).putString("Peer not found.");
+                    }
+                    return new FrameWriter(BinaryCodec.OK, requestId);
+                }
+                case BinaryCodec.STATS: {
+                    Map<String, Long> report = stats.report(index, admission);
+                    FrameWriter response = new FrameWriter(BinaryCodec.STATS_RESULTS, requestId).putInt(report.size());
+                    for (Map.Entry<String, Long> value : report.entrySet()) {
+                        response.putString(value.getKey()).putLong(value.getValue());
+                    }
+                    return response;
+                }
+                default:
+                    return new FrameWriter(BinaryCodec.ERROR, requestId).putString("Invalid command.");
+            }
+        } catch (RuntimeException e) {
+            // Fields missing or cut short: answer instead of dropping the connection
+            return new FrameWriter(BinaryCodec.ERROR, requestId).putString("Malformed request.");
+        }
+    }
+
+    /**
+     * Appends the body of a binary SEARCH_RESULTS for one file: the peer count and the peers' fields.
+     */
+    private static FrameWriter appendSearchResults(FrameWriter response, String filename) {
+        byte[] body = searchCache != null
+                ? searchCache.get(filename).getBinary()
+                : SearchCache.encodeBinary(index.search(filename));
+        return response.putRaw(body, 0, body.length);
+    }
+
+    /**
+     * Answers a plain "SEARCH filename" line straight from the cache as UTF-8 bytes, which lets the NIO
+     * event loops queue a hot response without rendering it through a PrintWriter.
+     * @param request - One request line as sent by the peer.
+     * @return byte[] - The encoded response, or null if the cache is disabled or the line is another request.
+     */
+    static byte[] cachedSearchResponse(String request) {
+        if (searchCache == null || !request.regionMatches(true, 0, "SEARCH ", 0, 7) || request.indexOf(' ', 7) >= 0) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Log.infoSampled("Received request: {}", request);
+        byte[] response = searchCache.get(request.substring(7)).getTextBytes();
+        stats.record(ServerStats.SEARCH, start);
+        return response;
+    }
+
+    /**
+     * Parses a single request line and dispatches it to the matching handler.
+     * Shared by the blocking per-connection loop and the NIO event loops, so both modes speak the same protocol.
+     * @param request - One request line as sent by the peer (without the line terminator).
+     * @param out - Output stream to send responses to the peer.
+     */
+    static void processRequest(String request, PrintWriter out) {
+        long start = System.nanoTime();
+        String[] parts = request.split(" "); // Split the request into parts
+        String command = parts[0].toUpperCase(); // The first part is the command
+        Log.infoSampled("Received request: {}", isOperatorCommand(command) ? command : request); // Keep the token out of the log
+
+        // Handle different commands (REGISTER, REGISTER_BEGIN/ADD/END, ADD, REMOVE, SEARCH, MSEARCH,
+        // SEARCH_PREFIX, SEARCH_LIKE, SEARCH_HASH, DEREGISTER, HEARTBEAT, LOAD, STATS,
+        // and the operator commands REBALANCE, PROMOTE and FOLLOW, which carry the admin token)
+        switch (command) {
+            case "REGISTER":
+                handleRegister(parts, out); // Handle peer registration
+                break;
+            case "REGISTER_BEGIN":
+            case "REGISTER_ADD":
+            case "REGISTER_END":
+                handleChunkedRegister(parts, out); // A large library registered in batches
+                break;
+            case "ADD":
+            case "REMOVE":
+                handleDelta(parts, out); // Files added to or removed from a library in sync
+                break;
+            case "SEARCH":
+            case "SEARCH_HASH":
+                handleSearch(parts, out); // Handle file search requests, by name or by content key
+                break;
+            case "MSEARCH":
+                handleMultiSearch(parts, out); // Several file searches in one round trip
+                break;
+            case "SEARCH_PREFIX":
+                handleNameSearch(parts, out, true); // Names starting with a prefix
+                break;
+            case "SEARCH_LIKE":
+                handleNameSearch(parts, out, false); // Names matching a wildcard pattern
+                break;
+            case "DEREGISTER":
+                handleDeregister(parts, out); // Handle peer deregistration
+                break;
+            case "HEARTBEAT":
+                handleHeartbeat(parts, out); // Renew a peer's lease
+                break;
+            case "LOAD":
+                handleLoad(parts, out); // A peer's number of active uploads
+                break;
+            case "STATS":
+                handleStats(out); // The server's own counters and latencies
+                break;
+            case "REBALANCE":
+                handleRebalance(parts, out); // Hand files to other shards after a ring change
+                break;
+            case "PROMOTE":
+                handlePromote(parts, out); // Stop following the leader and accept registrations
+                break;
+            case "FOLLOW":
+                handleFollow(parts, out); // Become a follower of another leader
+                break;
+            default:
+                stats.error(ServerStats.OTHER);
+                out.println("INVALID_COMMAND"); // Send error if the command is not recognized
+        }
+        stats.record(ServerStats.command(command), start);
+    }
+
+    /**
+     * Sends a command's failure response and counts it for STATS.
+     * @param out - Output stream to send responses to the peer.
+     * @param command - The command in upper case, e.g. "SEARCH".
+     * @param message - The reason for the failure.
+     */
+    private static void fail(PrintWriter out, String command, String message) {
+        stats.error(ServerStats.command(command));
+        out.println(command + "_FAILURE " + message);
+    }
+
     /**
      * Handle peer registration, including registering the peer's files.
      * @param parts - The parts of the registration command.
      * @param out - Output stream to send responses to the peer.
      */
-    private void handleRegister(String[] parts, PrintWriter out) {
+    private static void handleRegister(String[] parts, PrintWriter out) {
         if (parts.length < 5) { // Ensure the command has enough arguments
-            out.println("REGISTER_FAILURE Invalid number of arguments.");
+            fail(out, "REGISTER", "Invalid number of arguments.");
+            return;
+        }
+        if (readOnly()) {
+            fail(out, "REGISTER", READ_ONLY);
             return;
         }
 
@@ -94,73 +541,503 @@ public class ClientHandler implements Runnable {
         int port = Integer.parseInt(parts[3]); // Peer port number
         double bandwidth = Double.parseDouble(parts[4]); // Peer bandwidth
 
-        // Create a new PeerInfo object and add it to the peerMap
+        // Create a new PeerInfo object and register it together with each file it shares
         PeerInfo peerInfo = new PeerInfo(peerId, ipAddress, port, bandwidth);
-        peerMap.put(peerId, peerInfo);
-        System.out.println("Registered peer: " + peerId);
+        register(peerInfo, Arrays.asList(parts).subList(5, parts.length));
+
+        out.println("REGISTER_SUCCESS"); // Acknowledge successful registration
+    }
+
+    /**
+     * Handle the steps of a chunked registration:
+     * "REGISTER_BEGIN peerId ip port bandwidth", then "REGISTER_ADD peerId file..." for each batch, then
+     * "REGISTER_END peerId version". Each step is acknowledged with COMMAND_SUCCESS; REGISTER_END also
+     * removes the peer's earlier files that were not sent again (see PeerSync).
+     * @param parts - The parts of the command.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handleChunkedRegister(String[] parts, PrintWriter out) {
+        String command = parts[0].toUpperCase();
+        if (parts.length < 2
+                || (command.equals("REGISTER_BEGIN") && parts.length != 5)
+                || (command.equals("REGISTER_END") && parts.length != 3)) {
+            fail(out, command, "Invalid number of arguments.");
+            return;
+        }
+        if (readOnly()) {
+            fail(out, command, READ_ONLY);
+            return;
+        }
 
-        // Register each file shared by the peer
-        for (int i = 5; i < parts.length; i++) {
-            String filename = parts[i];
-            fileMap.putIfAbsent(filename, ConcurrentHashMap.newKeySet());
-            fileMap.get(filename).add(peerInfo); // Add the peer to the set of peers sharing the file
-            System.out.println("Registered file '" + filename + "' for peer " + peerId);
+        String error;
+        try {
+            if (command.equals("REGISTER_BEGIN")) {
+                error = registerBegin(new PeerInfo(parts[1], parts[2], Integer.parseInt(parts[3]), Double.parseDouble(parts[4])));
+            } else if (command.equals("REGISTER_ADD")) {
+                error = registerAdd(parts[1], Arrays.asList(parts).subList(2, parts.length));
+            } else {
+                error = registerEnd(parts[1], Long.parseLong(parts[2]));
+            }
+        } catch (NumberFormatException e) {
+            error = "Invalid number.";
+        }
+        if (error == null) {
+            out.println(command + "_SUCCESS");
+        } else {
+            fail(out, command, error);
         }
+    }
 
-        out.println("REGISTER_SUCCESS"); // Acknowledge successful registration
+    /**
+     * Handle a delta of a library in sync: "ADD peerId version file..." or "REMOVE peerId version file...",
+     * where version is the library's version after the change. Responds with "ADD_SUCCESS version", or
+     * with "ADD_FAILURE VERSION held" if the server holds another version and the peer must register in full.
+     * @param parts - The parts of the command.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handleDelta(String[] parts, PrintWriter out) {
+        String command = parts[0].toUpperCase();
+        if (parts.length < 3) {
+            fail(out, command, "Invalid number of arguments.");
+            return;
+        }
+        if (readOnly()) {
+            fail(out, command, READ_ONLY);
+            return;
+        }
+
+        long version;
+        try {
+            version = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            fail(out, command, "Invalid number.");
+            return;
+        }
+        long held = delta(parts[1], version, Arrays.asList(parts).subList(3, parts.length), command.equals("ADD"));
+        if (held == version) {
+            out.println(command + "_SUCCESS " + version);
+        } else {
+            fail(out, command, "VERSION " + held);
+        }
     }
 
     /**
-     * Handle a search request from a peer.
+     * Starts a chunked registration, for both protocols.
+     * @return String - Null on success, otherwise the reason for the failure.
+     */
+    private static String registerBegin(PeerInfo peerInfo) {
+        sync.begin(peerInfo);
+        Log.debug("Started chunked registration of peer {}", peerInfo.getPeerId());
+        return null;
+    }
+
+    private static String registerAdd(String peerId, List<String> files) {
+        if (!sync.add(peerId, files, index)) {
+            return "No registration in progress.";
+        }
+        Log.debug("Registered a batch of {} files for peer {}", files.size(), peerId);
+        return null;
+    }
+
+    private static String registerEnd(String peerId, long version) {
+        List<String> stale = sync.end(peerId, version, index);
+        if (stale == null) {
+            return "No registration in progress.";
+        }
+        Log.info("Registered peer: {} (version {})", peerId, version);
+        if (!stale.isEmpty()) {
+            Log.info("Removed {} stale files of peer {}", stale.size(), peerId);
+        }
+        return null;
+    }
+
+    /**
+     * Applies an ADD or REMOVE delta, for both protocols.
+     * @return long - The version the server holds afterwards; the given version on success.
+     */
+    private static long delta(String peerId, long version, List<String> files, boolean add) {
+        long held = sync.delta(peerId, version, files, add, index);
+        if (held == version) {
+            Log.info(add ? "Added {} files for peer {}" : "Removed {} files for peer {}", files.size(), peerId);
+            Log.debug("Peer {} is at version {}", peerId, version);
+        } else {
+            Log.info("Stale delta from peer {}: version {}", peerId, version);
+            Log.debug("Server holds version {} of peer {}", held, peerId);
+        }
+        return held;
+    }
+
+    /**
+     * Registers a peer's files in the index, for both protocols.
+     */
+    private static void register(PeerInfo peerInfo, List<String> files) {
+        sync.forget(peerInfo.getPeerId()); // The library changed outside the versioned deltas
+        index.register(peerInfo, files);
+        Log.info("Registered peer: {} ({} files)", peerInfo.getPeerId(), files.size());
+        if (Log.isEnabled(Log.DEBUG)) {
+            for (String filename : files) {
+                Log.debug("Registered file '{}' for peer {}", filename, peerInfo.getPeerId());
+            }
+        }
+    }
+
+    /**
+     * Handle a search request from a peer: "SEARCH filename" lists every peer sharing the file, and
+     * "SEARCH filename K" only the K best, ranked by bandwidth divided by one plus active uploads.
+     * "SEARCH_HASH contentKey [K]" does the same for the peers sharing the content, under any name.
+     * @param parts - The parts of the search command.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handleSearch(String[] parts, PrintWriter out) {
+        String command = parts[0].toUpperCase();
+        if (parts.length < 2 || parts.length > 3) { // Ensure the search command has a file name
+            fail(out, command, "Invalid number of arguments.");
+            return;
+        }
+        if (command.equals("SEARCH_HASH") && !ContentHash.isKey(parts[1])) {
+            fail(out, command, "Invalid content key.");
+            return;
+        }
+        if (parts.length == 2) {
+            writeSearchResults(parts[1], out);
+            return;
+        }
+
+        int k;
+        try {
+            k = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            k = 0;
+        }
+        if (k < 1) {
+            fail(out, command, "Invalid number of peers.");
+            return;
+        }
+        out.write(SearchCache.encodeText(load.top(index.search(parts[1]), k)));
+    }
+
+    /**
+     * Handle a batched search "MSEARCH file1 file2 ...". Responds with "MSEARCH_RESULTS n" followed by
+     * one complete SEARCH response per requested file, in request order.
      * @param parts - The parts of the search command.
      * @param out - Output stream to send responses to the peer.
      */
-    private void handleSearch(String[] parts, PrintWriter out) {
-        if (parts.length != 2) { // Ensure the search command has a file name
-            out.println("SEARCH_FAILURE Invalid number of arguments.");
+    private static void handleMultiSearch(String[] parts, PrintWriter out) {
+        if (parts.length < 2) { // Ensure at least one file name is given
+            fail(out, "MSEARCH", "Invalid number of arguments.");
+            return;
+        }
+
+        out.println("MSEARCH_RESULTS " + (parts.length - 1));
+        for (int i = 1; i < parts.length; i++) {
+            writeSearchResults(parts[i], out);
+        }
+    }
+
+    /**
+     * Writes the SEARCH response for one file: the number of peers followed by one line per peer.
+     */
+    private static void writeSearchResults(String filename, PrintWriter out) {
+        if (searchCache != null) {
+            out.write(searchCache.get(filename).getText()); // Hot files: one write of the pre-encoded response
             return;
         }
 
-        String filename = parts[1]; // The file being searched for
-        Set<PeerInfo> peersWithFile = fileMap.get(filename); // Retrieve the peers who have this file
+        // Retrieve the peers who have this file and send their number followed by one line per peer
+        out.write(SearchCache.encodeText(index.search(filename)));
+    }
 
-        if (peersWithFile == null || peersWithFile.isEmpty()) {
-            out.println("SEARCH_RESULTS 0"); // No peers have the requested file
+    /**
+     * Handle a partial file name search: "SEARCH_PREFIX prefix [limit]" or "SEARCH_LIKE pattern [limit]",
+     * where the pattern may use '*' and '?'. Responds with the number of matching names followed by one
+     * name per line; the peers sharing a name are then looked up with SEARCH.
+     * @param parts - The parts of the search command.
+     * @param out - Output stream to send responses to the peer.
+     * @param prefix - True for SEARCH_PREFIX, false for SEARCH_LIKE.
+     */
+    private static void handleNameSearch(String[] parts, PrintWriter out, boolean prefix) {
+        String command = prefix ? "SEARCH_PREFIX" : "SEARCH_LIKE";
+        if (parts.length < 2 || parts.length > 3) {
+            fail(out, command, "Invalid number of arguments.");
+            return;
+        }
+        if (nameIndex == null) {
+            fail(out, command, "Name index disabled.");
             return;
         }
 
-        out.println("SEARCH_RESULTS " + peersWithFile.size()); // Send the number of peers found
-        for (PeerInfo peer : peersWithFile) {
-            // Send details of each peer who has the file
-            out.println(peer.getPeerId() + " " + peer.getIpAddress() + " " + peer.getPort() + " " + peer.getBandwidth());
+        int limit = DEFAULT_NAME_RESULTS;
+        if (parts.length == 3) {
+            try {
+                limit = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit < 1) {
+                fail(out, command, "Invalid limit.");
+                return;
+            }
+            limit = Math.min(limit, MAX_NAME_RESULTS);
+        }
+
+        List<String> names = prefix ? nameIndex.searchPrefix(parts[1], limit) : nameIndex.searchLike(parts[1], limit);
+        out.println(command + "_RESULTS " + names.size()); // Send the number of names found
+        for (String name : names) {
+            out.println(name);
         }
     }
 
     /**
-     * Handle deregistration of a peer, removing its files and information.
+     * Handle deregistration of a peer or of some of its files.
+     * "DEREGISTER peerId" removes the peer and all its files; "DEREGISTER peerId file..." removes only
+     * the listed files (and the peer once it shares nothing any more).
      * @param parts - The parts of the deregistration command.
      * @param out - Output stream to send responses to the peer.
      */
-    private void handleDeregister(String[] parts, PrintWriter out) {
+    private static void handleDeregister(String[] parts, PrintWriter out) {
         if (parts.length < 2) { // Ensure the command has a peer ID
-            out.println("DEREGISTER_FAILURE Invalid number of arguments.");
+            fail(out, "DEREGISTER", "Invalid number of arguments.");
+            return;
+        }
+        if (readOnly()) {
+            fail(out, "DEREGISTER", READ_ONLY);
             return;
         }
 
         String peerId = parts[1]; // The peer ID to deregister
-        PeerInfo peerInfo = peerMap.remove(peerId); // Remove the peer from the peerMap
+        List<String> removed = deregister(peerId, Arrays.asList(parts).subList(2, parts.length));
 
-        if (peerInfo == null) {
-            out.println("DEREGISTER_FAILURE Peer not found.");
+        if (removed == null) {
+            fail(out, "DEREGISTER", "Peer not found.");
             return;
         }
+        out.println("DEREGISTER_SUCCESS"); // Acknowledge successful deregistration
+    }
+
+    private static boolean isOperatorCommand(String command) {
+        return command.equals("REBALANCE") || command.equals("PROMOTE") || command.equals("FOLLOW");
+    }
+
+    /**
+     * Checks the admin token an operator command carries as its first argument. The operator commands
+     * change what the whole server does, and they arrive on the same port as every peer's requests, so
+     * they are refused unless the server was started with --admin-token and the token matches.
+     * @param parts - The parts of the operator command.
+     * @return String - Null if the command may run, otherwise the reason for refusing it.
+     */
+    private static String checkAdminToken(String[] parts) {
+        byte[] token = adminToken;
+        if (token == null) {
+            return "Operator commands disabled.";
+        }
+        // Compared in constant time, so the answer time tells nothing about the token
+        if (parts.length < 2 || !MessageDigest.isEqual(token, parts[1].getBytes(StandardCharsets.UTF_8))) {
+            return "Invalid admin token.";
+        }
+        return null;
+    }
 
-        // Remove the peer from all file entries
-        for (Set<PeerInfo> peers : fileMap.values()) {
-            peers.remove(peerInfo);
+    /**
+     * Handle "REBALANCE token self shard1,shard2,...": moves every file that the given ring assigns to another
+     * shard over to that shard (see ShardMigrator). Sent by ShardRebalancer after shards were added or drained.
+     * @param parts - The parts of the rebalance command.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handleRebalance(String[] parts, PrintWriter out) {
+        String refused = checkAdminToken(parts);
+        if (refused != null) {
+            fail(out, "REBALANCE", refused);
+            return;
+        }
+        if (parts.length != 4) {
+            fail(out, "REBALANCE", "Invalid number of arguments.");
+            return;
+        }
+        if (readOnly()) {
+            fail(out, "REBALANCE", READ_ONLY);
+            return;
         }
 
-        System.out.println("Deregistered peer: " + peerId);
-        out.println("DEREGISTER_SUCCESS"); // Acknowledge successful deregistration
+        try {
+            int moved = new ShardMigrator(index, parts[2], ShardRing.parse(parts[3])).migrate();
+            Log.info("Rebalanced shard {}: moved {} registrations", parts[2], moved);
+            out.println("REBALANCE_SUCCESS " + moved);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.warn("Rebalance failed: {}", e.getMessage());
+            fail(out, "REBALANCE", e.getMessage());
+        }
+    }
+
+    /**
+     * Handle "HEARTBEAT peerId", which keeps a peer's registration alive. Responds with
+     * "HEARTBEAT_SUCCESS leaseMillis" (0 if this server does not expire peers), or with a failure if the
+     * peer is not registered, e.g. because its lease already lapsed, in which case it registers again.
+     * @param parts - The parts of the heartbeat command.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handleHeartbeat(String[] parts, PrintWriter out) {
+        if (parts.length != 2) {
+            fail(out, "HEARTBEAT", "Invalid number of arguments.");
+            return;
+        }
+
+        String error = heartbeat(parts[1]);
+        if (error != null) {
+            fail(out, "HEARTBEAT", error);
+            return;
+        }
+        out.println("HEARTBEAT_SUCCESS " + (leases == null ? 0 : leases.getLeaseMillis()));
+    }
+
+    /**
+     * Handle "LOAD peerId activeUploads", sent by a peer's file server whenever its number of uploads
+     * in progress changes. Responds with "LOAD_SUCCESS" or a failure if the peer is not registered.
+     * @param parts - The parts of the load command.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handleLoad(String[] parts, PrintWriter out) {
+        if (parts.length != 3) {
+            fail(out, "LOAD", "Invalid number of arguments.");
+            return;
+        }
+
+        int active;
+        try {
+            active = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            fail(out, "LOAD", "Invalid number of uploads.");
+            return;
+        }
+        String error = reportLoad(parts[1], active);
+        if (error == null) {
+            out.println("LOAD_SUCCESS");
+        } else {
+            fail(out, "LOAD", error);
+        }
+    }
+
+    /**
+     * Handle a STATS request: responds with "STATS_RESULTS count" followed by one "name value" line per
+     * value, latencies in nanoseconds.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handleStats(PrintWriter out) {
+        Map<String, Long> report = stats.report(index, admission);
+        out.println("STATS_RESULTS " + report.size());
+        for (Map.Entry<String, Long> value : report.entrySet()) {
+            out.println(value.getKey() + " " + value.getValue());
+        }
+    }
+
+    /**
+     * Records a peer's active uploads, for both protocols.
+     * @return String - Null on success, otherwise the reason for the failure.
+     */
+    private static String reportLoad(String peerId, int active) {
+        if (!index.hasPeer(peerId)) {
+            return "Peer not registered.";
+        }
+        load.report(peerId, active, index);
+        Log.debug("Peer {} reports {} active uploads", peerId, active);
+        return null;
+    }
+
+    /**
+     * Renews a peer's lease, for both protocols.
+     * @return String - Null on success, otherwise the reason for the failure.
+     */
+    private static String heartbeat(String peerId) {
+        if (readOnly()) {
+            return READ_ONLY;
+        }
+        if (leases != null && !leases.heartbeat(peerId)) {
+            return "Peer not registered.";
+        }
+        return null;
+    }
+
+    /**
+     * Handle "PROMOTE token": a follower stops following its leader and accepts registrations from now on.
+     * @param parts - The parts of the promote command.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handlePromote(String[] parts, PrintWriter out) {
+        String refused = checkAdminToken(parts);
+        if (refused != null) {
+            fail(out, "PROMOTE", refused);
+            return;
+        }
+        if (parts.length != 2) {
+            fail(out, "PROMOTE", "Invalid number of arguments.");
+            return;
+        }
+        ReplicaFollower follower = replica;
+        if (follower == null || follower.isPromoted()) {
+            fail(out, "PROMOTE", "Not a follower.");
+            return;
+        }
+        follower.promote();
+        out.println("PROMOTE_SUCCESS");
+    }
+
+    /**
+     * Handle "FOLLOW token host:replicationPort": this server drops its index and becomes a read-only copy of
+     * the given leader, e.g. to point the remaining followers at a newly promoted one.
+     * @param parts - The parts of the follow command.
+     * @param out - Output stream to send responses to the peer.
+     */
+    private static void handleFollow(String[] parts, PrintWriter out) {
+        String refused = checkAdminToken(parts);
+        if (refused != null) {
+            fail(out, "FOLLOW", refused);
+            return;
+        }
+        if (parts.length != 3) {
+            fail(out, "FOLLOW", "Invalid number of arguments.");
+            return;
+        }
+
+        try {
+            synchronized (ClientHandler.class) {
+                if (replica == null) {
+                    ReplicaFollower follower = new ReplicaFollower(index, parts[2], 0);
+                    follower.start();
+                    replica = follower;
+                } else {
+                    replica.changeLeader(parts[2]);
+                }
+            }
+            Log.info("Following leader {}", parts[2]);
+            out.println("FOLLOW_SUCCESS");
+        } catch (IllegalArgumentException e) {
+            fail(out, "FOLLOW", e.getMessage());
+        }
+    }
+
+    /**
+     * Removes a whole peer (no file names given) or some of its files, for both protocols.
+     * @return List<String> - The removed file names, or null if the peer was not registered.
+     */
+    private static List<String> deregister(String peerId, List<String> files) {
+        sync.forget(peerId); // The library changed outside the versioned deltas
+        List<String> removed = files.isEmpty()
+                ? index.deregisterPeer(peerId) // Remove the peer from every file it shares
+                : index.deregisterFiles(peerId, files);
+        if (removed == null) {
+            return null;
+        }
+
+        if (files.isEmpty()) {
+            load.forget(peerId);
+            Log.info("Deregistered peer: {}", peerId);
+        } else {
+            Log.info("Deregistered {} files for peer {}", removed.size(), peerId);
+            if (Log.isEnabled(Log.DEBUG)) {
+                for (String filename : removed) {
+                    Log.debug("Deregistered file '{}' for peer {}", filename, peerId);
+                }
+            }
+        }
+        return removed;
     }
 }
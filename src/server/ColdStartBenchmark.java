@@ -0,0 +1,96 @@
+// File: src/server/ColdStartBenchmark.java
+package server;
+
+import common.PeerInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The ColdStartBenchmark class measures how long an indexing server with --data-dir takes to come back
+ * after a restart. It fills an index through an IndexJournal, writes a snapshot and closes the journal,
+ * then recovers a fresh index of the same mode from the directory and times the recovery and the first
+ * searches. The "concurrent" and "compact" modes load the snapshot, "mapped" opens it in place.
+ */
+public class ColdStartBenchmark {
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments for configuring the benchmark.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.out.println("Usage: java server.ColdStartBenchmark <concurrent|compact|mapped> <peers> <filesPerPeer> <distinctFiles> <dataDir>");
+            System.exit(1);
+        }
+
+        String mode = args[0];
+        int peers = Integer.parseInt(args[1]);
+        int filesPerPeer = Integer.parseInt(args[2]);
+        int distinctFiles = Integer.parseInt(args[3]);
+        Path dir = Paths.get(args[4]);
+        ServerConfig config = ServerConfig.parse(new String[]{"--index=" + mode, "--data-dir=" + dir});
+        if (Files.exists(dir)) {
+            System.out.println(dir + " already exists; pick a new directory");
+            System.exit(1);
+        }
+
+        // First run: fill the index and leave a snapshot and an empty log behind
+        long start = System.nanoTime();
+        FileIndex index = IndexingServer.createIndex(config);
+        IndexJournal journal = new IndexJournal(dir, index, 5, Long.MAX_VALUE);
+        FileIndex durable = new DurableFileIndex(index, journal);
+        for (int p = 0; p < peers; p++) {
+            PeerInfo peer = new PeerInfo("Peer" + p, "10.0." + (p >> 8 & 255) + "." + (p & 255), 6000, 100.0);
+            List<String> files = new ArrayList<>(filesPerPeer);
+            for (int i = 0; i < filesPerPeer; i++) {
+                files.add("file" + ((long) p * filesPerPeer + i) % distinctFiles + ".txt");
+            }
+            durable.register(peer, files);
+        }
+        double fillSeconds = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        journal.snapshotNow();
+        double snapshotSeconds = (System.nanoTime() - start) / 1e9;
+        journal.close();
+        index = null;
+        durable = null;
+        System.gc();
+
+        // Second run: recover and serve the first searches
+        long heapBefore = usedHeap();
+        start = System.nanoTime();
+        FileIndex recovered = IndexingServer.createIndex(config);
+        IndexJournal reopened = new IndexJournal(dir, recovered, 5, Long.MAX_VALUE);
+        double recoverSeconds = (System.nanoTime() - start) / 1e9;
+        long heapAfter = usedHeap();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int searches = 10_000;
+        long found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            found += recovered.search("file" + random.nextInt(distinctFiles) + ".txt").size();
+        }
+        double searchMicros = (System.nanoTime() - start) / 1e3 / searches;
+        reopened.close();
+
+        System.out.printf("%s: %d peers, %d postings; fill %.2f s, snapshot %.2f s, recovery %.3f s (+%d MB heap), first %d searches %.2f us each, %.1f peers per file%n",
+                mode, recovered.peerCount(), recovered.postingCount(), fillSeconds, snapshotSeconds, recoverSeconds,
+                Math.max(0, heapAfter - heapBefore) >> 20, searches, searchMicros, found / (double) searches);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,265 @@
+// File: src/server/CompactFileIndex.java
+package server;
+
+import common.PeerInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * The CompactFileIndex class is a memory-lean FileIndex for very large indexes.
+ * File names and peer IDs are interned to int IDs (NameTable), and each file's peers as well as each
+ * peer's files are kept in sorted primitive int arrays (PostingList). A (file, peer) registration costs
+ * two ints plus amortized array slack instead of a concurrent set node holding a full PeerInfo, which
+ * keeps tens of millions of registrations in a bounded heap with few objects for the GC to trace.
+ * A read-write lock guards the structure: searches share the read lock, mutations take the write lock.
+ */
+public class CompactFileIndex implements FileIndex {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NameTable fileNames = new NameTable();   // File name <-> file ID
+    private final NameTable peerIds = new NameTable();     // Peer ID <-> peer number
+    private PeerInfo[] peers = new PeerInfo[16];            // Peer number -> PeerInfo
+    private PostingList[] filePeers = new PostingList[16];  // File ID -> peer numbers sharing it
+    private PostingList[] peerFiles = new PostingList[16];  // Peer number -> file IDs it shares
+    private long postings;                                  // Number of (file, peer) pairs
+    private final List<IndexListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void addListener(IndexListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void register(PeerInfo peer, List<String> files) {
+        lock.writeLock().lock();
+        try {
+            int peerNo = peerIds.intern(peer.getPeerId());
+            if (peerNo >= peers.length) {
+                peers = Arrays.copyOf(peers, Math.max(peerNo + 1, peers.length * 2));
+                peerFiles = Arrays.copyOf(peerFiles, peers.length);
+            }
+            PeerInfo previous = peers[peerNo];
+            peers[peerNo] = peer;
+            if (peerFiles[peerNo] == null) {
+                peerFiles[peerNo] = new PostingList();
+            } else if (!sameAddress(previous, peer)) {
+                // Every file the peer already shares now answers SEARCH with the new details
+                PostingList shared = peerFiles[peerNo];
+                for (int i = 0; i < shared.size(); i++) {
+                    firePeersChanged(fileNames.name(shared.get(i)));
+                }
+            }
+
+            for (String filename : files) {
+                int fileId = fileNames.intern(filename);
+                if (fileId >= filePeers.length) {
+                    filePeers = Arrays.copyOf(filePeers, Math.max(fileId + 1, filePeers.length * 2));
+                }
+                if (filePeers[fileId] == null) {
+                    filePeers[fileId] = new PostingList();
+                    for (IndexListener listener : listeners) {
+                        listener.fileAdded(filename);
+                    }
+                }
+                if (peerFiles[peerNo].add(fileId)) {
+                    filePeers[fileId].add(peerNo);
+                    postings++;
+                    firePeersChanged(filename);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<PeerInfo> search(String filename) {
+        lock.readLock().lock();
+        try {
+            int fileId = fileNames.find(filename);
+            if (fileId < 0) {
+                return new ArrayList<>();
+            }
+            PostingList postings = filePeers[fileId];
+            List<PeerInfo> result = new ArrayList<>(postings.size());
+            for (int i = 0; i < postings.size(); i++) {
+                result.add(peers[postings.get(i)]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> deregisterPeer(String peerId) {
+        lock.writeLock().lock();
+        try {
+            int peerNo = peerIds.find(peerId);
+            if (peerNo < 0) {
+                return null;
+            }
+            PostingList shared = peerFiles[peerNo];
+            List<String> removed = new ArrayList<>(shared.size());
+            for (int i = 0; i < shared.size(); i++) {
+                removed.add(unlink(shared.get(i), peerNo));
+            }
+            dropPeer(peerNo);
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> deregisterFiles(String peerId, List<String> files) {
+        lock.writeLock().lock();
+        try {
+            int peerNo = peerIds.find(peerId);
+            if (peerNo < 0) {
+                return null;
+            }
+            PostingList shared = peerFiles[peerNo];
+            List<String> removed = new ArrayList<>();
+            for (String filename : files) {
+                int fileId = fileNames.find(filename);
+                if (fileId >= 0 && shared.remove(fileId)) {
+                    removed.add(unlink(fileId, peerNo));
+                }
+            }
+            if (shared.isEmpty()) {
+                dropPeer(peerNo);
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a peer from one file's postings and releases the file ID once nobody shares the file.
+     * @return String - The name of the file.
+     */
+    private String unlink(int fileId, int peerNo) {
+        String filename = fileNames.name(fileId);
+        PostingList postings = filePeers[fileId];
+        postings.remove(peerNo);
+        this.postings--;
+        firePeersChanged(filename);
+        if (postings.isEmpty()) {
+            filePeers[fileId] = null;
+            fileNames.release(fileId);
+            for (IndexListener listener : listeners) {
+                listener.fileRemoved(filename);
+            }
+        }
+        return filename;
+    }
+
+    private void firePeersChanged(String filename) {
+        for (IndexListener listener : listeners) {
+            listener.filePeersChanged(filename);
+        }
+    }
+
+    private static boolean sameAddress(PeerInfo a, PeerInfo b) {
+        return a.getIpAddress().equals(b.getIpAddress()) && a.getPort() == b.getPort()
+                && a.getBandwidth() == b.getBandwidth();
+    }
+
+    private void dropPeer(int peerNo) {
+        peers[peerNo] = null;
+        peerFiles[peerNo] = null;
+        peerIds.release(peerNo);
+    }
+
+    @Override
+    public boolean hasPeer(String peerId) {
+        lock.readLock().lock();
+        try {
+            return peerIds.find(peerId) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> filesOf(String peerId) {
+        lock.readLock().lock();
+        try {
+            int peerNo = peerIds.find(peerId);
+            if (peerNo < 0) {
+                return null;
+            }
+            PostingList shared = peerFiles[peerNo];
+            List<String> files = new ArrayList<>(shared.size());
+            for (int i = 0; i < shared.size(); i++) {
+                files.add(fileNames.name(shared.get(i)));
+            }
+            return files;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachPeer(BiConsumer<PeerInfo, List<String>> action) {
+        for (int peerNo = 0; ; peerNo++) {
+            PeerInfo peer;
+            List<String> files;
+            // Hold the read lock per peer only, so a long walk never stalls registrations for long
+            lock.readLock().lock();
+            try {
+                if (peerNo >= peers.length) {
+                    return;
+                }
+                peer = peers[peerNo];
+                if (peer == null) {
+                    continue;
+                }
+                PostingList shared = peerFiles[peerNo];
+                files = new ArrayList<>(shared.size());
+                for (int i = 0; i < shared.size(); i++) {
+                    files.add(fileNames.name(shared.get(i)));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            action.accept(peer, files);
+        }
+    }
+
+    @Override
+    public int fileCount() {
+        lock.readLock().lock();
+        try {
+            return fileNames.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int peerCount() {
+        lock.readLock().lock();
+        try {
+            return peerIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long postingCount() {
+        lock.readLock().lock();
+        try {
+            return postings;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+// File: src/server/ConcurrentFileIndex.java
+package server;
+
+import common.PeerInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * The ConcurrentFileIndex class is the default FileIndex, built on ConcurrentHashMaps of PeerInfo sets.
+ * Besides the file name to peers map used by SEARCH it maintains the reverse peer to file names map,
+ * so deregistering a peer only touches the files of that peer instead of scanning every file entry.
+ * All updates for one peer run inside a compute on that peer's entry, and file entries are updated with
+ * compute as well, so a file whose last peer leaves is removed atomically instead of lingering as an empty set.
+ */
+public class ConcurrentFileIndex implements FileIndex {
+    private final Map<String, PeerInfo> peerMap = new ConcurrentHashMap<>();         // Maps peer ID to PeerInfo
+    private final Map<String, Set<PeerInfo>> fileMap = new ConcurrentHashMap<>();    // Maps file name to the peers sharing it
+    private final Map<String, Set<String>> peerFiles = new ConcurrentHashMap<>();    // Maps peer ID to the file names it shares
+    private final List<IndexListener> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder postings = new LongAdder();                              // Number of (file, peer) pairs
+
+    @Override
+    public void addListener(IndexListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void register(PeerInfo peer, List<String> files) {
+        peerFiles.compute(peer.getPeerId(), (peerId, shared) -> {
+            if (shared == null) {
+                shared = ConcurrentHashMap.newKeySet();
+            }
+            PeerInfo previous = peerMap.put(peerId, peer);
+            if (previous != null && !sameAddress(previous, peer)) {
+                // Every file the peer already shares now answers SEARCH with the new details
+                for (String filename : shared) {
+                    fileMap.computeIfPresent(filename, (name, peers) -> {
+                        peers.remove(previous); // Equal by peer ID, so add alone would keep the old details
+                        peers.add(peer);
+                        return peers;
+                    });
+                    firePeersChanged(filename);
+                }
+            }
+            for (String filename : files) {
+                if (shared.add(filename)) {
+                    postings.increment();
+                    fileMap.compute(filename, (name, peers) -> {
+                        if (peers == null) {
+                            peers = ConcurrentHashMap.newKeySet();
+                            for (IndexListener listener : listeners) {
+                                listener.fileAdded(name);
+                            }
+                        }
+                        peers.add(peer);
+                        return peers;
+                    });
+                    // Only once the entry is in the map, or a SEARCH in between could be cached without the peer
+                    firePeersChanged(filename);
+                }
+            }
+            return shared;
+        });
+    }
+
+    @Override
+    public List<PeerInfo> search(String filename) {
+        Set<PeerInfo> peers = fileMap.get(filename);
+        // Copy the live set so the caller sees a count that matches the peers it iterates over
+        return peers == null ? new ArrayList<>() : new ArrayList<>(peers);
+    }
+
+    @Override
+    public List<String> deregisterPeer(String peerId) {
+        List<String> removed = new ArrayList<>();
+        boolean[] found = new boolean[1];
+        peerFiles.computeIfPresent(peerId, (id, shared) -> {
+            found[0] = true;
+            PeerInfo peer = peerMap.remove(id);
+            for (String filename : shared) {
+                unlink(filename, peer);
+                removed.add(filename);
+            }
+            return null; // Drop the reverse entry together with the peer
+        });
+        return found[0] ? removed : null;
+    }
+
+    @Override
+    public List<String> deregisterFiles(String peerId, List<String> files) {
+        List<String> removed = new ArrayList<>();
+        boolean[] found = new boolean[1];
+        peerFiles.computeIfPresent(peerId, (id, shared) -> {
+            found[0] = true;
+            PeerInfo peer = peerMap.get(id);
+            for (String filename : files) {
+                if (shared.remove(filename)) {
+                    unlink(filename, peer);
+                    removed.add(filename);
+                }
+            }
+            if (shared.isEmpty()) {
+                peerMap.remove(id);
+                return null;
+            }
+            return shared;
+        });
+        return found[0] ? removed : null;
+    }
+
+    /**
+     * Removes a peer from one file entry and prunes the entry if no peer shares the file any more.
+     */
+    private void unlink(String filename, PeerInfo peer) {
+        postings.decrement();
+        fileMap.computeIfPresent(filename, (name, peers) -> {
+            peers.remove(peer);
+            if (!peers.isEmpty()) {
+                return peers;
+            }
+            for (IndexListener listener : listeners) {
+                listener.fileRemoved(name);
+            }
+            return null;
+        });
+        firePeersChanged(filename);
+    }
+
+    private void firePeersChanged(String filename) {
+        for (IndexListener listener : listeners) {
+            listener.filePeersChanged(filename);
+        }
+    }
+
+    private static boolean sameAddress(PeerInfo a, PeerInfo b) {
+        return a.getIpAddress().equals(b.getIpAddress()) && a.getPort() == b.getPort()
+                && a.getBandwidth() == b.getBandwidth();
+    }
+
+    @Override
+    public boolean hasPeer(String peerId) {
+        return peerFiles.containsKey(peerId);
+    }
+
+    @Override
+    public List<String> filesOf(String peerId) {
+        List<String> files = new ArrayList<>();
+        boolean[] found = new boolean[1];
+        peerFiles.computeIfPresent(peerId, (id, shared) -> {
+            found[0] = true;
+            files.addAll(shared);
+            return shared;
+        });
+        return found[0] ? files : null;
+    }
+
+    @Override
+    public void forEachPeer(BiConsumer<PeerInfo, List<String>> action) {
+        for (String peerId : peerFiles.keySet()) {
+            PeerInfo[] peer = new PeerInfo[1];
+            List<String> files = new ArrayList<>();
+            // Copy inside a compute so the peer's files are not changed halfway through the copy
+            peerFiles.computeIfPresent(peerId, (id, shared) -> {
+                peer[0] = peerMap.get(id);
+                files.addAll(shared);
+                return shared;
+            });
+            if (peer[0] != null) {
+                action.accept(peer[0], files);
+            }
+        }
+    }
+
+    @Override
+    public int fileCount() {
+        return fileMap.size();
+    }
+
+    @Override
+    public int peerCount() {
+        return peerMap.size();
+    }
+
+    @Override
+    public long postingCount() {
+        return postings.sum();
+    }
+}
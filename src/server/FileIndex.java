@@ -0,0 +1,88 @@
+// File: src/server/FileIndex.java
+package server;
+
+import common.PeerInfo;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The FileIndex interface is the indexing server's view of who shares what.
+ * Implementations keep both directions, file name to peers for SEARCH and peer to file names,
+ * so deregistering a peer only touches the files of that peer. A file whose last peer leaves
+ * disappears from the index. Listeners are told whenever a file name enters or leaves the index.
+ */
+public interface FileIndex {
+
+    /**
+     * Registers a listener for file names entering and leaving the index. Called at startup, before
+     * the index receives any request.
+     * @param listener - The listener to notify.
+     */
+    void addListener(IndexListener listener);
+
+    /**
+     * Registers a peer together with the files it shares. Registering again adds to the peer's files.
+     * @param peer - The peer that shares the files.
+     * @param files - The file names to register.
+     */
+    void register(PeerInfo peer, List<String> files);
+
+    /**
+     * Looks up the peers that share a file.
+     * @param filename - The file name to search for.
+     * @return List<PeerInfo> - A snapshot of the peers sharing the file, empty if there are none.
+     */
+    List<PeerInfo> search(String filename);
+
+    /**
+     * Removes a peer and every file it shares.
+     * @param peerId - The peer to remove.
+     * @return List<String> - The file names that were removed, or null if the peer was not registered.
+     */
+    List<String> deregisterPeer(String peerId);
+
+    /**
+     * Removes some of a peer's files. A peer left without files is removed as well.
+     * @param peerId - The peer that stops sharing the files.
+     * @param files - The file names to remove.
+     * @return List<String> - The file names that were actually removed, or null if the peer was not registered.
+     */
+    List<String> deregisterFiles(String peerId, List<String> files);
+
+    /**
+     * @param peerId - The peer.
+     * @return boolean - True if the peer is registered.
+     */
+    boolean hasPeer(String peerId);
+
+    /**
+     * Looks up the files a peer shares.
+     * @param peerId - The peer.
+     * @return List<String> - A copy of the peer's file names, or null if the peer is not registered.
+     */
+    List<String> filesOf(String peerId);
+
+    /**
+     * Visits every registered peer with a copy of its file names, e.g. to write a snapshot.
+     * The index stays writable meanwhile; each peer is copied consistently, but changes made during
+     * the walk may or may not be seen.
+     * @param action - Called once per peer with the peer and its files.
+     */
+    void forEachPeer(BiConsumer<PeerInfo, List<String>> action);
+
+    /**
+     * @return int - Number of distinct file names in the index.
+     */
+    int fileCount();
+
+    /**
+     * @return int - Number of registered peers.
+     */
+    int peerCount();
+
+    /**
+     * @return long - Number of (file, peer) registrations, i.e. the total length of the posting lists.
+     */
+    long postingCount();
+}
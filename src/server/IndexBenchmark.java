@@ -0,0 +1,105 @@
+// File: src/server/IndexBenchmark.java
+package server;
+
+import common.PeerInfo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The IndexBenchmark class loads a synthetic index into one FileIndex implementation and reports
+ * load time, retained heap, GC activity and single-threaded SEARCH throughput. With the optional
+ * "names" argument it also maintains a NameIndex and times SEARCH_PREFIX and SEARCH_LIKE queries.
+ * Run it with a fixed -Xmx to check how many (file, peer) registrations an index mode can hold.
+ */
+public class IndexBenchmark {
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments for configuring the benchmark.
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: java server.IndexBenchmark <concurrent|compact|snapshot> <peers> <filesPerPeer> <distinctFiles> [names]");
+            System.exit(1);
+        }
+
+        String mode = args[0];
+        int peers = Integer.parseInt(args[1]);
+        int filesPerPeer = Integer.parseInt(args[2]);
+        int distinctFiles = Integer.parseInt(args[3]);
+        FileIndex index = IndexingServer.createIndex(ServerConfig.parse(new String[]{"--index=" + mode}));
+        NameIndex names = new NameIndex();
+        boolean withNames = args.length > 4 && args[4].equals("names");
+        if (withNames) {
+            index.addListener(names);
+        }
+
+        // Fill the index: peer p shares a window of filesPerPeer names out of distinctFiles
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        for (int p = 0; p < peers; p++) {
+            PeerInfo peer = new PeerInfo("Peer" + p, "10.0." + (p >> 8 & 255) + "." + (p & 255), 6000, 100.0);
+            List<String> files = new ArrayList<>(filesPerPeer);
+            for (int i = 0; i < filesPerPeer; i++) {
+                files.add("file" + ((long) p * filesPerPeer + i) % distinctFiles + ".txt");
+            }
+            index.register(peer, files);
+        }
+        if (index instanceof SnapshotFileIndex) {
+            ((SnapshotFileIndex) index).publishNow(); // Part of loading: searches only see published snapshots
+        }
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+        long heapAfter = usedHeap();
+        long postings = (long) peers * filesPerPeer;
+
+        // Measure lookups of random existing names
+        int searches = 1_000_000;
+        long found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            found += index.search("file" + ThreadLocalRandom.current().nextInt(distinctFiles) + ".txt").size();
+        }
+        double searchNanos = (System.nanoTime() - start) / (double) searches;
+
+        if (withNames) {
+            int queries = 100_000;
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                found += names.searchPrefix("file" + ThreadLocalRandom.current().nextInt(10_000), 100).size();
+            }
+            double prefixMicros = (System.nanoTime() - start) / 1e3 / queries;
+            start = System.nanoTime();
+            for (int i = 0; i < queries / 10; i++) {
+                found += names.searchLike("*" + ThreadLocalRandom.current().nextInt(10_000, 100_000) + ".t?t", 100).size();
+            }
+            double likeMicros = (System.nanoTime() - start) / 1e3 / (queries / 10);
+            System.out.printf("name index: prefix %.1f us/op, like %.1f us/op%n", prefixMicros, likeMicros);
+        }
+
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcMillis += gc.getCollectionTime();
+        }
+
+        System.out.printf("index=%s files=%d peers=%d postings=%d%n", mode, index.fileCount(), index.peerCount(), postings);
+        System.out.printf("load: %.2f s, retained heap: %d MB (%.1f bytes per posting)%n",
+                loadSeconds, (heapAfter - heapBefore) >> 20, (heapAfter - heapBefore) / (double) postings);
+        System.out.printf("search: %.0f ns/op (%d peers returned)%n", searchNanos, found);
+        System.out.printf("gc: %d collections, %d ms total%n", gcCount, gcMillis);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
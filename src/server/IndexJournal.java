@@ -0,0 +1,526 @@
+// File: src/server/IndexJournal.java
+package server;
+
+import common.BinaryCodec;
+import common.BinaryCodec.Frame;
+import common.BinaryCodec.FrameWriter;
+import common.Log;
+import common.PeerInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The IndexJournal class makes the index survive restarts with a write-ahead log and snapshots.
+ *
+ * Every mutation is appended to an in-memory buffer as a record (int length | int crc32 | body), where
+ * the body is the BinaryCodec frame of the equivalent binary request. A committer thread writes the
+ * buffer and forces it to disk every few milliseconds, so one fsync covers every mutation of that
+ * interval (group commit) and REGISTER never waits for the disk. A crash loses at most that interval.
+ *
+ * The log is split into numbered segments (wal-N.log). After enough records a snapshot thread rolls to
+ * a new segment, walks the index and writes snapshot-N.snap, which covers every segment below N; older
+ * segments and snapshots are then deleted. Mutations are applied before they are logged, so a record in
+ * a segment below N is always visible to the walk. Replaying records the snapshot already reflects is
+ * harmless: each record sets the state of its (peer, file) pairs, so the replay converges.
+ *
+ * On startup the newest complete snapshot is memory-mapped and loaded, and the segments from N on are
+ * replayed up to the first torn or corrupt record, which marks where the previous run stopped.
+ *
+ * For a MappedFileIndex the snapshots are MappedIndexFiles (index-N.map) instead. On startup the newest
+ * one becomes the index's base as it is, without being loaded, so only the log replay depends on the
+ * data. The file the running index is based on is kept until the next start.
+ */
+public class IndexJournal implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x50325053; // "P2PS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int MAX_MAP_WINDOW = 1 << 30;    // Snapshots are mapped in windows of at most 1 GB
+
+    private final Path dir;              // Directory holding the segments and snapshots
+    private final FileIndex index;       // Index the snapshots are taken from
+    private final MappedFileIndex mapped; // The index, if snapshots are mapped index files
+    private final long flushMillis;      // Group commit interval
+    private final long snapshotEvery;    // Records between two snapshots
+
+    private byte[] buffer = new byte[64 * 1024]; // Records appended since the last commit, guarded by itself
+    private int bufferLength;
+    private byte[] spare = new byte[64 * 1024];  // Second buffer, swapped in by the committer
+    private long recordsSinceSnapshot;           // Guarded by the buffer lock
+    private final Object bufferLock = new Object();
+    private final CRC32 crc = new CRC32();        // Guarded by the buffer lock
+
+    private FileChannel segment;         // Current segment, guarded by the journal's lock
+    private long segmentNo;
+    private volatile boolean snapshotRunning;
+    private volatile boolean closed;
+    private final Thread committer;
+
+    /**
+     * Recovers the index from the directory and starts logging into a new segment.
+     * @param dir - Data directory, created if missing.
+     * @param index - The empty index to recover into; later snapshots are taken from it.
+     * @param flushMillis - Group commit interval in milliseconds.
+     * @param snapshotEvery - Number of records after which a new snapshot is written.
+     * @throws IOException if the directory cannot be read or the new segment cannot be created.
+     */
+    public IndexJournal(Path dir, FileIndex index, long flushMillis, long snapshotEvery) throws IOException {
+        this.dir = dir;
+        this.index = index;
+        this.mapped = index instanceof MappedFileIndex ? (MappedFileIndex) index : null;
+        this.flushMillis = flushMillis;
+        this.snapshotEvery = snapshotEvery;
+        Files.createDirectories(dir);
+
+        long start = System.nanoTime();
+        long firstSegment = loadNewestSnapshot();
+        long replayed = 0;
+        long lastSegment = firstSegment - 1;
+        for (long n : segments().keySet()) {
+            if (n >= firstSegment) {
+                replayed += replay(segmentPath(n));
+            }
+            lastSegment = Math.max(lastSegment, n);
+        }
+        Log.info(String.format("Recovered %d peers and %d files from %s in %d ms (%d log records replayed)",
+                index.peerCount(), index.fileCount(), dir, (System.nanoTime() - start) / 1_000_000, replayed));
+
+        // Never append behind a torn record: the new run always starts a fresh segment
+        segmentNo = lastSegment + 1;
+        segment = openSegment(segmentNo);
+        recordsSinceSnapshot = replayed;
+
+        committer = new Thread(this::commitLoop, "journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends a REGISTER record.
+     */
+    void logRegister(PeerInfo peer, List<String> files) {
+        append(new FrameWriter(BinaryCodec.REGISTER, 0).putPeer(peer).putStrings(files));
+    }
+
+    /**
+     * Appends a DEREGISTER record; an empty file list stands for the whole peer, as in the binary protocol.
+     */
+    void logDeregister(String peerId, List<String> files) {
+        append(new FrameWriter(BinaryCodec.DEREGISTER, 0).putString(peerId).putStrings(files));
+    }
+
+    private void append(FrameWriter record) {
+        byte[] frame = record.toBytes();
+        int bodyLength = frame.length - 4;
+        synchronized (bufferLock) {
+            crc.reset();
+            crc.update(frame, 4, bodyLength);
+            int checksum = (int) crc.getValue();
+            if (bufferLength + frame.length + 4 > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(bufferLength + frame.length + 4, buffer.length * 2));
+            }
+            System.arraycopy(frame, 0, buffer, bufferLength, 4); // Length prefix
+            ByteBuffer.wrap(buffer, bufferLength + 4, 4).putInt(checksum);
+            System.arraycopy(frame, 4, buffer, bufferLength + 8, bodyLength);
+            bufferLength += frame.length + 4;
+            recordsSinceSnapshot++;
+        }
+    }
+
+    /**
+     * Committer loop: one write and one fsync for everything appended during the interval.
+     */
+    private void commitLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushMillis);
+                commit();
+                if (!snapshotRunning && snapshotDue()) {
+                    snapshotRunning = true;
+                    Thread snapshotter = new Thread(this::snapshot, "journal-snapshot");
+                    snapshotter.setDaemon(true);
+                    snapshotter.start();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("Error writing the index journal:", e);
+            }
+        }
+    }
+
+    private boolean snapshotDue() {
+        synchronized (bufferLock) {
+            return recordsSinceSnapshot >= snapshotEvery;
+        }
+    }
+
+    /**
+     * Writes and forces the buffered records to the current segment. If that fails, whatever part of them
+     * reached the segment is cut off again, and the records go back in front of the ones appended meanwhile,
+     * so the next commit writes them right after the last complete record instead of behind a torn one.
+     */
+    private synchronized void commit() throws IOException {
+        byte[] data;
+        int length;
+        synchronized (bufferLock) {
+            if (bufferLength == 0) {
+                return;
+            }
+            data = buffer;
+            length = bufferLength;
+            buffer = spare;
+            bufferLength = 0;
+        }
+        long start = segment.position();
+        try {
+            ByteBuffer out = ByteBuffer.wrap(data, 0, length);
+            while (out.hasRemaining()) {
+                segment.write(out);
+            }
+            segment.force(false);
+        } catch (IOException e) {
+            restore(data, length);
+            try {
+                segment.truncate(start);
+                segment.position(start);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+            }
+            throw e;
+        }
+        spare = data; // Only the committer (holding this lock) swaps buffers, so the old one is free again
+    }
+
+    /**
+     * Puts records that could not be committed back in front of the buffer.
+     */
+    private void restore(byte[] data, int length) {
+        synchronized (bufferLock) {
+            if (length + bufferLength > data.length) {
+                data = Arrays.copyOf(data, length + bufferLength);
+            }
+            System.arraycopy(buffer, 0, data, length, bufferLength);
+            spare = buffer;
+            buffer = data;
+            bufferLength += length;
+        }
+    }
+
+    /**
+     * Starts a new segment; every record appended before the switch is on disk in the older segments.
+     * @return long - Number of the new segment.
+     */
+    private synchronized long roll() throws IOException {
+        commit();
+        segment.close();
+        segment = openSegment(++segmentNo);
+        synchronized (bufferLock) {
+            recordsSinceSnapshot = 0;
+        }
+        return segmentNo;
+    }
+
+    /**
+     * Rolls the log, writes a snapshot covering the older segments and deletes what it replaces.
+     */
+    private void snapshot() {
+        try {
+            long start = System.nanoTime();
+            long covered = roll();
+            Path target = mapped != null ? indexPath(covered) : snapshotPath(covered);
+            Path temp = dir.resolve(target.getFileName() + ".tmp");
+            long peers = mapped != null ? MappedIndexFile.write(temp, index, covered) : writeSnapshot(temp, covered);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+
+            // The new snapshot replaces every older snapshot and segment, except the mapped base in use
+            Path base = mapped != null ? mapped.getBasePath() : null;
+            for (Path old : listFiles()) {
+                long n = fileNumber(old);
+                if (n >= 0 && n < covered && !old.equals(base)) {
+                    Files.deleteIfExists(old);
+                }
+            }
+            Log.info(String.format("Wrote index snapshot %s (%d peers) in %d ms",
+                    target.getFileName(), peers, (System.nanoTime() - start) / 1_000_000));
+        } catch (IOException e) {
+            Log.error("Error writing index snapshot:", e);
+        } finally {
+            snapshotRunning = false;
+        }
+    }
+
+    /**
+     * Writes a snapshot right away instead of after snapshotEvery records, e.g. before a benchmark
+     * restarts from the directory.
+     */
+    void snapshotNow() {
+        snapshotRunning = true;
+        snapshot();
+    }
+
+    /**
+     * Writes every peer of the index to a snapshot file in the loadable format.
+     * @return long - Number of peers written.
+     */
+    private long writeSnapshot(Path temp, long covered) throws IOException {
+        long[] peers = new long[1];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(covered);
+            IOException[] failure = new IOException[1];
+            index.forEachPeer((peer, files) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    out.writeByte(1);
+                    writeString(out, peer.getPeerId());
+                    writeString(out, peer.getIpAddress());
+                    out.writeInt(peer.getPort());
+                    out.writeDouble(peer.getBandwidth());
+                    out.writeInt(files.size());
+                    for (String file : files) {
+                        writeString(out, file);
+                    }
+                    peers[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            out.writeByte(0);
+            out.writeLong(peers[0]); // Trailer: a snapshot without it was cut short
+        }
+        return peers[0];
+    }
+
+    /**
+     * Loads the newest snapshot that is complete.
+     * @return long - The first segment number that still has to be replayed.
+     */
+    private long loadNewestSnapshot() throws IOException {
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        for (Path file : listFiles()) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".snap") || (mapped != null && name.endsWith(".map"))) {
+                snapshots.merge(fileNumber(file), file, (snap, map) -> map.toString().endsWith(".map") ? map : snap);
+            }
+        }
+        for (Long n : snapshots.descendingKeySet()) {
+            try {
+                Path snapshot = snapshots.get(n);
+                if (snapshot.toString().endsWith(".map")) {
+                    mapped.open(snapshot); // Validated before it is used, so a bad file leaves the index empty
+                    return n;
+                }
+                loadSnapshot(snapshot);
+                return n;
+            } catch (IOException e) {
+                // Incomplete or damaged: fall back to an older snapshot and a longer replay
+                Log.warn("Skipping snapshot {}: {}", snapshots.get(n), e.getMessage());
+                clearIndex();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Memory-maps a snapshot and registers its peers. The file is mapped in windows, and a peer record
+     * that crosses the end of a window is read again from a window that starts at the record.
+     */
+    private void loadSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long windowStart = 0;
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_MAP_WINDOW));
+            try {
+                if (window.getInt() != SNAPSHOT_MAGIC || window.getInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("Not a snapshot file");
+                }
+                window.getLong(); // Covered segment, also encoded in the file name
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated snapshot header");
+            }
+
+            long peers = 0;
+            while (true) {
+                int recordStart = window.position();
+                try {
+                    if (window.get() == 0) {
+                        if (window.getLong() != peers) {
+                            throw new IOException("Snapshot trailer does not match its peer count");
+                        }
+                        return;
+                    }
+                    PeerInfo peer = new PeerInfo(readString(window), readString(window), window.getInt(), window.getDouble());
+                    int count = window.getInt();
+                    List<String> files = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        files.add(readString(window));
+                    }
+                    index.register(peer, files);
+                    peers++;
+                } catch (BufferUnderflowException e) {
+                    long next = windowStart + recordStart;
+                    if (windowStart + window.limit() >= size || next == windowStart) {
+                        throw new IOException("Truncated snapshot");
+                    }
+                    windowStart = next;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, MAX_MAP_WINDOW));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays the records of one segment up to its end or its first torn or corrupt record.
+     * @return long - Number of records applied.
+     */
+    private long replay(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        ByteBuffer in = ByteBuffer.wrap(data);
+        CRC32 check = new CRC32();
+        long applied = 0;
+        while (in.remaining() >= 8) {
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length < 5 || length > in.remaining()) {
+                break; // Torn write at the end of the previous run
+            }
+            check.reset();
+            check.update(data, in.position(), length);
+            if ((int) check.getValue() != checksum) {
+                Log.warn("Corrupt record in {} at offset {}, ignoring the rest", file, in.position() - 8);
+                break;
+            }
+            Frame record = new Frame(data, in.position(), length);
+            in.position(in.position() + length);
+            if (record.getOpcode() == BinaryCodec.REGISTER) {
+                index.register(record.getPeer(), record.getStrings());
+            } else if (record.getOpcode() == BinaryCodec.DEREGISTER) {
+                String peerId = record.getString();
+                List<String> files = record.getStrings();
+                if (files.isEmpty()) {
+                    index.deregisterPeer(peerId);
+                } else {
+                    index.deregisterFiles(peerId, files);
+                }
+            }
+            applied++;
+        }
+        return applied;
+    }
+
+    private void clearIndex() {
+        List<String> peerIds = new ArrayList<>();
+        index.forEachPeer((peer, files) -> peerIds.add(peer.getPeerId()));
+        for (String peerId : peerIds) {
+            index.deregisterPeer(peerId);
+        }
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes.length >>> 8);
+        out.write(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private FileChannel openSegment(long n) throws IOException {
+        // Not APPEND: a failed commit moves the position back, which appending writes would ignore
+        return FileChannel.open(segmentPath(n), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> result = new TreeMap<>();
+        for (Path file : listFiles()) {
+            if (file.getFileName().toString().endsWith(".log")) {
+                result.put(fileNumber(file), file);
+            }
+        }
+        return result;
+    }
+
+    private List<Path> listFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "{wal-*.log,snapshot-*.snap,index-*.map}")) {
+            for (Path file : stream) {
+                if (fileNumber(file) >= 0) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return long - The number in a segment or snapshot file name, or -1 if it has none.
+     */
+    private static long fileNumber(Path file) {
+        String name = file.getFileName().toString();
+        int dash = name.indexOf('-');
+        int dot = name.lastIndexOf('.');
+        try {
+            return Long.parseLong(name.substring(dash + 1, dot));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private Path segmentPath(long n) {
+        return dir.resolve(String.format("wal-%016d.log", n));
+    }
+
+    private Path snapshotPath(long n) {
+        return dir.resolve(String.format("snapshot-%016d.snap", n));
+    }
+
+    private Path indexPath(long n) {
+        return dir.resolve(String.format("index-%016d.map", n));
+    }
+
+    /**
+     * Stops the committer and forces the remaining records to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        committer.interrupt();
+        synchronized (this) {
+            commit();
+            segment.close();
+        }
+    }
+}
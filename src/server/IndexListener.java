@@ -0,0 +1,43 @@
+// File: src/server/IndexListener.java
+package server;
+
+/**
+ * The IndexListener interface lets secondary structures follow the changes of a FileIndex.
+ * Callbacks run while the index still holds the lock of the affected entry, so the events for one
+ * file name arrive in the same order as the changes were applied. Listeners must therefore be quick
+ * and must not call back into the index.
+ */
+public interface IndexListener {
+
+    /**
+     * Called when a file name enters the index, i.e. its first peer registers it.
+     * @param filename - The new file name.
+     */
+    default void fileAdded(String filename) {
+    }
+
+    /**
+     * Called when a file name leaves the index, i.e. its last peer deregisters it.
+     * @param filename - The removed file name.
+     */
+    default void fileRemoved(String filename) {
+    }
+
+    /**
+     * Called whenever the answer to a SEARCH for a file changes: a peer starts or stops sharing it
+     * (including the first and the last peer), or a peer sharing it re-registers with a new address.
+     * It may arrive after the entry's lock was released, but never before SEARCH sees the change.
+     * @param filename - The affected file name.
+     */
+    default void filePeersChanged(String filename) {
+    }
+
+    /**
+     * Tells an index opened from a file (see MappedFileIndex) whether this listener keeps the file names
+     * themselves and so must see a fileAdded for every name already in the file, not only the changes.
+     * @return boolean - True if the listener needs every name.
+     */
+    default boolean needsAllNames() {
+        return false;
+    }
+}
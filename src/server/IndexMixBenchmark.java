@@ -0,0 +1,144 @@
+// File: src/server/IndexMixBenchmark.java
+package server;
+
+import common.PeerInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The IndexMixBenchmark class measures SEARCH under concurrent registrations for one FileIndex
+ * implementation: reader threads search as fast as they can while a writer thread registers and
+ * deregisters files at a fixed rate, both skewed towards a few hot names the way real traffic is.
+ * It reports the search throughput and latency percentiles and the writes done, so the
+ * "concurrent", "compact" and "snapshot" index modes can be compared on the same mix.
+ */
+public class IndexMixBenchmark {
+    private static final int HOT_FILES = 100;       // Names that get most of the traffic
+    private static final int HOT_PERCENT = 90;      // Share of the searches and writes that go to them
+    private static final int FILES_PER_WRITE = 10;  // Names in one REGISTER or DEREGISTER
+    private static final int SAMPLE_EVERY = 8;      // Searches per latency sample
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments for configuring the benchmark.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 4) {
+            System.out.println("Usage: java server.IndexMixBenchmark <concurrent|compact|snapshot> <readers> <writesPerSecond> <seconds> [distinctFiles] [publishMs]");
+            System.exit(1);
+        }
+
+        String mode = args[0];
+        int readers = Integer.parseInt(args[1]);
+        int writesPerSecond = Integer.parseInt(args[2]);
+        int seconds = Integer.parseInt(args[3]);
+        int distinctFiles = args.length > 4 ? Integer.parseInt(args[4]) : 100_000;
+        String publishMs = args.length > 5 ? args[5] : "5";
+        FileIndex index = IndexingServer.createIndex(ServerConfig.parse(new String[]{"--index=" + mode, "--publish-ms=" + publishMs}));
+
+        // Every name is shared by five peers, the hot names by fifty more
+        int peers = distinctFiles / 20;
+        for (int p = 0; p < peers; p++) {
+            List<String> files = new ArrayList<>(100);
+            for (int i = 0; i < 100; i++) {
+                files.add("file" + ((long) p * 100 + i) % distinctFiles + ".txt");
+            }
+            index.register(new PeerInfo("Peer" + p, "10.0." + (p >> 8 & 255) + "." + (p & 255), 6000, 100.0), files);
+        }
+        for (int p = 0; p < 50; p++) {
+            List<String> files = new ArrayList<>(HOT_FILES);
+            for (int i = 0; i < HOT_FILES; i++) {
+                files.add("file" + i + ".txt");
+            }
+            index.register(new PeerInfo("HotPeer" + p, "10.1.0." + p, 6000, 100.0), files);
+        }
+        if (index instanceof SnapshotFileIndex) {
+            ((SnapshotFileIndex) index).publishNow(); // Searches start on the loaded index
+        }
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        LongAdder searches = new LongAdder();
+        LongAdder writes = new LongAdder();
+        LatencyHistogram latency = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                long found = 0;
+                while ((done & 1023) != 0 || System.nanoTime() < deadline) {
+                    String filename = "file" + pick(random, distinctFiles) + ".txt";
+                    if ((done & (SAMPLE_EVERY - 1)) == 0) {
+                        long start = System.nanoTime();
+                        found += index.search(filename).size();
+                        latency.record(System.nanoTime() - start);
+                    } else {
+                        found += index.search(filename).size();
+                    }
+                    done++;
+                }
+                searches.add(done);
+                if (found < 0) {
+                    System.out.println(found); // Keeps the searches from being optimized away
+                }
+            }, "reader-" + r));
+        }
+
+        threads.add(new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long interval = 1_000_000_000L / Math.max(1, writesPerSecond);
+            long next = System.nanoTime();
+            int churnPeers = 100;
+            while (System.nanoTime() < deadline) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                // Churn peers flip between sharing ten names and nothing
+                String peerId = "Churn" + random.nextInt(churnPeers);
+                if (index.hasPeer(peerId)) {
+                    index.deregisterPeer(peerId);
+                } else {
+                    List<String> files = new ArrayList<>(FILES_PER_WRITE);
+                    for (int i = 0; i < FILES_PER_WRITE; i++) {
+                        files.add("file" + pick(random, distinctFiles) + ".txt");
+                    }
+                    index.register(new PeerInfo(peerId, "10.2.0." + Math.floorMod(peerId.hashCode(), 250), 6000, 100.0), files);
+                }
+                writes.increment();
+                next += interval;
+            }
+        }, "writer"));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        LatencyHistogram.Snapshot latencies = latency.snapshot();
+        System.out.printf("%s: %d readers, %.0f searches/s, p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns; %.0f writes/s%n",
+                mode, readers, searches.sum() / (double) seconds, latencies.getValueAt(0.5), latencies.getValueAt(0.99),
+                latencies.getValueAt(0.999), latencies.getMax(), writes.sum() / (double) seconds);
+        if (index instanceof SnapshotFileIndex) {
+            System.out.printf("snapshot: %d snapshots published%n", ((SnapshotFileIndex) index).getEpoch());
+        }
+    }
+
+    /**
+     * @return int - A file number, one of the hot ones HOT_PERCENT of the time.
+     */
+    private static int pick(ThreadLocalRandom random, int distinctFiles) {
+        return random.nextInt(100) < HOT_PERCENT ? random.nextInt(HOT_FILES) : random.nextInt(distinctFiles);
+    }
+}
@@ -1,38 +1,178 @@
 // File: src/server/IndexingServer.java
 package server;
 
+import common.Log;
+
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
 
 /**
  * The IndexingServer class is responsible for managing the central indexing server
  * that peers communicate with to register, search, and deregister files.
  * This server listens for incoming connections from peers and processes their requests.
+ * By default every connection gets its own handler thread; --executor picks a thread pool or virtual
+ * threads instead, and with --io=nio the connections are multiplexed over a few selector event loops
+ * (see NioIndexingServer). With --data-dir the index is journaled and recovered on restart (see IndexJournal).
+ * With --replication-port the index is streamed to followers, and --replica-of makes this server a read-only
+ * follower of another one (see ReplicationLog and ReplicaFollower). With --lease-ms peers that stop sending
+ * HEARTBEAT are removed (see LeasedFileIndex). --max-connections, --rate-limit and --rate-burst protect the
+ * server from overload by answering BUSY with a retry-after hint (see AdmissionControl).
  */
 public class IndexingServer {
     public static void main(String[] args) {
-        int port = 5000; // Central server port that peers will connect to
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.out.println(ServerConfig.usage());
+            System.exit(1);
+            return;
+        }
+        Log.setLevel(config.getLogLevel());
+        Log.setSampleEvery(config.getLogSample());
+        int port = config.getPort(); // Central server port that peers will connect to
+        FileIndex index = createIndex(config);
+        if (config.isNameIndex()) {
+            NameIndex names = new NameIndex();
+            index.addListener(names); // Keep partial name search in step with the file index
+            ClientHandler.useNameIndex(names);
+        }
+        if (config.getSearchCacheMb() > 0) {
+            SearchCache cache = new SearchCache(index, (long) config.getSearchCacheMb() << 20);
+            index.addListener(cache); // Drop a cached response as soon as the file's peers change
+            ClientHandler.useSearchCache(cache);
+        }
+        if (config.getDataDir() != null) {
+            // Listeners are attached first so the recovered entries reach the name index as well
+            try {
+                IndexJournal journal = new IndexJournal(Paths.get(config.getDataDir()), index,
+                        config.getWalFlushMs(), config.getSnapshotEvery());
+                index = new DurableFileIndex(index, journal);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        journal.close(); // Force the records of the last interval to disk
+                    } catch (IOException e) {
+                        Log.error("Error closing the index journal: {}", e.getMessage());
+                    }
+                }));
+            } catch (IOException e) {
+                Log.error("Error recovering the index from " + config.getDataDir() + ":", e);
+                Log.flush();
+                System.exit(1);
+                return;
+            }
+        }
+        if (config.getReplicationPort() > 0) {
+            ReplicationLog replication = new ReplicationLog(index, config.getReplicationFlushMs());
+            index = new ReplicatedFileIndex(index, replication);
+            try {
+                replication.listen(config.getReplicationPort());
+            } catch (IOException e) {
+                Log.error("Error opening the replication port:", e);
+                Log.flush();
+                System.exit(1);
+                return;
+            }
+        }
+        if (config.getLeaseMs() > 0) {
+            // Outermost, so expiries are journaled and replicated like any other deregistration
+            LeasedFileIndex leased = new LeasedFileIndex(index, config.getLeaseMs(), ClientHandler::readOnly);
+            index = leased;
+            ClientHandler.useLeases(leased);
+        }
+        ClientHandler.useIndex(index);
+        if (config.getAdminToken() != null) {
+            ClientHandler.useAdminToken(config.getAdminToken());
+        }
+        if (config.getReplicaOf() != null) {
+            // Mutations from the leader go through the same wrappers, so they are journaled and passed on
+            ReplicaFollower follower = new ReplicaFollower(index, config.getReplicaOf(), config.getFailoverMs());
+            ClientHandler.useReplica(follower);
+            follower.start();
+        }
+
+        AdmissionControl admission = new AdmissionControl(config.getMaxConnections(), config.getRateLimit(), config.getRateBurst());
+        ClientHandler.useAdmission(admission);
+
+        if ("nio".equals(config.getIoMode())) {
+            try {
+                new NioIndexingServer(port, config.getIoThreads(), admission, config.getAcceptBacklog()).start();
+            } catch (IOException e) {
+                Log.error("Error in Indexing Server:", e);
+            }
+            return;
+        }
+
+        // Executor that runs the blocking ClientHandlers (new thread, pool or virtual thread per connection)
+        ExecutorService executor = config.getExecutorMode().newExecutor(config.getPoolSize());
 
         // Try-with-resources block to automatically close the server socket when done
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Indexing Server started on port " + port);
+        try (ServerSocket serverSocket = new ServerSocket(port, config.getAcceptBacklog())) {
+            Log.info("Indexing Server ({} executor) started on port {}", config.getExecutorMode(), port);
 
             // The server will continuously run, accepting client connections
             while (true) {
                 // Accept incoming peer connections
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Accepted connection from " + clientSocket.getInetAddress());
+                if (!admission.connectionOpened()) {
+                    reject(clientSocket); // Over the limit: no handler thread for this connection
+                    continue;
+                }
+                Log.info("Accepted connection from {}", clientSocket.getInetAddress());
 
-                // Each client connection is handled by a separate thread using ClientHandler
+                // Each client connection is handled by a ClientHandler running on the selected executor
                 ClientHandler handler = new ClientHandler(clientSocket);
-                Thread handlerThread = new Thread(handler);
-                handlerThread.start(); // Start a new thread to handle the connection
+                executor.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        admission.connectionClosed();
+                    }
+                });
             }
         } catch (IOException e) {
             // In case of an error during server startup or while accepting clients
-            System.err.println("Error in Indexing Server:");
-            e.printStackTrace();
+            Log.error("Error in Indexing Server:", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Turns away a connection over the limit with a BUSY line and closes it.
+     * @param clientSocket - The accepted connection.
+     */
+    private static void reject(Socket clientSocket) {
+        try (clientSocket) {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(("BUSY " + AdmissionControl.CONNECTION_RETRY_MILLIS + "\n").getBytes());
+            out.flush();
+        } catch (IOException e) {
+            // The peer is gone already
+        }
+        Log.debug("Rejected connection from {}", clientSocket.getInetAddress());
+    }
+
+    /**
+     * Creates the file index selected by --index.
+     * @param config - The server configuration.
+     * @return FileIndex - A new, empty index.
+     */
+    static FileIndex createIndex(ServerConfig config) {
+        if ("compact".equals(config.getIndexMode())) {
+            return new CompactFileIndex(); // Interned IDs and primitive posting lists for very large indexes
+        }
+        if ("snapshot".equals(config.getIndexMode())) {
+            return new SnapshotFileIndex(config.getPublishMs()); // Lock-free SEARCH on published copies
+        }
+        if ("mapped".equals(config.getIndexMode())) {
+            return new MappedFileIndex(); // Searched in the mapped snapshot the journal opens, see --data-dir
         }
+        return new ConcurrentFileIndex();
     }
 }
@@ -0,0 +1,132 @@
+// File: src/server/LatencyHistogram.java
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram class records latencies in nanoseconds into log-linear buckets, in the manner
+ * of an HdrHistogram: values below 128 ns get a bucket each, and every further power of two is split
+ * into 64 buckets, so any recorded value is reported within 1.6% from 1 ns up to about 18 minutes in
+ * 2240 counters.
+ *
+ * Recording is lock-free and allocation-free: one atomic increment of a bucket and one atomic add to
+ * the sum. Threads are spread over a few stripes of counters, chosen by thread ID, so threads on
+ * different cores rarely update the same cache line. Readers add the stripes up; a read that races
+ * with recording may miss the values recorded meanwhile, which is fine for monitoring.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 7;                  // 2^7 exact buckets, then 2^6 per power of two
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final long MAX_VALUE = (1L << 40) - 1;   // Larger values are recorded as this
+    static final int BUCKETS = index(MAX_VALUE) + 1;
+    private static final int STRIDE = BUCKETS + 1;          // Buckets plus the sum of the stripe
+    private static final int STRIPES = Math.min(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIDE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @return int - The bucket of a value.
+     */
+    static int index(long value) {
+        if (value < 2L * HALF) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS; // Keeps the top SUB_BITS bits
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * @return long - The largest value that falls into a bucket.
+     */
+    static long highestValue(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long sub = index - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records one latency.
+     * @param nanos - The latency in nanoseconds.
+     */
+    void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        int base = (int) (Thread.currentThread().threadId() & (STRIPES - 1)) * STRIDE;
+        counts.getAndIncrement(base + index(value));
+        counts.getAndAdd(base + BUCKETS, value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Lost a race with another new maximum, try again
+        }
+    }
+
+    /**
+     * A consistent-enough copy of the counters, taken once so that all statistics of one report agree.
+     */
+    static final class Snapshot {
+        private final long[] buckets = new long[BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+
+        /**
+         * @return long - Number of recorded values.
+         */
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return long - Mean of the recorded values, 0 if there are none.
+         */
+        long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @return long - Largest recorded value.
+         */
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * @param quantile - Between 0 and 1, e.g. 0.99.
+         * @return long - The value below which the given share of the recorded values lies (bucket
+         *                precision), 0 if there are none.
+         */
+        long getValueAt(double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * @return Snapshot - The current counters, summed over the stripes.
+     */
+    Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int base = stripe * STRIDE;
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = counts.get(base + i);
+                snapshot.buckets[i] += n;
+                snapshot.count += n;
+            }
+            snapshot.sum += counts.get(base + BUCKETS);
+        }
+        snapshot.max = max.get();
+        return snapshot;
+    }
+}
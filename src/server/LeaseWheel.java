@@ -0,0 +1,120 @@
+// File: src/server/LeaseWheel.java
+package server;
+
+import java.util.function.Consumer;
+
+/**
+ * The LeaseWheel class is a hierarchical timer wheel for lease deadlines, measured in ticks.
+ * Level 0 has one slot per tick for the next 256 ticks, and every further level has 256 slots that each
+ * cover a whole turn of the level below; when a lower level wraps, the next slot of the level above is
+ * cascaded down. Scheduling is O(1), and advancing by one tick touches only the entries due in that tick
+ * (plus, once per turn, the entries of one slot of the level above).
+ *
+ * An entry carries its own deadline, which owners may move later at any time with a single volatile
+ * write. The wheel does not notice: when the entry's old slot fires, the callback sees the new deadline
+ * and schedules the entry again. A lease renewed every few seconds is therefore touched by the wheel
+ * about once per lease period, however often it is renewed. Not thread-safe: one thread owns the wheel.
+ */
+class LeaseWheel {
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;     // 2^32 ticks ahead, farther deadlines wait in the top level
+
+    /**
+     * An element of the wheel; subclasses add what the deadline belongs to.
+     */
+    static class Entry {
+        volatile long deadline;   // Tick at which the entry is due
+        Entry next;               // Next entry in the same slot, owned by the wheel's thread
+    }
+
+    private final Entry[][] slots = new Entry[LEVELS][SLOTS];
+    private long now;             // Last tick that was processed
+    private int size;
+
+    /**
+     * Constructor to initialize an empty wheel.
+     * @param startTick - The current tick.
+     */
+    LeaseWheel(long startTick) {
+        this.now = startTick;
+    }
+
+    /**
+     * Adds an entry at its current deadline; an entry that is already due fires on the next tick.
+     * @param entry - The entry, which must not be in the wheel already.
+     */
+    void schedule(Entry entry) {
+        place(entry, now + 1);
+    }
+
+    /**
+     * Links an entry into the slot of its deadline, but not before the given tick.
+     */
+    private void place(Entry entry, long earliest) {
+        long due = Math.max(entry.deadline, earliest);
+        long delta = due - now;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (level == LEVELS - 1) {
+            due = Math.min(due, now + (1L << (SLOT_BITS * LEVELS)) - 1); // Parked at the far end, rescheduled from there
+        }
+        int slot = (int) (due >>> (SLOT_BITS * level)) & (SLOTS - 1);
+        entry.next = slots[level][slot];
+        slots[level][slot] = entry;
+        size++;
+    }
+
+    /**
+     * Processes every tick up to and including the given one. Entries whose slot comes due are removed
+     * and passed to the callback, which may schedule them again.
+     * @param tick - The tick to advance to.
+     * @param due - Called for each entry whose slot fired.
+     */
+    void advance(long tick, Consumer<Entry> due) {
+        while (now < tick) {
+            now++;
+            // Cascade the levels whose lower level just wrapped, from the top down
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((now & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    int slot = (int) (now >>> (SLOT_BITS * level)) & (SLOTS - 1);
+                    Entry entry = slots[level][slot];
+                    slots[level][slot] = null;
+                    while (entry != null) {
+                        Entry next = entry.next;
+                        size--;
+                        place(entry, now); // Entries due right now land in the level 0 slot processed below
+                        entry = next;
+                    }
+                }
+            }
+
+            int slot = (int) now & (SLOTS - 1);
+            Entry entry = slots[0][slot];
+            slots[0][slot] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.next = null;
+                size--;
+                due.accept(entry);
+                entry = next;
+            }
+        }
+    }
+
+    /**
+     * @return long - The last processed tick.
+     */
+    long getNow() {
+        return now;
+    }
+
+    /**
+     * @return int - Number of scheduled entries.
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,240 @@
+// File: src/server/LeasedFileIndex.java
+package server;
+
+import common.Log;
+import common.PeerInfo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The LeasedFileIndex class wraps a FileIndex and gives every registered peer a lease. REGISTER and
+ * HEARTBEAT renew the lease; a peer whose lease lapses is deregistered as a whole, so a peer that died
+ * without saying goodbye stops showing up in search results after one lease period.
+ *
+ * A renewal is a map lookup and a volatile write of the new deadline, whatever the number of peers.
+ * Deadlines are kept on a LeaseWheel owned by one expiry thread, which checks each lease about once per
+ * lease period; new leases reach it through a queue. Registration and expiry of the same peer are
+ * serialized by a lock striped by peer ID, so an expiry never removes a peer that just registered again.
+ *
+ * While the server follows a leader (see ReplicaFollower) leases are kept but nothing expires; the
+ * leader's expiries arrive as DEREGISTER records. After a promotion every peer gets one full lease
+ * period to send its first heartbeat to the new leader.
+ */
+public class LeasedFileIndex implements FileIndex {
+    private static final int STRIPES = 256;
+    private static final long TICK_MILLIS = 100;  // Resolution of the lease deadlines
+
+    private final FileIndex index;              // The index holding the data
+    private final long leaseTicks;              // Lease period in ticks
+    private final BooleanSupplier paused;       // True while expiry must not run (read-only follower)
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Queue<Lease> added = new ConcurrentLinkedQueue<>(); // New leases for the expiry thread
+    private final Object[] locks = new Object[STRIPES];
+    private final long startNanos = System.nanoTime();
+    private final LeaseWheel wheel;             // Owned by the expiry thread
+    private long graceUntil;                    // No expiry before this tick, owned by the expiry thread
+    private int expired;                        // Peers expired in the current tick, owned by the expiry thread
+
+    /**
+     * The lease of one peer.
+     */
+    private static final class Lease extends LeaseWheel.Entry {
+        private final String peerId;
+
+        Lease(String peerId, long deadline) {
+            this.peerId = peerId;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Constructor to wrap an index and start the expiry thread.
+     * @param index - The index to expire peers from.
+     * @param leaseMillis - How long a peer stays registered without a heartbeat.
+     * @param paused - Tells whether expiry must be held back, e.g. while following a leader.
+     */
+    public LeasedFileIndex(FileIndex index, long leaseMillis, BooleanSupplier paused) {
+        this.index = index;
+        this.leaseTicks = Math.max(1, leaseMillis / TICK_MILLIS);
+        this.paused = paused;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        wheel = new LeaseWheel(currentTick());
+        Thread expiry = new Thread(this::expiryLoop, "lease-expiry");
+        expiry.setDaemon(true);
+        expiry.start();
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startNanos) / (TICK_MILLIS * 1_000_000);
+    }
+
+    private Object lockFor(String peerId) {
+        int h = peerId.hashCode();
+        return locks[(h ^ h >>> 16) & (STRIPES - 1)];
+    }
+
+    /**
+     * Renews the lease of a registered peer.
+     * @param peerId - The peer sending the heartbeat.
+     * @return boolean - False if the peer is not registered (any more) and has to register again.
+     */
+    public boolean heartbeat(String peerId) {
+        Lease lease = leases.get(peerId);
+        if (lease == null) {
+            return false;
+        }
+        lease.deadline = currentTick() + leaseTicks;
+        return true;
+    }
+
+    /**
+     * @return long - The lease period in milliseconds; peers should send heartbeats well within it.
+     */
+    public long getLeaseMillis() {
+        return leaseTicks * TICK_MILLIS;
+    }
+
+    /**
+     * @return int - Number of peers holding a lease.
+     */
+    public int getLeaseCount() {
+        return leases.size();
+    }
+
+    @Override
+    public void addListener(IndexListener listener) {
+        index.addListener(listener);
+    }
+
+    @Override
+    public void register(PeerInfo peer, List<String> files) {
+        String peerId = peer.getPeerId();
+        synchronized (lockFor(peerId)) {
+            index.register(peer, files);
+            long deadline = currentTick() + leaseTicks;
+            Lease lease = leases.get(peerId);
+            if (lease != null) {
+                lease.deadline = deadline;
+            } else {
+                lease = new Lease(peerId, deadline);
+                leases.put(peerId, lease);
+                added.add(lease);
+            }
+        }
+    }
+
+    @Override
+    public List<PeerInfo> search(String filename) {
+        return index.search(filename);
+    }
+
+    @Override
+    public List<String> deregisterPeer(String peerId) {
+        synchronized (lockFor(peerId)) {
+            leases.remove(peerId); // Left in the wheel, dropped when its slot fires
+            return index.deregisterPeer(peerId);
+        }
+    }
+
+    @Override
+    public List<String> deregisterFiles(String peerId, List<String> files) {
+        return index.deregisterFiles(peerId, files);
+    }
+
+    @Override
+    public boolean hasPeer(String peerId) {
+        return index.hasPeer(peerId);
+    }
+
+    @Override
+    public List<String> filesOf(String peerId) {
+        return index.filesOf(peerId);
+    }
+
+    @Override
+    public void forEachPeer(BiConsumer<PeerInfo, List<String>> action) {
+        index.forEachPeer(action);
+    }
+
+    @Override
+    public int fileCount() {
+        return index.fileCount();
+    }
+
+    @Override
+    public int peerCount() {
+        return index.peerCount();
+    }
+
+    @Override
+    public long postingCount() {
+        return index.postingCount();
+    }
+
+    /**
+     * Expiry loop: advances the wheel every tick and deregisters the peers whose lease lapsed.
+     */
+    private void expiryLoop() {
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Lease lease;
+            while ((lease = added.poll()) != null) {
+                wheel.schedule(lease);
+            }
+            if (paused.getAsBoolean()) {
+                graceUntil = currentTick() + leaseTicks; // Give every peer a full lease once expiry resumes
+            }
+            try {
+                expired = 0;
+                wheel.advance(currentTick(), entry -> fire((Lease) entry));
+                if (expired > 0) {
+                    Log.info("Expired the leases of {} peers, {} leases left", expired, leases.size());
+                }
+            } catch (RuntimeException e) {
+                Log.error("Error expiring leases:", e);
+            }
+        }
+    }
+
+    /**
+     * Called by the wheel when a lease's slot comes due: expires it, reschedules it, or drops it.
+     */
+    private void fire(Lease lease) {
+        if (leases.get(lease.peerId) != lease) {
+            return; // Deregistered, or replaced by a newer lease
+        }
+        long now = wheel.getNow();
+        if (lease.deadline > now || now < graceUntil) {
+            if (lease.deadline < graceUntil) {
+                lease.deadline = graceUntil;
+            }
+            wheel.schedule(lease); // Renewed since it was scheduled
+            return;
+        }
+
+        List<String> removed;
+        synchronized (lockFor(lease.peerId)) {
+            if (lease.deadline > now || !leases.remove(lease.peerId, lease)) {
+                if (leases.get(lease.peerId) == lease) {
+                    wheel.schedule(lease); // A heartbeat came in just now
+                }
+                return;
+            }
+            removed = index.deregisterPeer(lease.peerId);
+        }
+        expired++;
+        Log.debug("Lease of peer {} expired, removed {} files", lease.peerId, removed == null ? 0 : removed.size());
+    }
+}
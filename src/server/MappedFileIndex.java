@@ -0,0 +1,392 @@
+// File: src/server/MappedFileIndex.java
+package server;
+
+import common.PeerInfo;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * The MappedFileIndex class is a FileIndex whose bulk lives in a memory-mapped MappedIndexFile (the base)
+ * and only the changes since that file was written live on the heap (the overlay). With --data-dir the
+ * journal writes its snapshots in the mapped format and, on startup, opens the newest one instead of
+ * loading it, so the server is ready after replaying the log written since, whatever the index size.
+ *
+ * The overlay holds whole peers: the first time a peer of the base registers or deregisters, its base
+ * entry is copied into the overlay and masked in the base, and from then on the peer lives in the overlay
+ * only. SEARCH returns the base peers of a file that are not masked followed by its overlay peers. The
+ * overlay costs as much per peer as a ConcurrentFileIndex, so its size follows the churn since startup,
+ * not the index size. A read-write lock guards both parts, as in CompactFileIndex.
+ *
+ * Listeners that keep the names themselves (the NameIndex, with --name-index=on) see the base as one
+ * fileAdded per name when it is opened. The others, like the SearchCache, only see the changes after it,
+ * so without a name index opening takes the same time whatever the index size.
+ */
+public class MappedFileIndex implements FileIndex {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private MappedIndexFile base;                                          // Null until a file is opened
+    private BitSet masked = new BitSet();                                  // Base peers moved to the overlay or removed
+    private int maskedCount;
+    private final Map<Integer, Integer> maskedPostings = new HashMap<>();   // Base file number -> postings of masked peers
+    private final Map<String, PeerInfo> peerMap = new HashMap<>();          // Overlay: peer ID to PeerInfo
+    private final Map<String, Set<String>> peerFiles = new HashMap<>();     // Overlay: peer ID to the file names it shares
+    private final Map<String, Set<String>> fileMap = new HashMap<>();       // Overlay: file name to the IDs of its peers
+    private int files;                                                     // Distinct file names in base and overlay
+    private long postings;                                                 // Number of (file, peer) pairs
+    private final List<IndexListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void addListener(IndexListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Makes a mapped index file the base of this index. Called during recovery, before any other change.
+     * @param path - The index file.
+     * @throws IOException if the file cannot be mapped or is incomplete; the index is left unchanged.
+     */
+    void open(Path path) throws IOException {
+        MappedIndexFile file = MappedIndexFile.open(path);
+        lock.writeLock().lock();
+        try {
+            if (base != null || !peerMap.isEmpty()) {
+                throw new IllegalStateException("The index already holds entries");
+            }
+            base = file;
+            masked = new BitSet(file.peerCount());
+            files = file.fileCount();
+            postings = file.postingCount();
+            List<IndexListener> needNames = new ArrayList<>();
+            for (IndexListener listener : listeners) {
+                if (listener.needsAllNames()) {
+                    needNames.add(listener);
+                }
+            }
+            if (!needNames.isEmpty()) {
+                for (int fileNo = 0; fileNo < file.fileCount(); fileNo++) {
+                    String filename = file.fileName(fileNo);
+                    for (IndexListener listener : needNames) {
+                        listener.fileAdded(filename);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Path - The mapped base file, or null if there is none.
+     */
+    Path getBasePath() {
+        lock.readLock().lock();
+        try {
+            return base == null ? null : base.getPath();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void register(PeerInfo peer, List<String> files) {
+        lock.writeLock().lock();
+        try {
+            String peerId = peer.getPeerId();
+            moveToOverlay(peerId);
+            PeerInfo previous = peerMap.put(peerId, peer);
+            Set<String> shared = peerFiles.computeIfAbsent(peerId, id -> new LinkedHashSet<>());
+            if (previous != null && !sameAddress(previous, peer)) {
+                // Every file the peer already shares now answers SEARCH with the new details
+                for (String filename : shared) {
+                    firePeersChanged(filename);
+                }
+            }
+            for (String filename : files) {
+                if (shared.contains(filename)) {
+                    continue;
+                }
+                boolean present = contains(filename);
+                shared.add(filename);
+                fileMap.computeIfAbsent(filename, name -> new LinkedHashSet<>()).add(peerId);
+                postings++;
+                if (!present) {
+                    this.files++;
+                    for (IndexListener listener : listeners) {
+                        listener.fileAdded(filename);
+                    }
+                }
+                firePeersChanged(filename);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<PeerInfo> search(String filename) {
+        lock.readLock().lock();
+        try {
+            List<PeerInfo> result = new ArrayList<>();
+            if (base != null) {
+                int fileNo = base.findFile(filename);
+                if (fileNo >= 0) {
+                    for (int peerNo : base.peersOf(fileNo)) {
+                        if (!masked.get(peerNo)) {
+                            result.add(base.peer(peerNo));
+                        }
+                    }
+                }
+            }
+            Set<String> peerIds = fileMap.get(filename);
+            if (peerIds != null) {
+                for (String peerId : peerIds) {
+                    result.add(peerMap.get(peerId));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> deregisterPeer(String peerId) {
+        lock.writeLock().lock();
+        try {
+            moveToOverlay(peerId);
+            Set<String> shared = peerFiles.remove(peerId);
+            if (shared == null) {
+                return null;
+            }
+            peerMap.remove(peerId);
+            for (String filename : shared) {
+                unlink(filename, peerId);
+            }
+            return new ArrayList<>(shared);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> deregisterFiles(String peerId, List<String> files) {
+        lock.writeLock().lock();
+        try {
+            moveToOverlay(peerId);
+            Set<String> shared = peerFiles.get(peerId);
+            if (shared == null) {
+                return null;
+            }
+            List<String> removed = new ArrayList<>();
+            for (String filename : files) {
+                if (shared.remove(filename)) {
+                    unlink(filename, peerId);
+                    removed.add(filename);
+                }
+            }
+            if (shared.isEmpty()) {
+                peerFiles.remove(peerId);
+                peerMap.remove(peerId);
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies a peer's base entry into the overlay and masks it in the base, unless that happened before.
+     * The peer's files stay in the index, so listeners are not told. Caller holds the write lock.
+     */
+    private void moveToOverlay(String peerId) {
+        int peerNo = base == null ? -1 : base.findPeer(peerId);
+        if (peerNo < 0 || masked.get(peerNo)) {
+            return;
+        }
+        Set<String> shared = new LinkedHashSet<>();
+        for (int fileNo : base.filesOf(peerNo)) {
+            String filename = base.fileName(fileNo);
+            shared.add(filename);
+            fileMap.computeIfAbsent(filename, name -> new LinkedHashSet<>()).add(peerId);
+            maskedPostings.merge(fileNo, 1, Integer::sum);
+        }
+        peerMap.put(peerId, base.peer(peerNo));
+        peerFiles.put(peerId, shared);
+        masked.set(peerNo);
+        maskedCount++;
+    }
+
+    /**
+     * Removes a peer from one file's overlay entry. Caller holds the write lock.
+     */
+    private void unlink(String filename, String peerId) {
+        Set<String> peers = fileMap.get(filename);
+        if (peers == null || !peers.remove(peerId)) {
+            return;
+        }
+        postings--;
+        if (peers.isEmpty()) {
+            fileMap.remove(filename);
+        }
+        firePeersChanged(filename);
+        if (!contains(filename)) {
+            files--;
+            for (IndexListener listener : listeners) {
+                listener.fileRemoved(filename);
+            }
+        }
+    }
+
+    /**
+     * @return boolean - True if any peer in the base or the overlay shares the file. Caller holds the lock.
+     */
+    private boolean contains(String filename) {
+        if (fileMap.containsKey(filename)) {
+            return true;
+        }
+        int fileNo = base == null ? -1 : base.findFile(filename);
+        return fileNo >= 0 && base.peerCountOf(fileNo) > maskedPostings.getOrDefault(fileNo, 0);
+    }
+
+    private void firePeersChanged(String filename) {
+        for (IndexListener listener : listeners) {
+            listener.filePeersChanged(filename);
+        }
+    }
+
+    private static boolean sameAddress(PeerInfo a, PeerInfo b) {
+        return a.getIpAddress().equals(b.getIpAddress()) && a.getPort() == b.getPort()
+                && a.getBandwidth() == b.getBandwidth();
+    }
+
+    @Override
+    public boolean hasPeer(String peerId) {
+        lock.readLock().lock();
+        try {
+            if (peerMap.containsKey(peerId)) {
+                return true;
+            }
+            int peerNo = base == null ? -1 : base.findPeer(peerId);
+            return peerNo >= 0 && !masked.get(peerNo);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> filesOf(String peerId) {
+        lock.readLock().lock();
+        try {
+            Set<String> shared = peerFiles.get(peerId);
+            if (shared != null) {
+                return new ArrayList<>(shared);
+            }
+            int peerNo = base == null ? -1 : base.findPeer(peerId);
+            return peerNo < 0 || masked.get(peerNo) ? null : baseFilesOf(peerNo);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<String> baseFilesOf(int peerNo) {
+        int[] fileNos = base.filesOf(peerNo);
+        List<String> names = new ArrayList<>(fileNos.length);
+        for (int fileNo : fileNos) {
+            names.add(base.fileName(fileNo));
+        }
+        return names;
+    }
+
+    /**
+     * Visits the unmasked base peers, then the overlay peers. A peer that moves to the overlay during the
+     * walk may be visited twice, never not at all.
+     */
+    @Override
+    public void forEachPeer(BiConsumer<PeerInfo, List<String>> action) {
+        MappedIndexFile file;
+        lock.readLock().lock();
+        try {
+            file = base;
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int peerNo = 0; file != null && peerNo < file.peerCount(); peerNo++) {
+            List<String> names;
+            // Hold the read lock per peer only, so a long walk never stalls registrations for long
+            lock.readLock().lock();
+            try {
+                if (masked.get(peerNo)) {
+                    continue;
+                }
+                names = baseFilesOf(peerNo);
+            } finally {
+                lock.readLock().unlock();
+            }
+            action.accept(file.peer(peerNo), names);
+        }
+
+        List<String> peerIds;
+        lock.readLock().lock();
+        try {
+            peerIds = new ArrayList<>(peerFiles.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (String peerId : peerIds) {
+            PeerInfo peer;
+            List<String> names;
+            lock.readLock().lock();
+            try {
+                Set<String> shared = peerFiles.get(peerId);
+                if (shared == null) {
+                    continue;
+                }
+                peer = peerMap.get(peerId);
+                names = new ArrayList<>(shared);
+            } finally {
+                lock.readLock().unlock();
+            }
+            action.accept(peer, names);
+        }
+    }
+
+    @Override
+    public int fileCount() {
+        lock.readLock().lock();
+        try {
+            return files;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int peerCount() {
+        lock.readLock().lock();
+        try {
+            return (base == null ? 0 : base.peerCount() - maskedCount) + peerMap.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long postingCount() {
+        lock.readLock().lock();
+        try {
+            return postings;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,478 @@
+// File: src/server/MappedIndexFile.java
+package server;
+
+import common.PeerInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The MappedIndexFile class is an immutable on-disk index that is searched where it lies. The file is
+ * memory-mapped and never parsed as a whole: opening it reads the header and the trailer, and every
+ * lookup is a binary search over the mapped tables, so opening takes the same time for ten files as for
+ * ten million and the index costs no heap beyond what the lookups touch.
+ *
+ * Layout, all numbers big-endian:
+ * header (64 bytes): int magic | int version | long covered segment | int peers | int files |
+ *                    long postings | long peer table | long file table | long file length
+ * peer records:  short length | peer ID | short length | IP | int port | double bandwidth | int n | n file numbers
+ * file records:  short length | file name | int n | n peer numbers, ascending
+ * peer table:    one long offset per peer record, sorted by peer ID
+ * file table:    one long offset per file record, sorted by file name
+ * trailer:       long FILE_MAGIC
+ *
+ * A peer's number is its position in the peer table and a file's number its position in the file table.
+ * Names are compared as unsigned UTF-8 bytes. The file is mapped in chunks of 1 GB; records never cross
+ * a chunk boundary (the writer pads in front of a record that would) and the tables are 8-byte aligned,
+ * so every read falls into a single chunk.
+ */
+class MappedIndexFile {
+    private static final int MAGIC = 0x5032504D;            // "P2PM"
+    private static final int VERSION = 1;
+    private static final long FILE_MAGIC = 0x5032504D454E4421L; // "P2PMEND!"
+    private static final int HEADER_SIZE = 64;
+    private static final int CHUNK_BITS = 30;               // Chunks of 1 GB
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final Path path;
+    private final MappedByteBuffer[] chunks;
+    private final long covered;
+    private final int peerCount;
+    private final int fileCount;
+    private final long postingCount;
+    private final long peerTable;
+    private final long fileTable;
+    private final AtomicReferenceArray<PeerInfo> peers; // Decoded peers, filled in on first use
+
+    private MappedIndexFile(Path path, MappedByteBuffer[] chunks) throws IOException {
+        this.path = path;
+        this.chunks = chunks;
+        ByteBuffer header = chunks[0];
+        if (header.limit() < HEADER_SIZE + 8 || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a mapped index file");
+        }
+        covered = header.getLong(8);
+        peerCount = header.getInt(16);
+        fileCount = header.getInt(20);
+        postingCount = header.getLong(24);
+        peerTable = header.getLong(32);
+        fileTable = header.getLong(40);
+        long length = header.getLong(48);
+        long size = (long) (chunks.length - 1) * CHUNK_SIZE + chunks[chunks.length - 1].limit();
+        if (length != size || getLong(length - 8) != FILE_MAGIC) {
+            throw new IOException("Truncated mapped index file");
+        }
+        if (peerTable + 8L * peerCount > length - 8 || fileTable + 8L * fileCount > length - 8) {
+            throw new IOException("Damaged mapped index header");
+        }
+        peers = new AtomicReferenceArray<>(peerCount);
+    }
+
+    /**
+     * Maps an index file. Only the header and the trailer are read.
+     * @param path - The file, as written by write(...).
+     * @return MappedIndexFile - The opened index.
+     * @throws IOException if the file cannot be mapped or is not a complete index file.
+     */
+    static MappedIndexFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                throw new IOException("Empty mapped index file");
+            }
+            // The mappings stay valid after the channel is closed
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+            }
+            return new MappedIndexFile(path, chunks);
+        }
+    }
+
+    /**
+     * @return Path - The mapped file.
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return long - The first journal segment that is not reflected in this file.
+     */
+    long getCovered() {
+        return covered;
+    }
+
+    int peerCount() {
+        return peerCount;
+    }
+
+    int fileCount() {
+        return fileCount;
+    }
+
+    long postingCount() {
+        return postingCount;
+    }
+
+    /**
+     * @return int - The number of the file, or -1 if it is not in the index.
+     */
+    int findFile(String filename) {
+        return find(fileTable, fileCount, filename.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return int - The number of the peer, or -1 if it is not in the index.
+     */
+    int findPeer(String peerId) {
+        return find(peerTable, peerCount, peerId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return String - The name of a file.
+     */
+    String fileName(int fileNo) {
+        return getString(getLong(fileTable + 8L * fileNo));
+    }
+
+    /**
+     * @return int - Number of peers sharing a file.
+     */
+    int peerCountOf(int fileNo) {
+        long record = getLong(fileTable + 8L * fileNo);
+        return getInt(record + 2 + getShort(record));
+    }
+
+    /**
+     * @return int[] - The numbers of the peers sharing a file, ascending.
+     */
+    int[] peersOf(int fileNo) {
+        long record = getLong(fileTable + 8L * fileNo);
+        return getInts(record + 2 + getShort(record));
+    }
+
+    /**
+     * @return PeerInfo - A peer, decoded once and then shared.
+     */
+    PeerInfo peer(int peerNo) {
+        PeerInfo peer = peers.get(peerNo);
+        if (peer == null) {
+            long at = getLong(peerTable + 8L * peerNo);
+            String peerId = getString(at);
+            at += 2 + getShort(at);
+            String ip = getString(at);
+            at += 2 + getShort(at);
+            peer = new PeerInfo(peerId, ip, getInt(at), Double.longBitsToDouble(getLong(at + 4)));
+            peers.set(peerNo, peer); // Two readers may decode the same peer, either copy will do
+        }
+        return peer;
+    }
+
+    /**
+     * @return int[] - The numbers of the files a peer shares, in the order the peer registered them.
+     */
+    int[] filesOf(int peerNo) {
+        long at = getLong(peerTable + 8L * peerNo);
+        at += 2 + getShort(at);
+        at += 2 + getShort(at);
+        return getInts(at + 12);
+    }
+
+    /**
+     * Binary search over a table of record offsets by the name at the start of each record.
+     */
+    private int find(long table, int count, byte[] key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(getLong(table + 8L * mid), key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the name stored at a record with a key, as unsigned bytes.
+     */
+    private int compare(long record, byte[] key) {
+        ByteBuffer chunk = chunks[(int) (record >>> CHUNK_BITS)];
+        int at = (int) (record & CHUNK_MASK);
+        int length = chunk.getShort(at) & 0xFFFF;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int c = (chunk.get(at + 2 + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private int getShort(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getShort((int) (pos & CHUNK_MASK)) & 0xFFFF;
+    }
+
+    private int getInt(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+    }
+
+    private long getLong(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+    }
+
+    private String getString(long pos) {
+        ByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+        int at = (int) (pos & CHUNK_MASK);
+        byte[] bytes = new byte[chunk.getShort(at) & 0xFFFF];
+        chunk.get(at + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a count followed by that many ints.
+     */
+    private int[] getInts(long pos) {
+        ByteBuffer chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+        int at = (int) (pos & CHUNK_MASK);
+        int[] values = new int[chunk.getInt(at)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = chunk.getInt(at + 4 + 4 * i);
+        }
+        return values;
+    }
+
+    /**
+     * Writes every peer of an index to a new index file. The whole index is inverted in memory first
+     * (peer and file names, plus two ints per posting), because both tables have to be sorted.
+     * A peer visited twice by the walk is written once, with the files of its last visit.
+     * @param path - The file to write; the caller forces it to disk.
+     * @param index - The index to write.
+     * @param covered - The first journal segment that the file does not reflect.
+     * @return int - Number of peers written.
+     * @throws IOException if the file cannot be written.
+     */
+    static int write(Path path, FileIndex index, long covered) throws IOException {
+        NameTable fileIds = new NameTable();
+        Map<String, Integer> peerSlots = new HashMap<>();
+        List<PeerInfo> peerList = new ArrayList<>();
+        List<int[]> peerFiles = new ArrayList<>();
+        index.forEachPeer((peer, files) -> {
+            int[] ids = new int[files.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = fileIds.intern(files.get(i));
+            }
+            Integer slot = peerSlots.putIfAbsent(peer.getPeerId(), peerList.size());
+            if (slot == null) {
+                peerList.add(peer);
+                peerFiles.add(ids);
+            } else {
+                peerList.set(slot, peer);
+                peerFiles.set(slot, ids);
+            }
+        });
+
+        // Peer numbers and file numbers are the sorted positions
+        byte[][] peerKeys = new byte[peerList.size()][];
+        for (int i = 0; i < peerKeys.length; i++) {
+            peerKeys[i] = peerList.get(i).getPeerId().getBytes(StandardCharsets.UTF_8);
+        }
+        int[] peerOrder = sortedOrder(peerKeys);
+        int fileTotal = fileIds.idLimit();
+        byte[][] fileKeys = new byte[fileTotal][];
+        for (int id = 0; id < fileTotal; id++) {
+            fileKeys[id] = fileIds.name(id).getBytes(StandardCharsets.UTF_8);
+        }
+        int[] fileOrder = sortedOrder(fileKeys);
+        int[] fileNo = new int[fileTotal];
+        for (int rank = 0; rank < fileTotal; rank++) {
+            fileNo[fileOrder[rank]] = rank;
+        }
+
+        // Invert into one flat array: the peers of file f are postings[start[f]..start[f + 1])
+        int[] start = new int[fileTotal + 1];
+        long postingTotal = 0;
+        for (int[] ids : peerFiles) {
+            for (int id : ids) {
+                start[fileNo[id] + 1]++;
+            }
+            postingTotal += ids.length;
+        }
+        if (postingTotal > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many postings for one index file: " + postingTotal);
+        }
+        for (int f = 0; f < fileTotal; f++) {
+            start[f + 1] += start[f];
+        }
+        int[] postings = new int[(int) postingTotal];
+        int[] fill = Arrays.copyOf(start, fileTotal);
+        for (int peerNo = 0; peerNo < peerOrder.length; peerNo++) {
+            for (int id : peerFiles.get(peerOrder[peerNo])) {
+                postings[fill[fileNo[id]]++] = peerNo; // Peers go in ascending, so every list ends up sorted
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.skip(HEADER_SIZE);
+            long[] peerOffsets = new long[peerOrder.length];
+            for (int peerNo = 0; peerNo < peerOrder.length; peerNo++) {
+                PeerInfo peer = peerList.get(peerOrder[peerNo]);
+                byte[] ip = peer.getIpAddress().getBytes(StandardCharsets.UTF_8);
+                int[] ids = peerFiles.get(peerOrder[peerNo]);
+                peerOffsets[peerNo] = out.startRecord(2 + peerKeys[peerOrder[peerNo]].length + 2 + ip.length + 16 + 4L * ids.length);
+                out.putString(peerKeys[peerOrder[peerNo]]);
+                out.putString(ip);
+                out.putInt(peer.getPort());
+                out.putLong(Double.doubleToLongBits(peer.getBandwidth()));
+                out.putInt(ids.length);
+                for (int id : ids) {
+                    out.putInt(fileNo[id]);
+                }
+            }
+            long[] fileOffsets = new long[fileTotal];
+            for (int f = 0; f < fileTotal; f++) {
+                byte[] name = fileKeys[fileOrder[f]];
+                fileOffsets[f] = out.startRecord(2 + name.length + 4 + 4L * (start[f + 1] - start[f]));
+                out.putString(name);
+                out.putInt(start[f + 1] - start[f]);
+                for (int i = start[f]; i < start[f + 1]; i++) {
+                    out.putInt(postings[i]);
+                }
+            }
+            long peerTableAt = out.putTable(peerOffsets);
+            long fileTableAt = out.putTable(fileOffsets);
+            out.putLong(FILE_MAGIC);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(covered).putInt(peerOrder.length).putInt(fileTotal)
+                    .putLong(postingTotal).putLong(peerTableAt).putLong(fileTableAt).putLong(out.position);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+        return peerOrder.length;
+    }
+
+    /**
+     * @return int[] - The positions of the keys in ascending unsigned byte order.
+     */
+    private static int[] sortedOrder(byte[][] keys) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+        int[] result = new int[order.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /**
+     * Sequential buffered writer that keeps the file position and the chunk alignment rules.
+     */
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 17); // Holds the longest name
+        long position;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Pads so that a record of the given length does not cross a chunk boundary.
+         * @return long - The offset the record starts at.
+         */
+        long startRecord(long length) throws IOException {
+            if (length > CHUNK_SIZE) {
+                throw new IOException("Index record of " + length + " bytes does not fit a chunk");
+            }
+            if ((position & CHUNK_MASK) + length > CHUNK_SIZE) {
+                skip(CHUNK_SIZE - (position & CHUNK_MASK));
+            }
+            return position;
+        }
+
+        /**
+         * Writes an 8-byte aligned table of offsets.
+         * @return long - The offset of the table.
+         */
+        long putTable(long[] offsets) throws IOException {
+            skip(-position & 7);
+            long at = position;
+            for (long offset : offsets) {
+                putLong(offset);
+            }
+            return at;
+        }
+
+        void skip(long n) throws IOException {
+            for (long i = 0; i < n; i++) {
+                room(1);
+                buffer.put((byte) 0);
+            }
+            position += n;
+        }
+
+        void putString(byte[] bytes) throws IOException {
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("Name too long for the index file: " + bytes.length + " bytes");
+            }
+            room(2 + bytes.length);
+            buffer.putShort((short) bytes.length).put(bytes);
+            position += 2 + bytes.length;
+        }
+
+        void putInt(int value) throws IOException {
+            room(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        void putLong(long value) throws IOException {
+            room(8);
+            buffer.putLong(value);
+            position += 8;
+        }
+
+        private void room(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
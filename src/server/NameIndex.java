@@ -0,0 +1,203 @@
+// File: src/server/NameIndex.java
+package server;
+
+import common.ContentHash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The NameIndex class answers partial file name queries for SEARCH_PREFIX and SEARCH_LIKE.
+ * It follows the FileIndex as an IndexListener and keeps every indexed name twice:
+ * in a sorted skip list, so a prefix query is a range scan that costs O(log n + results),
+ * and in a trigram index (every 3-character substring to the names containing it), so a
+ * wildcard or substring pattern only has to verify the names that share its rarest trigram.
+ * Like CompactFileIndex, the trigram postings are int IDs of interned names guarded by a read-write lock.
+ * Content keys (see ContentHash) are not names and are left out.
+ */
+public class NameIndex implements IndexListener {
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>();  // All indexed names, sorted
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();  // Guards nameIds and trigrams
+    private final NameTable nameIds = new NameTable();                          // Name <-> name ID
+    private final Map<Long, PostingList> trigrams = new HashMap<>();            // Trigram -> IDs of the names containing it
+
+    @Override
+    public boolean needsAllNames() {
+        return true;
+    }
+
+    @Override
+    public void fileAdded(String filename) {
+        if (ContentHash.isKey(filename)) {
+            return;
+        }
+        names.add(filename);
+        lock.writeLock().lock();
+        try {
+            int id = nameIds.intern(filename);
+            for (long trigram : trigramsOf(filename)) {
+                trigrams.computeIfAbsent(trigram, key -> new PostingList()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void fileRemoved(String filename) {
+        if (ContentHash.isKey(filename)) {
+            return;
+        }
+        names.remove(filename);
+        lock.writeLock().lock();
+        try {
+            int id = nameIds.find(filename);
+            if (id < 0) {
+                return;
+            }
+            for (long trigram : trigramsOf(filename)) {
+                PostingList matching = trigrams.get(trigram);
+                if (matching != null && matching.remove(id) && matching.isEmpty()) {
+                    trigrams.remove(trigram);
+                }
+            }
+            nameIds.release(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the names that start with a prefix, in sorted order.
+     * @param prefix - The prefix to look for.
+     * @param limit - Maximum number of names to return.
+     * @return List<String> - The matching names.
+     */
+    public List<String> searchPrefix(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        for (String name : names.tailSet(prefix)) {
+            if (result.size() >= limit || !name.startsWith(prefix)) {
+                break;
+            }
+            result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the names that match a wildcard pattern, where '*' matches any run of characters and
+     * '?' matches exactly one character. A substring search is the pattern *text*.
+     * @param pattern - The wildcard pattern.
+     * @param limit - Maximum number of names to return.
+     * @return List<String> - The matching names, sorted.
+     */
+    public List<String> searchLike(String pattern, int limit) {
+        List<String> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            PostingList best = rarestTrigram(pattern);
+            if (best != null) {
+                // Postings are in ID order, so the limit can only be applied once the matches are sorted
+                for (int i = 0; i < best.size(); i++) {
+                    String name = nameIds.name(best.get(i));
+                    if (matches(pattern, name)) {
+                        result.add(name);
+                    }
+                }
+                Collections.sort(result);
+                return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // No trigram to narrow the search: scan the range of the literal prefix, or every name
+        int wildcard = firstWildcard(pattern);
+        String prefix = pattern.substring(0, wildcard);
+        Iterable<String> candidates = prefix.isEmpty() ? names : names.subSet(prefix, prefix + Character.MAX_VALUE);
+        for (String name : candidates) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (matches(pattern, name)) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Picks the trigram of the pattern's literal parts that the fewest names contain.
+     * @return PostingList - Its postings (empty if some trigram occurs nowhere), or null if the pattern has no trigram.
+     */
+    private PostingList rarestTrigram(String pattern) {
+        PostingList best = null;
+        for (String literal : pattern.split("[*?]")) {
+            for (long trigram : trigramsOf(literal)) {
+                PostingList matching = trigrams.get(trigram);
+                if (matching == null) {
+                    return new PostingList(); // A required trigram occurs in no name at all
+                }
+                if (best == null || matching.size() < best.size()) {
+                    best = matching;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return pattern.length();
+    }
+
+    /**
+     * Packs every 3-character substring into a long key; duplicates are harmless for the postings.
+     */
+    private static long[] trigramsOf(String text) {
+        long[] result = new long[Math.max(0, text.length() - 2)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+        }
+        return result;
+    }
+
+    /**
+     * Wildcard match with backtracking to the last '*', linear in practice and free of regex overhead.
+     */
+    static boolean matches(String pattern, String name) {
+        int p = 0;
+        int n = 0;
+        int star = -1;   // Position of the last '*' seen in the pattern
+        int resume = 0;  // Position in the name to retry from after that '*'
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+                p++;
+                n++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                resume = n;
+            } else if (star >= 0) {
+                p = star + 1;
+                n = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
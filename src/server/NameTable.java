@@ -0,0 +1,129 @@
+// File: src/server/NameTable.java
+package server;
+
+import java.util.Arrays;
+
+/**
+ * The NameTable class interns names (file names or peer IDs) to small int IDs.
+ * It is an open-addressing hash table that stores only int slots next to the name array, so a name
+ * costs its String plus a few bytes instead of a HashMap node and a boxed Integer.
+ * IDs of released names are reused. Not thread-safe; callers synchronize.
+ */
+class NameTable {
+    private String[] names = new String[16]; // ID -> name, null for free IDs
+    private int[] slots = new int[32];        // Hash slots holding ID + 1, 0 marks an empty slot
+    private int size;                         // Number of live names
+    private int nextId;                       // Lowest ID that has never been handed out
+    private int[] freeIds = new int[16];      // Released IDs waiting to be reused
+    private int freeCount;
+
+    /**
+     * @return int - The ID of the name, or -1 if it is not in the table.
+     */
+    int find(String name) {
+        int slot = slotOf(name);
+        return slots[slot] == 0 ? -1 : slots[slot] - 1;
+    }
+
+    /**
+     * Returns the ID of a name, assigning a new one if the name is not in the table yet.
+     */
+    int intern(String name) {
+        int slot = slotOf(name);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+
+        int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        names[id] = name;
+        slots[slot] = id + 1;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * Removes a name from the table; its ID may be handed out again afterwards.
+     */
+    void release(int id) {
+        int hole = slotOf(names[id]);
+        slots[hole] = 0;
+        names[id] = null;
+        size--;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+
+        // Backward-shift deletion keeps every remaining name reachable from its home slot without tombstones
+        int mask = slots.length - 1;
+        int next = (hole + 1) & mask;
+        while (slots[next] != 0) {
+            int home = home(names[slots[next] - 1], mask);
+            boolean between = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+            if (!between) {
+                slots[hole] = slots[next];
+                slots[next] = 0;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    /**
+     * @return String - The name with this ID, or null if the ID is free.
+     */
+    String name(int id) {
+        return id < names.length ? names[id] : null;
+    }
+
+    /**
+     * @return int - Number of names in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return int - Upper bound (exclusive) of the IDs handed out so far.
+     */
+    int idLimit() {
+        return nextId;
+    }
+
+    /**
+     * Finds the slot that holds the name, or the empty slot where it would be inserted.
+     */
+    private int slotOf(String name) {
+        int mask = slots.length - 1;
+        int slot = home(name, mask);
+        while (slots[slot] != 0 && !names[slots[slot] - 1].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int home(String name, int mask) {
+        int h = name.hashCode() * 0x9E3779B9; // Spread the bits before masking
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < nextId; id++) {
+            if (names[id] != null) {
+                int slot = home(names[id], mask);
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+// File: src/server/NioIndexingServer.java
+package server;
+
+import common.BinaryCodec;
+import common.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking variant of the IndexingServer built on ServerSocketChannel and Selector.
+ * A single acceptor hands new connections round-robin to a small, fixed set of event loops.
+ * Each event loop multiplexes thousands of connections on one thread, splits the incoming bytes
+ * into request lines and dispatches them through ClientHandler.processRequest, so the wire protocol
+ * is exactly the same as in the thread-per-connection mode. Connections that negotiate binary framing
+ * are split into frames instead and dispatched through ClientHandler.processFrame.
+ * Connections over the AdmissionControl limit are answered with BUSY and closed by the acceptor, and
+ * throttled lookups are answered with BUSY without being dispatched; the connection is then not read
+ * until the retry-after time has passed, so a client that ignores BUSY is held back by TCP flow control.
+ */
+public class NioIndexingServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;        // Shared per-loop read buffer
+    private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;  // Longest request line accepted from a peer
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;    // Stop reading from a peer that does not drain its responses
+
+    private static final int DEFAULT_BACKLOG = 4096;              // Accept queue length unless configured
+
+    private final int port;          // Port the server listens on
+    private final EventLoop[] loops; // Event loops that own the accepted connections
+    private final AdmissionControl admission; // Connection limit
+    private final int backlog;       // Length of the accept queue
+
+    /**
+     * Constructor to initialize the NIO server.
+     * @param port - Port on which the server listens for peers.
+     * @param ioThreads - Number of event loop threads.
+     */
+    public NioIndexingServer(int port, int ioThreads) {
+        this(port, ioThreads, new AdmissionControl(0, 0, 1), 0);
+    }
+
+    /**
+     * Constructor to initialize the NIO server with admission control.
+     * @param port - Port on which the server listens for peers.
+     * @param ioThreads - Number of event loop threads.
+     * @param admission - Bounds the open connections.
+     * @param backlog - Length of the accept queue, 0 for the default.
+     */
+    NioIndexingServer(int port, int ioThreads, AdmissionControl admission, int backlog) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+        this.admission = admission;
+        this.backlog = backlog > 0 ? backlog : DEFAULT_BACKLOG;
+    }
+
+    /**
+     * Opens the listening channel, starts the event loops and accepts connections forever.
+     * @throws IOException if the server channel cannot be opened or bound.
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(admission);
+            Thread loopThread = new Thread(loops[i], "nio-loop-" + i);
+            loopThread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            Log.info("Indexing Server (nio, " + loops.length + " event loops) started on port " + port);
+
+            int next = 0;
+            while (true) {
+                // Accepting stays blocking: it is cheap and keeps the event loops free for request traffic
+                SocketChannel channel = serverChannel.accept();
+                if (!admission.connectionOpened()) {
+                    reject(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Log.info("Accepted connection from {}", channel.socket().getInetAddress());
+
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * Turns away a connection over the limit with a BUSY line. The line fits in the empty socket buffer,
+     * so the blocking write does not stall the acceptor.
+     */
+    private void reject(SocketChannel channel) {
+        try (channel) {
+            channel.write(ByteBuffer.wrap(("BUSY " + AdmissionControl.CONNECTION_RETRY_MILLIS + "\n").getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            // The peer is gone already
+        }
+        Log.debug("Rejected connection, {} connections open", admission.getConnections());
+    }
+
+    /**
+     * Per-connection state: the bytes of a request line or frame that has not been completed yet,
+     * and the responses that could not be written to the socket immediately.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final String client;                 // Client address, which rate limits apply to
+        private boolean binary;                      // True once the peer negotiated binary framing
+        private byte[] partial = new byte[0];        // Bytes of the current, incomplete request line or frame
+        private int partialLength;                   // Number of valid bytes in partial
+        private final Queue<ByteBuffer> output = new ArrayDeque<>(); // Responses waiting to be written
+        private int pendingOutput;                   // Total bytes still queued in output
+        private SelectionKey key;                    // Registration with the loop's selector
+        private long pausedUntil;                    // Not read before this System.nanoTime(), 0 = not paused
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.client = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        /**
+         * Appends bytes to the incomplete request line, growing the buffer as needed.
+         */
+        void appendPartial(byte[] src, int offset, int length) throws IOException {
+            int limit = binary ? BinaryCodec.MAX_FRAME_LENGTH + 4 : MAX_LINE_LENGTH;
+            if (partialLength + length > limit) {
+                throw new IOException("Request exceeds " + limit + " bytes");
+            }
+            if (partialLength + length > partial.length) {
+                partial = Arrays.copyOf(partial, Math.max(partialLength + length, partial.length * 2));
+            }
+            System.arraycopy(src, offset, partial, partialLength, length);
+            partialLength += length;
+        }
+    }
+
+    /**
+     * One selector thread. Connections are handed over through a queue because a channel can only be
+     * registered safely from the thread that runs the selector.
+     */
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final AdmissionControl admission;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        // Throttled connections by the time they may be read again
+        private final PriorityQueue<Connection> paused = new PriorityQueue<>((a, b) -> Long.compare(a.pausedUntil, b.pausedUntil));
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        // Responses are rendered through the same PrintWriter API the blocking handler uses
+        private final StringWriter responseText = new StringWriter();
+        private final PrintWriter responseWriter = new PrintWriter(responseText);
+
+        EventLoop(AdmissionControl admission) throws IOException {
+            this.selector = Selector.open();
+            this.admission = admission;
+        }
+
+        /**
+         * Hands a freshly accepted channel to this loop.
+         * @param channel - The non-blocking channel of the new peer connection.
+         */
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (paused.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, (paused.peek().pausedUntil - System.nanoTime()) / 1_000_000));
+                    }
+                    registerNewChannels();
+                    resumePaused();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(key, connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key, connection);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // A malformed request only costs its own connection, never the whole event loop
+                            Log.error("Error handling client: " + e);
+                            close(key, connection);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error("Error in NIO event loop:", e);
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    Connection connection = new Connection(channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    Log.error("Error registering client channel: {}", e.getMessage());
+                    admission.connectionClosed();
+                }
+            }
+        }
+
+        /**
+         * Stops reading from a connection that was answered BUSY until its retry-after time has passed.
+         */
+        private void pause(Connection connection, long retryAfterMillis) {
+            if (connection.pausedUntil == 0) {
+                connection.pausedUntil = System.nanoTime() + retryAfterMillis * 1_000_000;
+                paused.add(connection);
+            }
+        }
+
+        /**
+         * Reads again from the connections whose pause is over.
+         */
+        private void resumePaused() {
+            long now = System.nanoTime();
+            while (!paused.isEmpty() && paused.peek().pausedUntil - now <= 0) {
+                Connection connection = paused.poll();
+                connection.pausedUntil = 0;
+                if (connection.key.isValid()) {
+                    updateInterest(connection.key, connection);
+                }
+            }
+        }
+
+        /**
+         * Reads whatever is available, processes every complete line and queues the responses.
+         */
+        private void read(SelectionKey key, Connection connection) throws IOException {
+            readBuffer.clear();
+            int bytesRead = connection.channel.read(readBuffer);
+            if (bytesRead < 0) {
+                close(key, connection);
+                return;
+            }
+            ClientHandler.getStats().bytesIn(bytesRead);
+
+            byte[] data = readBuffer.array();
+            int start = 0;
+            for (int i = 0; i < bytesRead && !connection.binary; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                String request;
+                if (connection.partialLength == 0) {
+                    request = decodeLine(data, start, i - start);
+                } else {
+                    connection.appendPartial(data, start, i - start);
+                    request = decodeLine(connection.partial, 0, connection.partialLength);
+                    connection.partialLength = 0;
+                }
+                handle(connection, request);
+                start = i + 1;
+            }
+            if (start < bytesRead) {
+                connection.appendPartial(data, start, bytesRead - start);
+            }
+            if (connection.binary) {
+                handleFrames(connection); // Also covers frames that arrived together with the negotiation line
+            }
+
+            write(key, connection);
+        }
+
+        /**
+         * Dispatches every complete frame in the connection's buffer and keeps the incomplete rest.
+         */
+        private void handleFrames(Connection connection) throws IOException {
+            byte[] buffer = connection.partial;
+            int position = 0;
+            while (connection.partialLength - position >= 4) {
+                int length = ByteBuffer.wrap(buffer, position, 4).getInt();
+                if (length < 5 || length > BinaryCodec.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (connection.partialLength - position - 4 < length) {
+                    break; // The rest of this frame has not arrived yet
+                }
+                BinaryCodec.Frame request = new BinaryCodec.Frame(buffer, position + 4, length);
+                long retryAfter = ClientHandler.throttle(connection.client, request);
+                if (retryAfter > 0) {
+                    pause(connection, retryAfter);
+                }
+                queue(connection, (retryAfter > 0
+                        ? new BinaryCodec.FrameWriter(BinaryCodec.BUSY, request.getRequestId()).putLong(retryAfter)
+                        : ClientHandler.processFrame(request)).toBytes());
+                position += 4 + length;
+            }
+            System.arraycopy(buffer, position, buffer, 0, connection.partialLength - position);
+            connection.partialLength -= position;
+        }
+
+        /**
+         * Decodes a request line, dropping the carriage return of CRLF terminated lines like readLine does.
+         */
+        private static String decodeLine(byte[] data, int offset, int length) {
+            if (length > 0 && data[offset + length - 1] == '\r') {
+                length--;
+            }
+            return new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+
+        private void handle(Connection connection, String request) {
+            long retryAfter;
+            if (BinaryCodec.HELLO.equals(request)) {
+                responseWriter.println(BinaryCodec.HELLO_OK);
+                connection.binary = true; // Every following byte belongs to a frame
+            } else if ((retryAfter = ClientHandler.throttle(connection.client, request)) > 0) {
+                responseWriter.println("BUSY " + retryAfter); // Throttled before the cache, so hot files are limited too
+                pause(connection, retryAfter);
+            } else {
+                byte[] cached = ClientHandler.cachedSearchResponse(request);
+                if (cached != null) {
+                    queue(connection, cached); // Shared read-only bytes, never modified after encoding
+                    return;
+                }
+                try {
+                    ClientHandler.processRequest(request, responseWriter);
+                } catch (RuntimeException e) {
+                    // Whatever was rendered before the failure must not lead the next client's response
+                    responseWriter.flush();
+                    responseText.getBuffer().setLength(0);
+                    throw e;
+                }
+            }
+            responseWriter.flush();
+            byte[] response = responseText.toString().getBytes(StandardCharsets.UTF_8);
+            responseText.getBuffer().setLength(0);
+            queue(connection, response);
+        }
+
+        private static void queue(Connection connection, byte[] response) {
+            connection.output.add(ByteBuffer.wrap(response));
+            connection.pendingOutput += response.length;
+        }
+
+        /**
+         * Writes queued responses until the socket buffer is full, then adjusts the interest set:
+         * a connection with a large backlog stops being read until its peer catches up.
+         */
+        private void write(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = connection.output.peek()) != null) {
+                int written = connection.channel.write(buffer);
+                connection.pendingOutput -= written;
+                ClientHandler.getStats().bytesOut(written);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                connection.output.poll();
+            }
+
+            updateInterest(key, connection);
+        }
+
+        /**
+         * Reads unless the connection is paused or has too large a backlog, and writes while output is queued.
+         */
+        private static void updateInterest(SelectionKey key, Connection connection) {
+            int ops = connection.output.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+            if (connection.pausedUntil == 0 && connection.pendingOutput <= MAX_PENDING_OUTPUT) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        private void close(SelectionKey key, Connection connection) {
+            key.cancel();
+            if (!connection.channel.isOpen()) {
+                return; // Closed before, e.g. after an error in the same round of events
+            }
+            admission.connectionClosed();
+            try {
+                connection.channel.close();
+                Log.info("Closed connection with client.");
+            } catch (IOException e) {
+                Log.error("Error closing client channel:", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+// File: src/server/PeerLoad.java
+package server;
+
+import common.PeerInfo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The PeerLoad class keeps the number of uploads each peer reports as active (LOAD peerId n) and ranks
+ * the peers sharing a file for "SEARCH filename K": a peer's score is its bandwidth divided by one plus
+ * its active uploads, so an idle slow peer can beat a fast one that is already serving many downloads.
+ *
+ * Only peers with uploads in progress have an entry; a peer reporting 0 is removed, and so is a peer
+ * that deregisters. Entries of peers that left the index some other way (e.g. an expired lease) are
+ * pruned once they make up a noticeable part of the table.
+ */
+class PeerLoad {
+    private static final int PRUNE_SLACK = 1024; // Entries tolerated beyond the peer count before pruning
+
+    private final Map<String, Integer> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * A peer and its score, so the heap computes every score only once.
+     */
+    private static final class Ranked {
+        private final PeerInfo peer;
+        private final double score;
+
+        Ranked(PeerInfo peer, double score) {
+            this.peer = peer;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Records the number of uploads a peer is serving.
+     * @param peerId - The reporting peer, which must be registered.
+     * @param active - Its active uploads.
+     * @param index - The index, used to prune peers that are gone.
+     */
+    void report(String peerId, int active, FileIndex index) {
+        if (active <= 0) {
+            uploads.remove(peerId);
+            return;
+        }
+        uploads.put(peerId, active);
+        if (uploads.size() > index.peerCount() + PRUNE_SLACK) {
+            uploads.keySet().removeIf(id -> !index.hasPeer(id));
+        }
+    }
+
+    /**
+     * Forgets a peer that left the index.
+     * @param peerId - The peer.
+     */
+    void forget(String peerId) {
+        uploads.remove(peerId);
+    }
+
+    /**
+     * @param peerId - The peer.
+     * @return int - Its last reported number of active uploads, 0 if it reported none.
+     */
+    int uploadsOf(String peerId) {
+        Integer active = uploads.get(peerId);
+        return active == null ? 0 : active;
+    }
+
+    /**
+     * Picks the K best peers with a min-heap of at most K entries, so a file with thousands of sharers
+     * costs O(n log K) and only K peers are sent back.
+     * @param peers - The peers sharing a file.
+     * @param k - Number of peers wanted.
+     * @return List<PeerInfo> - At most K peers, best first.
+     */
+    List<PeerInfo> top(List<PeerInfo> peers, int k) {
+        PriorityQueue<Ranked> heap = new PriorityQueue<>(Math.max(1, Math.min(k, peers.size())),
+                (a, b) -> Double.compare(a.score, b.score));
+        for (PeerInfo peer : peers) {
+            double score = peer.getBandwidth() / (1 + uploadsOf(peer.getPeerId()));
+            if (heap.size() < k) {
+                heap.add(new Ranked(peer, score));
+            } else if (score > heap.peek().score) {
+                heap.poll(); // Drop the worst of the current K
+                heap.add(new Ranked(peer, score));
+            }
+        }
+
+        // The heap yields the worst first, so fill the list from the back
+        PeerInfo[] best = new PeerInfo[heap.size()];
+        for (int i = best.length - 1; i >= 0; i--) {
+            best[i] = heap.poll().peer;
+        }
+        return Arrays.asList(best);
+    }
+}
@@ -0,0 +1,168 @@
+// File: src/server/PeerSync.java
+package server;
+
+import common.PeerInfo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The PeerSync class implements chunked registrations and versioned deltas, so a peer sharing a large
+ * library never sends it as one line and, once in sync, only sends what changed.
+ *
+ * A full registration is REGISTER_BEGIN, any number of REGISTER_ADD batches (each applied as it
+ * arrives), and REGISTER_END with the library's version number; at the end, files the peer registered
+ * earlier but did not send this time are removed. From then on, ADD and REMOVE carry the version the
+ * library has after the change. The server applies a delta whose version is exactly one above the one
+ * it holds, acknowledges a repeat of the last delta it applied without applying it again, and reports
+ * its version for anything else, an older version included, upon which the peer starts over with a full registration.
+ *
+ * Versions live only in memory and are forgotten when the peer's files change any other way, when the
+ * peer leaves the index, or when the server restarts; the peer's next delta then triggers a full
+ * registration. State is keyed by peer ID, not by connection, so both io modes share it.
+ */
+class PeerSync {
+    /**
+     * A full registration in progress.
+     */
+    private static final class Session {
+        private final PeerInfo peer;
+        private final Set<String> files = new HashSet<>();
+
+        Session(PeerInfo peer) {
+            this.peer = peer;
+        }
+    }
+
+    /**
+     * The acknowledged library version of a peer.
+     */
+    private static final class Version {
+        private final PeerInfo peer;
+        private long version;
+
+        Version(PeerInfo peer, long version) {
+            this.peer = peer;
+            this.version = version;
+        }
+    }
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Version> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Starts a full registration; a previous unfinished one of the same peer is dropped.
+     * @param peer - The peer registering.
+     */
+    void begin(PeerInfo peer) {
+        versions.remove(peer.getPeerId());
+        sessions.put(peer.getPeerId(), new Session(peer));
+    }
+
+    /**
+     * Registers one batch of a full registration.
+     * @param peerId - The peer registering.
+     * @param files - The batch of file names.
+     * @param index - The index to register the files in.
+     * @return boolean - False if the peer has no registration in progress.
+     */
+    boolean add(String peerId, List<String> files, FileIndex index) {
+        Session session = sessions.get(peerId);
+        if (session == null) {
+            return false;
+        }
+        synchronized (session) {
+            session.files.addAll(files);
+            index.register(session.peer, files);
+        }
+        return true;
+    }
+
+    /**
+     * Completes a full registration: removes the peer's files that were not sent and records the version.
+     * @param peerId - The peer registering.
+     * @param version - The version of the peer's library that was sent.
+     * @param index - The index.
+     * @return List<String> - The files removed because they were not sent again, or null if the peer has
+     *                        no registration in progress.
+     */
+    List<String> end(String peerId, long version, FileIndex index) {
+        Session session = sessions.remove(peerId);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session) {
+            if (session.files.isEmpty()) {
+                index.register(session.peer, List.of()); // An empty library still registers the peer
+            }
+            List<String> stale = new ArrayList<>();
+            List<String> current = index.filesOf(peerId);
+            if (current != null) {
+                for (String filename : current) {
+                    if (!session.files.contains(filename)) {
+                        stale.add(filename);
+                    }
+                }
+            }
+            if (!stale.isEmpty()) {
+                index.deregisterFiles(peerId, stale);
+            }
+            versions.put(peerId, new Version(session.peer, version));
+            return stale;
+        }
+    }
+
+    /**
+     * Applies an ADD or REMOVE delta if it follows the version the server holds.
+     * @param peerId - The peer whose library changed.
+     * @param version - The library's version after the change.
+     * @param files - The file names added or removed.
+     * @param add - True for ADD, false for REMOVE.
+     * @param index - The index.
+     * @return long - The version the server holds afterwards: equal to the given version on success,
+     *                otherwise the peer has to register in full (0 if the server holds none).
+     */
+    long delta(String peerId, long version, List<String> files, boolean add, FileIndex index) {
+        Version held = versions.get(peerId);
+        if (held == null) {
+            return 0;
+        }
+        synchronized (held) {
+            if (versions.get(peerId) != held) {
+                return 0; // Forgotten meanwhile
+            }
+            if (version == held.version) {
+                return version; // A retransmission of the delta applied last
+            }
+            if (version != held.version + 1) {
+                return held.version; // Lost track of an acknowledgement or of a delta, so start over
+            }
+            if (!index.hasPeer(peerId)) {
+                versions.remove(peerId, held); // The peer left the index, e.g. its lease lapsed
+                return 0;
+            }
+            if (add) {
+                index.register(held.peer, files);
+            } else {
+                index.deregisterFiles(peerId, files);
+            }
+            held.version = version;
+            if (!add && !index.hasPeer(peerId)) {
+                versions.remove(peerId, held); // Removed its last file, so it left the index
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Forgets a peer's version after its files changed without one, or after it left.
+     * @param peerId - The peer.
+     */
+    void forget(String peerId) {
+        versions.remove(peerId);
+    }
+}
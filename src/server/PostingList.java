@@ -0,0 +1,61 @@
+// File: src/server/PostingList.java
+package server;
+
+import java.util.Arrays;
+
+/**
+ * The PostingList class is a sorted set of int IDs backed by a primitive array.
+ * It starts with room for a single ID because most files are shared by only one peer.
+ * Not thread-safe; callers synchronize.
+ */
+class PostingList {
+    private int[] ids = new int[1]; // Sorted IDs, only the first size entries are valid
+    private int size;
+
+    /**
+     * @return boolean - True if the ID was added, false if it was already present.
+     */
+    boolean add(int id) {
+        int pos = Arrays.binarySearch(ids, 0, size, id);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -pos - 1;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+        }
+        System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+        ids[pos] = id;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return boolean - True if the ID was removed, false if it was not present.
+     */
+    boolean remove(int id) {
+        int pos = Arrays.binarySearch(ids, 0, size, id);
+        if (pos < 0) {
+            return false;
+        }
+        System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+        size--;
+        return true;
+    }
+
+    boolean contains(int id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    int get(int index) {
+        return ids[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
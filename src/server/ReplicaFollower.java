@@ -0,0 +1,265 @@
+// File: src/server/ReplicaFollower.java
+package server;
+
+import common.BinaryCodec;
+import common.BinaryCodec.Frame;
+import common.Log;
+import common.PeerInfo;
+import common.ShardRing;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The ReplicaFollower class keeps this server's index a hot copy of a leader's index. It connects to
+ * the leader's replication port (see ReplicationLog), applies the leader's copy over the local index
+ * and then every delta as it arrives. Meanwhile the server answers searches from its own index
+ * and refuses registrations, which belong to the leader.
+ *
+ * When the stream breaks the follower reconnects and starts over with a fresh copy. The copy is
+ * reconciled with what the index already holds instead of replacing it: a copied peer loses only the
+ * files the leader no longer lists for it, and the peers missing from the copy are removed once it is
+ * complete, so searches keep their answers while a reconnected follower catches up. If the leader
+ * stays unreachable longer than the failover timeout, or on a PROMOTE command, the follower takes over:
+ * it stops following and accepts registrations itself. Automatic failover is meant for a single
+ * follower; with several, promote one and point the others at it with FOLLOW.
+ */
+public class ReplicaFollower {
+    private static final long RETRY_MILLIS = 500;       // Pause between two connection attempts
+    private static final int READ_TIMEOUT_MILLIS = 3000; // Three missed heartbeats mean the leader is gone
+
+    private final FileIndex index;       // Local index the leader's state is applied to
+    private final long failoverMillis;   // Unreachable time after which this server takes over, 0 = never
+    private volatile String leader;      // "host:port" of the leader's replication port
+    private volatile boolean promoted;
+    private volatile boolean synced;     // Initial copy of the current connection applied
+    private volatile long appliedRecords;
+    private Socket socket;               // Current connection, guarded by this
+    private Thread loop;                 // Thread running followLoop, guarded by this
+
+    /**
+     * Constructor to initialize the follower; nothing happens until start is called.
+     * @param index - The local index.
+     * @param leader - The leader's replication address as "host:port".
+     * @param failoverMillis - How long the leader may be unreachable before this server takes over, 0 for never.
+     */
+    public ReplicaFollower(FileIndex index, String leader, long failoverMillis) {
+        this.index = index;
+        this.leader = leader;
+        this.failoverMillis = failoverMillis;
+    }
+
+    /**
+     * Starts following in a background thread.
+     */
+    public synchronized void start() {
+        if (loop != null && loop.isAlive()) {
+            return; // Still running, it picks up the new leader by itself
+        }
+        loop = new Thread(this::followLoop, "replica-follower");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * Connection loop: follows the leader until this server is promoted.
+     */
+    private void followLoop() {
+        long unreachableSince = 0; // Zero until the first copy: never take over with an empty index
+        while (!promoted) {
+            String current = leader;
+            try {
+                follow(current);
+            } catch (IOException e) {
+                if (synced) {
+                    unreachableSince = System.currentTimeMillis(); // It was reachable until just now
+                    Log.warn("Replication from {} interrupted: {}", current, e.getMessage());
+                } else if (!promoted) {
+                    Log.debug("Cannot replicate from {}: {}", current, e.getMessage()); // Every retry
+                }
+            } finally {
+                synced = false;
+            }
+
+            if (!promoted && failoverMillis > 0 && unreachableSince > 0 && System.currentTimeMillis() - unreachableSince >= failoverMillis) {
+                Log.warn("Leader {} unreachable for {} ms, taking over", current, failoverMillis);
+                promote();
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the leader's index and applies its deltas until the connection breaks.
+     */
+    private void follow(String address) throws IOException {
+        String[] hostAndPort = ShardRing.hostAndPort(address);
+        Socket newSocket = new Socket();
+        newSocket.connect(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])), READ_TIMEOUT_MILLIS);
+        synchronized (this) {
+            if (promoted || !address.equals(leader)) {
+                newSocket.close();
+                return;
+            }
+            socket = newSocket;
+        }
+        try {
+            newSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            OutputStream out = newSocket.getOutputStream();
+            out.write("REPLICATE\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream(), 64 * 1024));
+
+            Set<String> copied = new HashSet<>(); // Peers in the copy, until it is complete
+            long start = System.nanoTime();
+            Frame record;
+            while ((record = BinaryCodec.readFrame(in)) != null) {
+                switch (record.getOpcode()) {
+                    case BinaryCodec.REGISTER:
+                        if (!synced) {
+                            copyPeer(record.getPeer(), record.getStrings(), copied);
+                        } else {
+                            index.register(record.getPeer(), record.getStrings());
+                        }
+                        appliedRecords++;
+                        break;
+                    case BinaryCodec.DEREGISTER: {
+                        String peerId = record.getString();
+                        List<String> files = record.getStrings();
+                        if (files.isEmpty()) {
+                            index.deregisterPeer(peerId);
+                        } else {
+                            index.deregisterFiles(peerId, files);
+                        }
+                        appliedRecords++;
+                        break;
+                    }
+                    case BinaryCodec.OK:
+                        if (!synced) {
+                            removeUncopiedPeers(copied);
+                            copied = null;
+                            synced = true;
+                            Log.info("Replica of {} in sync in {} ms", address, (System.nanoTime() - start) / 1_000_000);
+                            Log.info("Replica holds {} peers and {} files", index.peerCount(), index.fileCount());
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unexpected replication record: opcode " + record.getOpcode());
+                }
+            }
+            throw new EOFException("Leader closed the replication stream");
+        } finally {
+            synchronized (this) {
+                if (socket == newSocket) {
+                    socket = null;
+                }
+            }
+            newSocket.close();
+        }
+    }
+
+    /**
+     * Applies one peer of the leader's copy: registers its files and drops the ones it had here that the
+     * leader no longer lists, e.g. because they were removed while this server was away.
+     */
+    private void copyPeer(PeerInfo peer, List<String> files, Set<String> copied) {
+        copied.add(peer.getPeerId());
+        List<String> local = index.filesOf(peer.getPeerId());
+        index.register(peer, files);
+        if (local != null) {
+            Set<String> listed = new HashSet<>(files);
+            List<String> stale = new ArrayList<>();
+            for (String filename : local) {
+                if (!listed.contains(filename)) {
+                    stale.add(filename);
+                }
+            }
+            if (!stale.isEmpty()) {
+                index.deregisterFiles(peer.getPeerId(), stale);
+            }
+        }
+    }
+
+    /**
+     * Removes the peers the leader's copy did not list once it is complete.
+     */
+    private void removeUncopiedPeers(Set<String> copied) {
+        List<String> peerIds = new ArrayList<>();
+        index.forEachPeer((peer, files) -> {
+            if (!copied.contains(peer.getPeerId())) {
+                peerIds.add(peer.getPeerId());
+            }
+        });
+        for (String peerId : peerIds) {
+            index.deregisterPeer(peerId);
+        }
+    }
+
+    /**
+     * Stops following; from now on this server accepts registrations.
+     */
+    public void promote() {
+        synchronized (this) {
+            promoted = true;
+            closeSocket();
+        }
+        Log.warn("Promoted to leader after applying {} replicated records", appliedRecords);
+    }
+
+    /**
+     * Follows another leader, starting over with a fresh copy; a promoted server becomes a follower again.
+     * @param address - The new leader's replication address as "host:port".
+     * @throws IllegalArgumentException if the address is not "host:port".
+     */
+    public synchronized void changeLeader(String address) {
+        ShardRing.hostAndPort(address); // Reject a malformed address before dropping the current leader
+        leader = address;
+        closeSocket();
+        if (promoted) {
+            promoted = false;
+            start();
+        }
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The follow loop sees the closed socket
+            }
+        }
+    }
+
+    /**
+     * @return boolean - True if this server no longer follows a leader.
+     */
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    /**
+     * @return boolean - True if the copy of the current leader's index is complete.
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * @return String - The leader's replication address.
+     */
+    public String getLeader() {
+        return leader;
+    }
+}
@@ -0,0 +1,108 @@
+// File: src/server/ReplicatedFileIndex.java
+package server;
+
+import common.PeerInfo;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The ReplicatedFileIndex class wraps a FileIndex and appends every mutation to a ReplicationLog.
+ * As in DurableFileIndex, a mutation is applied and then logged while holding a lock striped by peer ID,
+ * so the followers receive the mutations of each peer in the order they were applied here.
+ */
+public class ReplicatedFileIndex implements FileIndex {
+    private static final int STRIPES = 256;
+
+    private final FileIndex index;      // The index holding the data
+    private final ReplicationLog log;   // Log streamed to the followers
+    private final Object[] locks = new Object[STRIPES];
+
+    /**
+     * Constructor to wrap an index.
+     * @param index - The index to replicate.
+     * @param log - The log to append mutations to.
+     */
+    public ReplicatedFileIndex(FileIndex index, ReplicationLog log) {
+        this.index = index;
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(String peerId) {
+        int h = peerId.hashCode();
+        return locks[(h ^ h >>> 16) & (STRIPES - 1)];
+    }
+
+    @Override
+    public void addListener(IndexListener listener) {
+        index.addListener(listener);
+    }
+
+    @Override
+    public void register(PeerInfo peer, List<String> files) {
+        synchronized (lockFor(peer.getPeerId())) {
+            index.register(peer, files);
+            log.logRegister(peer, files);
+        }
+    }
+
+    @Override
+    public List<PeerInfo> search(String filename) {
+        return index.search(filename);
+    }
+
+    @Override
+    public List<String> deregisterPeer(String peerId) {
+        synchronized (lockFor(peerId)) {
+            List<String> removed = index.deregisterPeer(peerId);
+            if (removed != null) {
+                log.logDeregister(peerId, List.of());
+            }
+            return removed;
+        }
+    }
+
+    @Override
+    public List<String> deregisterFiles(String peerId, List<String> files) {
+        synchronized (lockFor(peerId)) {
+            List<String> removed = index.deregisterFiles(peerId, files);
+            if (removed != null && !removed.isEmpty()) {
+                log.logDeregister(peerId, removed);
+            }
+            return removed;
+        }
+    }
+
+    @Override
+    public boolean hasPeer(String peerId) {
+        return index.hasPeer(peerId);
+    }
+
+    @Override
+    public List<String> filesOf(String peerId) {
+        return index.filesOf(peerId);
+    }
+
+    @Override
+    public void forEachPeer(BiConsumer<PeerInfo, List<String>> action) {
+        index.forEachPeer(action);
+    }
+
+    @Override
+    public int fileCount() {
+        return index.fileCount();
+    }
+
+    @Override
+    public int peerCount() {
+        return index.peerCount();
+    }
+
+    @Override
+    public long postingCount() {
+        return index.postingCount();
+    }
+}
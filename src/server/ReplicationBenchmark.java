@@ -0,0 +1,159 @@
+// File: src/server/ReplicationBenchmark.java
+package server;
+
+import common.ShardRing;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ReplicationBenchmark class measures a leader with its followers, all running as separate
+ * IndexingServer processes. It first reports the replication lag: the time from a REGISTER answered by
+ * the leader until every follower finds the file. It then registers a set of files on the leader and
+ * runs client threads that search random files on the followers, spread evenly, and reports the
+ * searches per second. Run it with 1, 2 and 4 followers to compare.
+ */
+public class ReplicationBenchmark {
+
+    /**
+     * A blocking text protocol connection to one indexing server.
+     */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Connection(String server) throws IOException {
+            String[] address = ShardRing.hostAndPort(server);
+            socket = new Socket(address[0], Integer.parseInt(address[1]));
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        }
+
+        String register(String line) throws IOException {
+            out.println(line);
+            return in.readLine();
+        }
+
+        /**
+         * @return int - Number of peers sharing the file.
+         */
+        int search(String filename) throws IOException {
+            out.println("SEARCH " + filename);
+            String first = in.readLine();
+            if (first == null || !first.startsWith("SEARCH_RESULTS ")) {
+                throw new IOException("Unexpected response: " + first);
+            }
+            int count = Integer.parseInt(first.substring(15));
+            for (int i = 0; i < count; i++) {
+                in.readLine();
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args Command-line arguments for configuring the benchmark.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Usage: java server.ReplicationBenchmark <leaderHost:port> <followerHost:port,...> <files> <threads> <seconds>");
+            System.exit(1);
+        }
+
+        String leader = args[0];
+        List<String> followers = Arrays.asList(args[1].split(","));
+        int files = Integer.parseInt(args[2]);
+        int threads = Integer.parseInt(args[3]);
+        int seconds = Integer.parseInt(args[4]);
+
+        try (Connection leaderConnection = new Connection(leader)) {
+            List<Connection> followerConnections = new ArrayList<>();
+            for (String follower : followers) {
+                followerConnections.add(new Connection(follower));
+            }
+
+            // Replication lag: register one new file at a time and wait until every follower has it
+            int rounds = 200;
+            long[] lags = new long[rounds];
+            String tag = Long.toString(System.nanoTime(), 36);
+            for (int i = 0; i < rounds; i++) {
+                String filename = "lag-" + tag + "-" + i + ".txt";
+                check(leaderConnection.register("REGISTER LagPeer 127.0.0.1 6000 100.0 " + filename));
+                long start = System.nanoTime();
+                for (Connection follower : followerConnections) {
+                    while (follower.search(filename) == 0) {
+                        Thread.onSpinWait();
+                    }
+                }
+                lags[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(lags);
+            System.out.printf("Replication lag to %d followers: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    followers.size(), lags[rounds / 2] / 1e6, lags[rounds * 99 / 100] / 1e6, lags[rounds - 1] / 1e6);
+
+            // Load the files on the leader, 1000 names per request, and wait for the followers
+            for (int from = 0; from < files; from += 1000) {
+                StringBuilder sb = new StringBuilder("REGISTER BenchPeer 127.0.0.1 6000 100.0");
+                for (int i = from; i < Math.min(files, from + 1000); i++) {
+                    sb.append(" file").append(i).append(".txt");
+                }
+                check(leaderConnection.register(sb.toString()));
+            }
+            for (Connection follower : followerConnections) {
+                while (follower.search("file" + (files - 1) + ".txt") == 0) {
+                    Thread.sleep(1);
+                }
+                follower.close();
+            }
+        }
+
+        // Read throughput: every thread searches on one follower, threads spread over the followers
+        LongAdder searches = new LongAdder();
+        LongAdder misses = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String server = followers.get(t % followers.size());
+            Thread worker = new Thread(() -> {
+                try (Connection connection = new Connection(server)) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        if (connection.search("file" + random.nextInt(files) + ".txt") == 0) {
+                            misses.increment();
+                        }
+                        searches.increment();
+                    }
+                } catch (IOException e) {
+                    System.out.println(server + ": " + e.getMessage());
+                }
+            }, "bench-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.printf("%d followers, %d threads: %.0f searches/s, %d misses%n",
+                followers.size(), threads, searches.sum() / (double) seconds, misses.sum());
+    }
+
+    private static void check(String answer) throws IOException {
+        if (!"REGISTER_SUCCESS".equals(answer)) {
+            throw new IOException("Leader answered: " + answer);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+// File: src/server/ReplicationLog.java
+package server;
+
+import common.BinaryCodec;
+import common.BinaryCodec.FrameWriter;
+import common.Log;
+import common.PeerInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The ReplicationLog class streams the mutations of this server's index to follower servers
+ * (see ReplicaFollower). Followers connect to the replication port and send "REPLICATE"; each new
+ * follower first receives the whole index as REGISTER frames and then the ordered delta log: every
+ * REGISTER and DEREGISTER applied here, encoded as the BinaryCodec frame of the equivalent binary
+ * request. An OK frame marks the end of the initial copy and doubles as a heartbeat on an idle stream.
+ *
+ * Mutations are appended to one shared buffer; a shipper thread hands the buffer to every follower
+ * every few milliseconds, so a burst of registrations goes out as one write per follower. A follower
+ * is attached before the index is walked for its copy, so every mutation the walk may miss is in its
+ * delta stream; like the journal replay, applying a record the copy already reflects is harmless.
+ * A follower that falls too far behind is disconnected and starts over with a new copy.
+ */
+public class ReplicationLog implements Closeable {
+    private static final long MAX_QUEUED_BYTES = 64L << 20; // Backlog after which a follower is dropped
+    private static final long HEARTBEAT_MILLIS = 1000;        // Idle time after which an OK frame is sent
+
+    private final FileIndex index;       // Index the initial copies are taken from
+    private final long flushMillis;      // Interval between two shipped batches
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private final Object bufferLock = new Object();
+    private byte[] buffer = new byte[64 * 1024]; // Records appended since the last batch, guarded by bufferLock
+    private int bufferLength;
+    private long records;                // Records appended so far, guarded by bufferLock
+    private final Thread shipper;
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    /**
+     * One connected follower: the batches it still has to receive, written by its own sender thread.
+     */
+    private final class Follower {
+        private final Socket socket;
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>(); // Guarded by this
+        private long queuedBytes;                                    // Guarded by this
+        private boolean dropped;                                     // Guarded by this
+
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+
+        synchronized void enqueue(byte[] batch) {
+            if (dropped) {
+                return;
+            }
+            if (queuedBytes + batch.length > MAX_QUEUED_BYTES) {
+                Log.warn("Follower {} is too far behind, disconnecting it", socket.getRemoteSocketAddress());
+                drop();
+                return;
+            }
+            queue.add(batch);
+            queuedBytes += batch.length;
+            notifyAll();
+        }
+
+        synchronized void drop() {
+            dropped = true;
+            queue.clear();
+            notifyAll();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+
+        /**
+         * Sender loop: the initial copy of the index, then the batches in order.
+         */
+        void send() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                long start = System.nanoTime();
+                int[] peers = new int[1];
+                IOException[] failure = new IOException[1];
+                index.forEachPeer((peer, files) -> {
+                    if (failure[0] == null) {
+                        try {
+                            new FrameWriter(BinaryCodec.REGISTER, 0).putPeer(peer).putStrings(files).writeTo(out);
+                            peers[0]++;
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                new FrameWriter(BinaryCodec.OK, 0).writeTo(out);
+                out.flush();
+                Log.info(String.format("Sent %d peers to follower %s in %d ms",
+                        peers[0], socket.getRemoteSocketAddress(), (System.nanoTime() - start) / 1_000_000));
+
+                while (true) {
+                    byte[] batch;
+                    synchronized (this) {
+                        if (queue.isEmpty() && !dropped) {
+                            wait(HEARTBEAT_MILLIS);
+                        }
+                        if (dropped) {
+                            return;
+                        }
+                        batch = queue.poll();
+                        if (batch != null) {
+                            queuedBytes -= batch.length;
+                        }
+                    }
+                    if (batch != null) {
+                        out.write(batch);
+                    } else {
+                        new FrameWriter(BinaryCodec.OK, 0).writeTo(out); // Heartbeat
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                Log.warn("Lost follower {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                followers.remove(this);
+                drop();
+            }
+        }
+    }
+
+    /**
+     * Constructor to initialize the log and start the shipper thread.
+     * @param index - The index followers copy before they receive the deltas.
+     * @param flushMillis - Interval between two batches in milliseconds.
+     */
+    public ReplicationLog(FileIndex index, long flushMillis) {
+        this.index = index;
+        this.flushMillis = flushMillis;
+        shipper = new Thread(this::shipLoop, "replication-shipper");
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+    /**
+     * Accepts followers on a port in a background thread.
+     * @param port - The replication port.
+     * @throws IOException if the port cannot be bound.
+     */
+    public void listen(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread sender = new Thread(() -> attach(socket), "replication-sender");
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    if (!closed) {
+                        Log.error("Error accepting follower: {}", e.getMessage());
+                    }
+                }
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info("Replication log listening on port {}", port);
+    }
+
+    /**
+     * Checks the follower's greeting, then serves it until it disconnects.
+     */
+    private void attach(Socket socket) {
+        try {
+            String greeting = BinaryCodec.readTextLine(socket.getInputStream());
+            if (!"REPLICATE".equals(greeting)) {
+                Log.warn("Unexpected greeting on the replication port: {}", greeting);
+                socket.close();
+                return;
+            }
+        } catch (IOException e) {
+            Log.warn("Follower went away before the greeting: {}", e.getMessage());
+            return;
+        }
+        Follower follower = new Follower(socket);
+        followers.add(follower); // Attached before the copy starts, so no mutation falls between the two
+        Log.info("Follower {} attached", socket.getRemoteSocketAddress());
+        follower.send();
+    }
+
+    /**
+     * Appends a REGISTER record.
+     */
+    void logRegister(PeerInfo peer, List<String> files) {
+        if (!followers.isEmpty()) {
+            append(new FrameWriter(BinaryCodec.REGISTER, 0).putPeer(peer).putStrings(files));
+        }
+    }
+
+    /**
+     * Appends a DEREGISTER record; an empty file list stands for the whole peer.
+     */
+    void logDeregister(String peerId, List<String> files) {
+        if (!followers.isEmpty()) {
+            append(new FrameWriter(BinaryCodec.DEREGISTER, 0).putString(peerId).putStrings(files));
+        }
+    }
+
+    private void append(FrameWriter record) {
+        byte[] frame = record.toBytes();
+        synchronized (bufferLock) {
+            if (bufferLength + frame.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(bufferLength + frame.length, buffer.length * 2));
+            }
+            System.arraycopy(frame, 0, buffer, bufferLength, frame.length);
+            bufferLength += frame.length;
+            records++;
+        }
+    }
+
+    /**
+     * Shipper loop: hands the records of each interval to every follower as one batch.
+     */
+    private void shipLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            byte[] batch;
+            synchronized (bufferLock) {
+                if (bufferLength == 0) {
+                    continue;
+                }
+                batch = Arrays.copyOf(buffer, bufferLength);
+                bufferLength = 0;
+            }
+            for (Follower follower : followers) {
+                follower.enqueue(batch);
+            }
+        }
+    }
+
+    /**
+     * @return int - Number of connected followers.
+     */
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * @return long - Records appended since startup.
+     */
+    public long getRecords() {
+        synchronized (bufferLock) {
+            return records;
+        }
+    }
+
+    /**
+     * Stops accepting followers and disconnects the connected ones.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        shipper.interrupt();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (Follower follower : followers) {
+            follower.drop();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+// File: src/server/SearchCache.java
+package server;
+
+import common.BinaryCodec;
+import common.BinaryCodec.FrameWriter;
+import common.PeerInfo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The SearchCache class keeps the fully encoded SEARCH response of recently searched files, so a search
+ * for a hot file is one buffer write instead of walking its peers and formatting every line again.
+ * It follows the FileIndex as an IndexListener and drops a file's entry whenever its peers change.
+ *
+ * A miss reads the version of the file's stripe before asking the index and discards its result if an
+ * invalidation bumped the version meanwhile, so a response computed from the old peers is never kept.
+ * The cache is bounded by the encoded bytes it holds; when full, a CLOCK sweep evicts entries that were
+ * not hit since the hand last passed them.
+ */
+public class SearchCache implements IndexListener {
+    private static final int STRIPES = 64;  // Version counters shared by file names with the same hash
+
+    private final FileIndex index;          // Source of the responses
+    private final long maxBytes;            // Bound for the encoded bytes held by all entries
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private Iterator<Entry> hand;           // CLOCK hand over the entries, guarded by the cache's lock
+
+    /**
+     * One cached response in every encoding the server sends it in.
+     */
+    static final class Entry {
+        private final String filename;
+        private final String text;        // "SEARCH_RESULTS n" and the peer lines, for PrintWriter output
+        private final byte[] textBytes;   // The same response as UTF-8, for the NIO event loops
+        private final byte[] binary;      // Peer count and peers, the body of a binary SEARCH_RESULTS frame
+        private final int size;
+        private volatile boolean referenced; // Set on every hit, cleared by the CLOCK hand
+
+        Entry(String filename, List<PeerInfo> peers) {
+            this.filename = filename;
+            this.text = encodeText(peers);
+            this.textBytes = text.getBytes(StandardCharsets.UTF_8);
+            this.binary = encodeBinary(peers);
+            this.size = filename.length() + text.length() + textBytes.length + binary.length;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        byte[] getTextBytes() {
+            return textBytes;
+        }
+
+        byte[] getBinary() {
+            return binary;
+        }
+    }
+
+    /**
+     * Constructor to initialize an empty cache in front of an index.
+     * @param index - The index the responses are computed from.
+     * @param maxBytes - Upper bound for the encoded bytes kept in the cache.
+     */
+    public SearchCache(FileIndex index, long maxBytes) {
+        this.index = index;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the response for a file, from the cache or freshly encoded from the index.
+     * @param filename - The file name searched for.
+     * @return Entry - The encoded response.
+     */
+    Entry get(String filename) {
+        Entry entry = entries.get(filename);
+        if (entry != null) {
+            hits.increment();
+            if (!entry.referenced) {
+                entry.referenced = true; // Only write when needed, hot entries stay in the shared cache state
+            }
+            return entry;
+        }
+
+        misses.increment();
+        int stripe = stripe(filename);
+        long version = versions.get(stripe);
+        entry = new Entry(filename, index.search(filename));
+        if (entry.size > maxBytes / 4) {
+            return entry; // Too large to be worth the space it would take from the other entries
+        }
+
+        Entry previous = entries.put(filename, entry);
+        bytes.addAndGet(entry.size - (previous == null ? 0 : previous.size));
+        if (versions.get(stripe) != version && entries.remove(filename, entry)) {
+            bytes.addAndGet(-entry.size); // The peers changed while the response was being built
+        }
+        if (bytes.get() > maxBytes) {
+            evict();
+        }
+        return entry;
+    }
+
+    @Override
+    public void filePeersChanged(String filename) {
+        versions.incrementAndGet(stripe(filename));
+        Entry removed = entries.remove(filename);
+        if (removed != null) {
+            bytes.addAndGet(-removed.size);
+        }
+    }
+
+    /**
+     * Second-chance sweep: entries hit since the last pass lose their mark, the others are evicted.
+     */
+    private synchronized void evict() {
+        while (bytes.get() > maxBytes) {
+            if (hand == null || !hand.hasNext()) {
+                hand = entries.values().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            Entry entry = hand.next();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else if (entries.remove(entry.filename, entry)) {
+                bytes.addAndGet(-entry.size);
+            }
+        }
+    }
+
+    private static int stripe(String filename) {
+        int h = filename.hashCode();
+        return (h ^ h >>> 16) & (STRIPES - 1);
+    }
+
+    /**
+     * Formats a text SEARCH response: the number of peers followed by one line per peer.
+     * @param peers - The peers sharing the file.
+     * @return String - The response lines, each ending like PrintWriter.println would end it.
+     */
+    static String encodeText(List<PeerInfo> peers) {
+        String newline = System.lineSeparator();
+        StringBuilder sb = new StringBuilder(24 + peers.size() * 48);
+        sb.append("SEARCH_RESULTS ").append(peers.size()).append(newline);
+        for (PeerInfo peer : peers) {
+            sb.append(peer.getPeerId()).append(' ').append(peer.getIpAddress()).append(' ')
+                    .append(peer.getPort()).append(' ').append(peer.getBandwidth()).append(newline);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes the peers as the body of a binary SEARCH_RESULTS frame.
+     * @param peers - The peers sharing the file.
+     * @return byte[] - The peer count followed by the peers' fields.
+     */
+    static byte[] encodeBinary(List<PeerInfo> peers) {
+        FrameWriter body = new FrameWriter(BinaryCodec.SEARCH_RESULTS, 0).putInt(peers.size());
+        for (PeerInfo peer : peers) {
+            body.putPeer(peer);
+        }
+        return body.fieldBytes();
+    }
+
+    /**
+     * @return long - Searches answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return long - Searches that had to ask the index.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return long - Encoded bytes currently held.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+}
@@ -0,0 +1,301 @@
+// File: src/server/ServerConfig.java
+package server;
+
+import common.ExecutorMode;
+
+/**
+ * The ServerConfig class holds the startup options of the IndexingServer.
+ * Options are passed on the command line as --key=value pairs; every option has a default,
+ * so running the server without arguments behaves exactly like before.
+ */
+public class ServerConfig {
+    private int port = 5000;                 // Central server port that peers will connect to
+    private String ioMode = "thread";        // "thread" = one handler per connection, "nio" = selector event loops
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors()); // Number of NIO event loops
+    private ExecutorMode executorMode = ExecutorMode.THREAD; // How handlers run in the "thread" io mode
+    private int poolSize = ExecutorMode.DEFAULT_POOL_SIZE;   // Worker count for the bounded executor
+    private String indexMode = "concurrent"; // "concurrent" = ConcurrentFileIndex, "compact" = CompactFileIndex, "snapshot" = SnapshotFileIndex, "mapped" = MappedFileIndex
+    private int publishMs = 5;               // Interval between two published snapshots of the snapshot index, 0 = every change
+    private boolean nameIndex;               // Maintain the NameIndex behind SEARCH_PREFIX / SEARCH_LIKE
+    private int searchCacheMb = 64;          // Bound of the SEARCH response cache in MB, 0 disables it
+    private String dataDir;                  // Directory of the index journal, null keeps the index in memory only
+    private int walFlushMs = 5;              // Group commit interval of the journal
+    private long snapshotEvery = 1_000_000;  // Journal records between two index snapshots
+    private String logLevel = "info";        // Lowest level that is logged (debug, info, warn, error, off)
+    private int logSample = 1;               // Log one in N per-request messages
+    private int replicationPort;             // Port followers replicate from, 0 disables it
+    private String replicaOf;                // Leader's replication address "host:port" on a follower, null on a leader
+    private int replicationFlushMs = 2;      // Interval between two batches sent to the followers
+    private long failoverMs;                 // Leader downtime after which a follower takes over, 0 = only on PROMOTE
+    private long leaseMs;                    // Peers without a heartbeat for this long are removed, 0 = never
+    private int maxConnections;              // Connections open at once, further ones get BUSY, 0 = unlimited
+    private int acceptBacklog;               // Length of the accept queue, 0 = the io mode's default
+    private int rateLimit;                   // Lookups per second and client address, 0 = unlimited
+    private int rateBurst;                   // Lookups a client may send at once, 0 = one second's worth
+    private String adminToken;               // Secret the operator commands must carry, null disables them
+
+    /**
+     * Parses the command-line arguments into a ServerConfig.
+     * @param args - Arguments of the form --key=value.
+     * @return ServerConfig - The parsed configuration.
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value.
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --key=value but got: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+
+            switch (key) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "io":
+                    if (!value.equals("thread") && !value.equals("nio")) {
+                        throw new IllegalArgumentException("Unknown io mode: " + value);
+                    }
+                    config.ioMode = value;
+                    break;
+                case "io-threads":
+                    config.ioThreads = Integer.parseInt(value);
+                    break;
+                case "executor":
+                    config.executorMode = ExecutorMode.fromString(value);
+                    break;
+                case "pool-size":
+                    config.poolSize = Integer.parseInt(value);
+                    break;
+                case "index":
+                    if (!value.equals("concurrent") && !value.equals("compact") && !value.equals("snapshot")
+                            && !value.equals("mapped")) {
+                        throw new IllegalArgumentException("Unknown index mode: " + value);
+                    }
+                    config.indexMode = value;
+                    break;
+                case "publish-ms":
+                    config.publishMs = Integer.parseInt(value);
+                    if (config.publishMs < 0) {
+                        throw new IllegalArgumentException("publish-ms must not be negative: " + value);
+                    }
+                    break;
+                case "name-index":
+                    if (!value.equals("on") && !value.equals("off")) {
+                        throw new IllegalArgumentException("Expected on or off for name-index: " + value);
+                    }
+                    config.nameIndex = value.equals("on");
+                    break;
+                case "search-cache-mb":
+                    config.searchCacheMb = Integer.parseInt(value);
+                    if (config.searchCacheMb < 0) {
+                        throw new IllegalArgumentException("search-cache-mb must not be negative: " + value);
+                    }
+                    break;
+                case "data-dir":
+                    config.dataDir = value;
+                    break;
+                case "wal-flush-ms":
+                    config.walFlushMs = Integer.parseInt(value);
+                    if (config.walFlushMs < 1) {
+                        throw new IllegalArgumentException("wal-flush-ms must be at least 1: " + value);
+                    }
+                    break;
+                case "snapshot-every":
+                    config.snapshotEvery = Long.parseLong(value);
+                    if (config.snapshotEvery < 1) {
+                        throw new IllegalArgumentException("snapshot-every must be at least 1: " + value);
+                    }
+                    break;
+                case "log-level":
+                    if (!value.matches("debug|info|warn|error|off")) {
+                        throw new IllegalArgumentException("Unknown log level: " + value);
+                    }
+                    config.logLevel = value;
+                    break;
+                case "log-sample":
+                    config.logSample = Integer.parseInt(value);
+                    if (config.logSample < 1) {
+                        throw new IllegalArgumentException("log-sample must be at least 1: " + value);
+                    }
+                    break;
+                case "replication-port":
+                    config.replicationPort = Integer.parseInt(value);
+                    break;
+                case "replica-of":
+                    if (value.lastIndexOf(':') <= 0) {
+                        throw new IllegalArgumentException("Expected host:port for replica-of: " + value);
+                    }
+                    config.replicaOf = value;
+                    break;
+                case "replication-flush-ms":
+                    config.replicationFlushMs = Integer.parseInt(value);
+                    if (config.replicationFlushMs < 1) {
+                        throw new IllegalArgumentException("replication-flush-ms must be at least 1: " + value);
+                    }
+                    break;
+                case "failover-ms":
+                    config.failoverMs = Long.parseLong(value);
+                    if (config.failoverMs < 0) {
+                        throw new IllegalArgumentException("failover-ms must not be negative: " + value);
+                    }
+                    break;
+                case "lease-ms":
+                    config.leaseMs = Long.parseLong(value);
+                    if (config.leaseMs < 0) {
+                        throw new IllegalArgumentException("lease-ms must not be negative: " + value);
+                    }
+                    break;
+                case "max-connections":
+                    config.maxConnections = Integer.parseInt(value);
+                    if (config.maxConnections < 0) {
+                        throw new IllegalArgumentException("max-connections must not be negative: " + value);
+                    }
+                    break;
+                case "accept-backlog":
+                    config.acceptBacklog = Integer.parseInt(value);
+                    if (config.acceptBacklog < 0) {
+                        throw new IllegalArgumentException("accept-backlog must not be negative: " + value);
+                    }
+                    break;
+                case "rate-limit":
+                    config.rateLimit = Integer.parseInt(value);
+                    if (config.rateLimit < 0 || config.rateLimit > 1_000_000_000) {
+                        throw new IllegalArgumentException("rate-limit must be between 0 and 1000000000: " + value);
+                    }
+                    break;
+                case "rate-burst":
+                    config.rateBurst = Integer.parseInt(value);
+                    if (config.rateBurst < 0) {
+                        throw new IllegalArgumentException("rate-burst must not be negative: " + value);
+                    }
+                    break;
+                case "admin-token":
+                    if (value.isEmpty() || value.contains(" ")) {
+                        throw new IllegalArgumentException("admin-token must be a non-empty word");
+                    }
+                    config.adminToken = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (config.indexMode.equals("mapped") && config.dataDir == null) {
+            throw new IllegalArgumentException("--index=mapped needs --data-dir, the index is mapped from its snapshots");
+        }
+        return config;
+    }
+
+    /**
+     * Usage text printed when the arguments cannot be parsed.
+     * @return String - Human readable list of the supported options.
+     */
+    public static String usage() {
+        return "Usage: java server.IndexingServer [--port=5000] [--io=thread|nio] [--io-threads=N]"
+                + " [--executor=thread|pool|bounded|virtual] [--pool-size=N]"
+                + " [--index=concurrent|compact|snapshot|mapped] [--publish-ms=N] [--name-index=on|off]"
+                + " [--search-cache-mb=N] [--data-dir=DIR] [--wal-flush-ms=N] [--snapshot-every=N]"
+                + " [--log-level=debug|info|warn|error|off] [--log-sample=N]"
+                + " [--replication-port=N] [--replica-of=HOST:PORT] [--replication-flush-ms=N] [--failover-ms=N]"
+                + " [--lease-ms=N] [--max-connections=N] [--accept-backlog=N] [--rate-limit=N] [--rate-burst=N]"
+                + " [--admin-token=SECRET]";
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getIoMode() {
+        return ioMode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public String getIndexMode() {
+        return indexMode;
+    }
+
+    public int getPublishMs() {
+        return publishMs;
+    }
+
+    public boolean isNameIndex() {
+        return nameIndex;
+    }
+
+    public int getSearchCacheMb() {
+        return searchCacheMb;
+    }
+
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    public int getWalFlushMs() {
+        return walFlushMs;
+    }
+
+    public long getSnapshotEvery() {
+        return snapshotEvery;
+    }
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public int getLogSample() {
+        return logSample;
+    }
+
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    public String getReplicaOf() {
+        return replicaOf;
+    }
+
+    public int getReplicationFlushMs() {
+        return replicationFlushMs;
+    }
+
+    public long getFailoverMs() {
+        return failoverMs;
+    }
+
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    public int getRateBurst() {
+        return rateBurst > 0 ? rateBurst : rateLimit;
+    }
+
+    public String getAdminToken() {
+        return adminToken;
+    }
+}
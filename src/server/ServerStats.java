@@ -0,0 +1,225 @@
+// File: src/server/ServerStats.java
+package server;
+
+import common.BinaryCodec;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ServerStats class collects the indexing server's own performance counters for the STATS command:
+ * per command the number of requests, the failed ones and a LatencyHistogram of the time spent handling
+ * them, plus throttled requests and bytes received and sent. Connection counts come from the
+ * AdmissionControl and index sizes from the FileIndex when a report is built.
+ *
+ * Recording allocates nothing: commands are looked up by name or opcode in tables built at startup, and
+ * the counters are LongAdders and lock-free histograms, so the statistics can stay on in production.
+ */
+class ServerStats {
+    // Commands with their own counters; everything else (operator commands, invalid ones) is OTHER
+    static final int REGISTER = 0, REGISTER_BEGIN = 1, REGISTER_ADD = 2, REGISTER_END = 3, ADD = 4, REMOVE = 5,
+            SEARCH = 6, MSEARCH = 7, SEARCH_PREFIX = 8, SEARCH_LIKE = 9, SEARCH_HASH = 10, DEREGISTER = 11,
+            HEARTBEAT = 12, LOAD = 13, STATS = 14, OTHER = 15;
+    private static final String[] NAMES = {"REGISTER", "REGISTER_BEGIN", "REGISTER_ADD", "REGISTER_END", "ADD", "REMOVE",
+            "SEARCH", "MSEARCH", "SEARCH_PREFIX", "SEARCH_LIKE", "SEARCH_HASH", "DEREGISTER", "HEARTBEAT", "LOAD", "STATS",
+            "OTHER"};
+    private static final Map<String, Integer> BY_NAME = new HashMap<>();
+    private static final int[] BY_OPCODE = new int[128];
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            BY_NAME.put(NAMES[i], i);
+        }
+        Arrays.fill(BY_OPCODE, OTHER);
+        BY_OPCODE[BinaryCodec.REGISTER] = REGISTER;
+        BY_OPCODE[BinaryCodec.REGISTER_BEGIN] = REGISTER_BEGIN;
+        BY_OPCODE[BinaryCodec.REGISTER_ADD] = REGISTER_ADD;
+        BY_OPCODE[BinaryCodec.REGISTER_END] = REGISTER_END;
+        BY_OPCODE[BinaryCodec.ADD] = ADD;
+        BY_OPCODE[BinaryCodec.REMOVE] = REMOVE;
+        BY_OPCODE[BinaryCodec.SEARCH] = SEARCH;
+        BY_OPCODE[BinaryCodec.SEARCH_TOP] = SEARCH;
+        BY_OPCODE[BinaryCodec.MSEARCH] = MSEARCH;
+        BY_OPCODE[BinaryCodec.SEARCH_PREFIX] = SEARCH_PREFIX;
+        BY_OPCODE[BinaryCodec.SEARCH_LIKE] = SEARCH_LIKE;
+        BY_OPCODE[BinaryCodec.SEARCH_HASH] = SEARCH_HASH;
+        BY_OPCODE[BinaryCodec.DEREGISTER] = DEREGISTER;
+        BY_OPCODE[BinaryCodec.HEARTBEAT] = HEARTBEAT;
+        BY_OPCODE[BinaryCodec.LOAD] = LOAD;
+        BY_OPCODE[BinaryCodec.STATS] = STATS;
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final LatencyHistogram[] latency = new LatencyHistogram[NAMES.length];
+    private final LongAdder[] errors = new LongAdder[NAMES.length];
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    ServerStats() {
+        for (int i = 0; i < NAMES.length; i++) {
+            latency[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param name - A text command in upper case, e.g. "SEARCH".
+     * @return int - Its counters, OTHER for commands without their own.
+     */
+    static int command(String name) {
+        Integer command = BY_NAME.get(name);
+        return command == null ? OTHER : command;
+    }
+
+    /**
+     * @param opcode - A binary request opcode.
+     * @return int - Its counters, OTHER for opcodes without their own.
+     */
+    static int command(byte opcode) {
+        return opcode >= 0 ? BY_OPCODE[opcode] : OTHER;
+    }
+
+    /**
+     * Records a handled request.
+     * @param command - The command, from command(...).
+     * @param startNanos - System.nanoTime() when handling started.
+     */
+    void record(int command, long startNanos) {
+        latency[command].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Counts a request that was answered with a failure.
+     * @param command - The command, from command(...).
+     */
+    void error(int command) {
+        errors[command].increment();
+    }
+
+    /**
+     * Counts a request that was answered BUSY instead of being handled.
+     */
+    void busy() {
+        busy.increment();
+    }
+
+    /**
+     * Counts bytes received from clients outside the counting streams (NIO).
+     * @param n - Number of bytes.
+     */
+    void bytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    /**
+     * Counts bytes sent to clients outside the counting streams (NIO).
+     * @param n - Number of bytes.
+     */
+    void bytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    /**
+     * @param in - A client socket's input stream.
+     * @return InputStream - The stream, counting what is read into bytes_in.
+     */
+    InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @param out - A client socket's output stream.
+     * @return OutputStream - The stream, counting what is written into bytes_out.
+     */
+    OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length); // Not FilterOutputStream's byte-by-byte default
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    /**
+     * Builds the STATS report: one named value per line, latencies in nanoseconds. Every command is
+     * always listed, so the set of names does not depend on the traffic seen so far.
+     * @param index - The file index, for its size.
+     * @param admission - The admission control, for the connection counts; null if there is none.
+     * @return Map<String, Long> - The values in report order.
+     */
+    Map<String, Long> report(FileIndex index, AdmissionControl admission) {
+        Map<String, Long> report = new LinkedHashMap<>();
+        report.put("uptime_ms", (System.nanoTime() - startNanos) / 1_000_000);
+        if (admission != null) {
+            report.put("connections_open", (long) admission.getConnections());
+            report.put("connections_accepted", admission.getAccepted());
+            report.put("connections_rejected", admission.getRejected());
+        }
+        report.put("bytes_in", bytesIn.sum());
+        report.put("bytes_out", bytesOut.sum());
+        report.put("index_files", (long) index.fileCount());
+        report.put("index_peers", (long) index.peerCount());
+        report.put("index_postings", index.postingCount());
+
+        LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[NAMES.length];
+        long requests = 0;
+        long failed = 0;
+        for (int i = 0; i < NAMES.length; i++) {
+            snapshots[i] = latency[i].snapshot();
+            requests += snapshots[i].getCount();
+            failed += errors[i].sum();
+        }
+        report.put("requests", requests);
+        report.put("errors", failed);
+        report.put("busy", busy.sum());
+
+        for (int i = 0; i < NAMES.length; i++) {
+            String prefix = NAMES[i].toLowerCase(Locale.ROOT) + ".";
+            LatencyHistogram.Snapshot latencies = snapshots[i];
+            report.put(prefix + "requests", latencies.getCount());
+            report.put(prefix + "errors", errors[i].sum());
+            report.put(prefix + "mean_ns", latencies.getMean());
+            report.put(prefix + "p50_ns", latencies.getValueAt(0.5));
+            report.put(prefix + "p90_ns", latencies.getValueAt(0.9));
+            report.put(prefix + "p99_ns", latencies.getValueAt(0.99));
+            report.put(prefix + "p999_ns", latencies.getValueAt(0.999));
+            report.put(prefix + "max_ns", latencies.getMax());
+        }
+        return report;
+    }
+}
@@ -0,0 +1,115 @@
+// File: src/server/ShardMigrator.java
+package server;
+
+import common.Log;
+import common.PeerInfo;
+import common.ShardRing;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ShardMigrator class hands the files this indexing server no longer owns to their new shards after
+ * the shard ring changed (a shard was added or drained). The new owner of every registered file is
+ * looked up on the new ring; files owned by another shard are registered there for the same peer with
+ * plain REGISTER requests, and only then removed from the local index, so a search never finds nothing
+ * for a file that is being moved (at worst both shards answer for a moment).
+ *
+ * Peers should already use the new ring when the migration runs, so new registrations go straight to
+ * the new owners and nothing lands behind the walk over the local index.
+ */
+class ShardMigrator {
+    private static final int FILES_PER_REQUEST = 1000; // File names per REGISTER line sent to a new owner
+    private static final int PIPELINE_DEPTH = 256;     // Requests written before their answers are read
+
+    private final FileIndex index;
+    private final String self;   // Name of this server on the ring, "host:port"
+    private final ShardRing ring;
+
+    /**
+     * Constructor to initialize a migration.
+     * @param index - The local index to move files out of.
+     * @param self - The name of this server on the ring.
+     * @param ring - The new ring.
+     */
+    ShardMigrator(FileIndex index, String self, ShardRing ring) {
+        this.index = index;
+        this.self = self;
+        this.ring = ring;
+    }
+
+    /**
+     * Moves every file owned by another shard under the new ring to that shard.
+     * @return int - Number of (peer, file) registrations moved.
+     * @throws IOException if a new owner cannot be reached or refuses a registration; files not
+     *                     confirmed by their new owner stay in the local index.
+     */
+    int migrate() throws IOException {
+        // New owner -> peer -> files that move there
+        Map<String, Map<PeerInfo, List<String>>> moves = new LinkedHashMap<>();
+        index.forEachPeer((peer, files) -> {
+            for (String filename : files) {
+                String owner = ring.shardFor(filename);
+                if (!owner.equals(self)) {
+                    moves.computeIfAbsent(owner, shard -> new LinkedHashMap<>())
+                            .computeIfAbsent(peer, p -> new ArrayList<>()).add(filename);
+                }
+            }
+        });
+
+        int moved = 0;
+        for (Map.Entry<String, Map<PeerInfo, List<String>>> target : moves.entrySet()) {
+            send(target.getKey(), target.getValue());
+            for (Map.Entry<PeerInfo, List<String>> peer : target.getValue().entrySet()) {
+                List<String> removed = index.deregisterFiles(peer.getKey().getPeerId(), peer.getValue());
+                moved += removed == null ? 0 : removed.size();
+            }
+            Log.info("Moved files of {} peers to shard {}", target.getValue().size(), target.getKey());
+        }
+        return moved;
+    }
+
+    /**
+     * Registers the files at their new owner, pipelining up to PIPELINE_DEPTH requests at a time.
+     */
+    private void send(String shard, Map<PeerInfo, List<String>> files) throws IOException {
+        String[] address = ShardRing.hostAndPort(shard);
+        try (Socket socket = new Socket(address[0], Integer.parseInt(address[1]));
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())))) {
+            int unanswered = 0;
+            for (Map.Entry<PeerInfo, List<String>> peer : files.entrySet()) {
+                PeerInfo info = peer.getKey();
+                List<String> names = peer.getValue();
+                for (int from = 0; from < names.size(); from += FILES_PER_REQUEST) {
+                    StringBuilder sb = new StringBuilder("REGISTER ");
+                    sb.append(info.getPeerId()).append(' ').append(info.getIpAddress()).append(' ')
+                            .append(info.getPort()).append(' ').append(info.getBandwidth());
+                    for (String name : names.subList(from, Math.min(names.size(), from + FILES_PER_REQUEST))) {
+                        sb.append(' ').append(name);
+                    }
+                    out.println(sb);
+                    if (++unanswered == PIPELINE_DEPTH) {
+                        readAnswers(shard, out, in, unanswered);
+                        unanswered = 0;
+                    }
+                }
+            }
+            readAnswers(shard, out, in, unanswered);
+        }
+    }
+
+    private static void readAnswers(String shard, PrintWriter out, BufferedReader in, int count) throws IOException {
+        out.flush();
+        for (int i = 0; i < count; i++) {
+            String answer = in.readLine();
+            if (!"REGISTER_SUCCESS".equals(answer)) {
+                throw new IOException("Shard " + shard + " answered: " + answer);
+            }
+        }
+    }
+}
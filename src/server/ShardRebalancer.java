@@ -0,0 +1,59 @@
+// File: src/server/ShardRebalancer.java
+package server;
+
+import common.ShardRing;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ShardRebalancer class applies a new shard ring to running indexing servers. It sends
+ * "REBALANCE token shard ring" to every shard of the new ring and to every drained shard, one after the other;
+ * each server moves the files it no longer owns to their new owners. Start added shards and switch the
+ * peers to the new ring first; a drained shard can be stopped once it has answered. The servers must
+ * have been started with the same --admin-token.
+ *
+ * On the NIO server the migration runs on the event loop that received the command, so the connections
+ * of that loop wait until it is done.
+ */
+public class ShardRebalancer {
+
+    /**
+     * Main method to rebalance the shards.
+     *
+     * @param args The servers' admin token, the new ring as "host:port,host:port,..." and any shards being removed.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java server.ShardRebalancer <adminToken> <host:port,host:port,...> [drainedHost:port...]");
+            System.exit(1);
+        }
+
+        String token = args[0];
+        ShardRing ring = ShardRing.parse(args[1]);
+        List<String> shards = new ArrayList<>(ring.getShards());
+        for (int i = 2; i < args.length; i++) {
+            shards.add(args[i]);
+        }
+
+        boolean failed = false;
+        for (String shard : shards) {
+            String[] address = ShardRing.hostAndPort(shard);
+            try (Socket socket = new Socket(address[0], Integer.parseInt(address[1]));
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true)) {
+                long start = System.nanoTime();
+                out.println("REBALANCE " + token + " " + shard + " " + String.join(",", ring.getShards()));
+                String answer = in.readLine();
+                System.out.printf("%s: %s (%.1f s)%n", shard, answer, (System.nanoTime() - start) / 1e9);
+                failed |= answer == null || !answer.startsWith("REBALANCE_SUCCESS");
+            } catch (IOException e) {
+                System.out.println(shard + ": " + e.getMessage());
+                failed = true;
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+}
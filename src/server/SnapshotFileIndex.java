@@ -0,0 +1,368 @@
+// File: src/server/SnapshotFileIndex.java
+package server;
+
+import common.PeerInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * The SnapshotFileIndex class is a FileIndex for search-heavy traffic. SEARCH reads an immutable
+ * snapshot of the file name to peers map through one volatile field: a plain HashMap lookup and the
+ * file's PeerInfo array, with no locks, no CAS and no view of a set that a writer is changing.
+ *
+ * Writers take one lock and apply their change to a private master copy (the same maps as
+ * ConcurrentFileIndex, but plain), noting the file names they touched. Every publishMs a publisher
+ * thread copies the snapshot segments holding those names, fills in the new PeerInfo arrays and
+ * swaps the new snapshot in (epoch + 1), so a batch of changes costs a few segment copies and a single
+ * volatile write. The snapshot is split into segments of about SEGMENT_LOAD names, doubled in number
+ * as the index grows, so a publish never copies the whole index. With publishMs 0 every change is
+ * published before the write returns.
+ *
+ * A SEARCH therefore sees a change at most publishMs after it was acknowledged. Listeners are told
+ * after the swap that made a change visible, so a SearchCache never keeps a response built from the
+ * previous snapshot. Peer-side queries (hasPeer, filesOf, forEachPeer) and the counts read the master.
+ * The master and the snapshot share the PeerInfo and name objects, but the maps are held twice.
+ */
+public class SnapshotFileIndex implements FileIndex {
+    private static final int MIN_SEGMENTS = 16;
+    private static final int SEGMENT_LOAD = 512; // Average names per segment before the segments double
+
+    /**
+     * An immutable part of a snapshot: the file names whose hash falls into it and their peers.
+     */
+    private static final class Segment {
+        final Map<String, PeerInfo[]> files;
+
+        Segment(Map<String, PeerInfo[]> files) {
+            this.files = files;
+        }
+    }
+
+    /**
+     * One published view of the index. Neither the array nor the segments change once it is published.
+     */
+    private static final class Snapshot {
+        final long epoch;
+        final Segment[] segments;
+
+        Snapshot(long epoch, Segment[] segments) {
+            this.epoch = epoch;
+            this.segments = segments;
+        }
+
+        PeerInfo[] get(String filename) {
+            return segments[segmentOf(filename, segments.length)].files.get(filename);
+        }
+    }
+
+    private final Object writeLock = new Object();                     // Guards the master and dirty
+    private final Map<String, PeerInfo> peerMap = new HashMap<>();       // Peer ID to PeerInfo
+    private final Map<String, Set<String>> peerFiles = new HashMap<>();  // Peer ID to the file names it shares
+    private final Map<String, Set<String>> fileMap = new HashMap<>();    // File name to the IDs of its peers
+    private final Set<String> dirty = new LinkedHashSet<>();             // Names changed since the last publish
+    private long postings;                                               // Number of (file, peer) pairs
+    private final List<IndexListener> listeners = new CopyOnWriteArrayList<>();
+    private final int publishMs;
+    private volatile Snapshot current;
+
+    /**
+     * Constructor to create an empty index.
+     * @param publishMs - Interval between two published snapshots, 0 to publish every change at once.
+     */
+    public SnapshotFileIndex(int publishMs) {
+        this.publishMs = publishMs;
+        Segment[] segments = new Segment[MIN_SEGMENTS];
+        Arrays.fill(segments, new Segment(Collections.emptyMap()));
+        current = new Snapshot(0, segments);
+        if (publishMs > 0) {
+            Thread publisher = new Thread(this::publishLoop, "index-publisher");
+            publisher.setDaemon(true);
+            publisher.start();
+        }
+    }
+
+    @Override
+    public void addListener(IndexListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void register(PeerInfo peer, List<String> files) {
+        synchronized (writeLock) {
+            String peerId = peer.getPeerId();
+            PeerInfo previous = peerMap.put(peerId, peer);
+            Set<String> shared = peerFiles.computeIfAbsent(peerId, id -> new LinkedHashSet<>());
+            if (previous != null && !sameAddress(previous, peer)) {
+                dirty.addAll(shared); // Every file the peer already shares now answers SEARCH with the new details
+            }
+            for (String filename : files) {
+                if (shared.add(filename)) {
+                    fileMap.computeIfAbsent(filename, name -> new LinkedHashSet<>()).add(peerId);
+                    postings++;
+                    dirty.add(filename);
+                }
+            }
+            written();
+        }
+    }
+
+    @Override
+    public List<PeerInfo> search(String filename) {
+        PeerInfo[] peers = current.get(filename);
+        // The array is never changed after publishing, so it is handed out as is
+        return peers == null ? new ArrayList<>() : Collections.unmodifiableList(Arrays.asList(peers));
+    }
+
+    @Override
+    public List<String> deregisterPeer(String peerId) {
+        synchronized (writeLock) {
+            Set<String> shared = peerFiles.remove(peerId);
+            if (shared == null) {
+                return null;
+            }
+            peerMap.remove(peerId);
+            for (String filename : shared) {
+                unlink(filename, peerId);
+            }
+            written();
+            return new ArrayList<>(shared);
+        }
+    }
+
+    @Override
+    public List<String> deregisterFiles(String peerId, List<String> files) {
+        synchronized (writeLock) {
+            Set<String> shared = peerFiles.get(peerId);
+            if (shared == null) {
+                return null;
+            }
+            List<String> removed = new ArrayList<>();
+            for (String filename : files) {
+                if (shared.remove(filename)) {
+                    unlink(filename, peerId);
+                    removed.add(filename);
+                }
+            }
+            if (shared.isEmpty()) {
+                peerFiles.remove(peerId);
+                peerMap.remove(peerId);
+            }
+            written();
+            return removed;
+        }
+    }
+
+    /**
+     * Removes a peer from one file's entry in the master. Caller holds writeLock.
+     */
+    private void unlink(String filename, String peerId) {
+        Set<String> peers = fileMap.get(filename);
+        if (peers != null && peers.remove(peerId)) {
+            postings--;
+            dirty.add(filename);
+            if (peers.isEmpty()) {
+                fileMap.remove(filename);
+            }
+        }
+    }
+
+    /**
+     * Publishes at once if there is no publisher thread. Caller holds writeLock.
+     */
+    private void written() {
+        if (publishMs == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Publisher loop: publishes the changes of the last interval, every publishMs.
+     */
+    private void publishLoop() {
+        while (true) {
+            try {
+                Thread.sleep(publishMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (writeLock) {
+                publish();
+            }
+        }
+    }
+
+    /**
+     * Publishes every change made so far without waiting for the publisher, e.g. before measuring
+     * searches right after loading the index.
+     */
+    void publishNow() {
+        synchronized (writeLock) {
+            publish();
+        }
+    }
+
+    /**
+     * Builds the next snapshot from the previous one and the master, swaps it in and tells the
+     * listeners about the names whose peers changed. Caller holds writeLock.
+     */
+    private void publish() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Snapshot previous = current;
+        Segment[] segments;
+        if (fileMap.size() > previous.segments.length * SEGMENT_LOAD) {
+            segments = rebuild(previous.segments.length);
+        } else {
+            segments = previous.segments.clone();
+            boolean[] copied = new boolean[segments.length];
+            for (String filename : dirty) {
+                int segment = segmentOf(filename, segments.length);
+                if (!copied[segment]) {
+                    segments[segment] = new Segment(new HashMap<>(segments[segment].files));
+                    copied[segment] = true;
+                }
+                Set<String> peers = fileMap.get(filename);
+                if (peers == null) {
+                    segments[segment].files.remove(filename);
+                } else {
+                    segments[segment].files.put(filename, peersOf(peers));
+                }
+            }
+        }
+        current = new Snapshot(previous.epoch + 1, segments);
+
+        // Same order of events as the other indexes: added, peers changed, removed
+        for (String filename : dirty) {
+            boolean before = previous.get(filename) != null;
+            boolean after = fileMap.containsKey(filename);
+            for (IndexListener listener : listeners) {
+                if (!before && after) {
+                    listener.fileAdded(filename);
+                }
+                listener.filePeersChanged(filename);
+                if (before && !after) {
+                    listener.fileRemoved(filename);
+                }
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Builds all segments afresh from the master, at least twice as many as before. Caller holds writeLock.
+     */
+    private Segment[] rebuild(int count) {
+        while (fileMap.size() > count * SEGMENT_LOAD) {
+            count *= 2;
+        }
+        List<Map<String, PeerInfo[]>> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(new HashMap<>());
+        }
+        for (Map.Entry<String, Set<String>> entry : fileMap.entrySet()) {
+            files.get(segmentOf(entry.getKey(), count)).put(entry.getKey(), peersOf(entry.getValue()));
+        }
+        Segment[] segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(files.get(i));
+        }
+        return segments;
+    }
+
+    /**
+     * @return PeerInfo[] - The current PeerInfo of each peer ID, in registration order. Caller holds writeLock.
+     */
+    private PeerInfo[] peersOf(Set<String> peerIds) {
+        PeerInfo[] peers = new PeerInfo[peerIds.size()];
+        int i = 0;
+        for (String peerId : peerIds) {
+            peers[i++] = peerMap.get(peerId);
+        }
+        return peers;
+    }
+
+    private static boolean sameAddress(PeerInfo a, PeerInfo b) {
+        return a.getIpAddress().equals(b.getIpAddress()) && a.getPort() == b.getPort()
+                && a.getBandwidth() == b.getBandwidth();
+    }
+
+    private static int segmentOf(String filename, int segments) {
+        int h = filename.hashCode();
+        return (h ^ (h >>> 16)) & (segments - 1);
+    }
+
+    /**
+     * @return long - Number of snapshots published so far.
+     */
+    long getEpoch() {
+        return current.epoch;
+    }
+
+    @Override
+    public boolean hasPeer(String peerId) {
+        synchronized (writeLock) {
+            return peerFiles.containsKey(peerId);
+        }
+    }
+
+    @Override
+    public List<String> filesOf(String peerId) {
+        synchronized (writeLock) {
+            Set<String> shared = peerFiles.get(peerId);
+            return shared == null ? null : new ArrayList<>(shared);
+        }
+    }
+
+    @Override
+    public void forEachPeer(BiConsumer<PeerInfo, List<String>> action) {
+        List<String> peerIds;
+        synchronized (writeLock) {
+            peerIds = new ArrayList<>(peerFiles.keySet());
+        }
+        for (String peerId : peerIds) {
+            PeerInfo peer;
+            List<String> files;
+            // Hold the lock per peer only, so a long walk never stalls registrations for long
+            synchronized (writeLock) {
+                Set<String> shared = peerFiles.get(peerId);
+                if (shared == null) {
+                    continue;
+                }
+                peer = peerMap.get(peerId);
+                files = new ArrayList<>(shared);
+            }
+            action.accept(peer, files);
+        }
+    }
+
+    @Override
+    public int fileCount() {
+        synchronized (writeLock) {
+            return fileMap.size();
+        }
+    }
+
+    @Override
+    public int peerCount() {
+        synchronized (writeLock) {
+            return peerMap.size();
+        }
+    }
+
+    @Override
+    public long postingCount() {
+        synchronized (writeLock) {
+            return postings;
+        }
+    }
+}